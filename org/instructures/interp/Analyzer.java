@@ -0,0 +1,646 @@
+package org.instructures.interp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import org.instructures.interp.values.*;
+import org.instructures.interp.values.LexemeDatum.SymbolDatum;
+
+/**
+ * Compiles S-Expressions into trees of {@link Node}s. The analyzer covers the
+ * same special forms as {@link SchemeEvaluator}, along with applications,
+ * variable references and constants. Any form it does not handle, including
+ * a malformed special form, becomes a node that defers to the interpreter so
+ * that errors are still reported when, and only if, the form is evaluated.
+ *
+ * Calls of builtins that have inline implementations are specialized when
+ * the operator is not lexically bound and the global binding is still the
+ * original builtin. Each such call site depends on that binding's
+ * {@link Assumption}.
+ *
+ * Macro uses are compiled as their expansions. Constant subexpressions are
+ * folded as the nodes are built; see {@link ConstantFolder}.
+ *
+ * A named {@code let} whose name is only ever called in tail position of its
+ * own body, as is any {@code do}, is compiled into a loop that rebinds its
+ * variables in place instead of calling a procedure for each iteration.
+ *
+ * When {@link Coverage} is enabled, each branch of an {@code if} or
+ * {@code cond} and each procedure body is wrapped in a node that counts its
+ * executions.
+ */
+class Analyzer {
+  private static final Map<SymbolDatum, FormAnalyzer> FORM_ANALYZERS = new HashMap<>();
+
+  private final Environment environment;
+  private Scope scope;
+  // The named let whose tail calls are being compiled as loop iterations
+  private LoopContext loop;
+  // How many nodes that may create closures have been compiled
+  private int closureSites;
+  // The innermost form being compiled that has a source position; only
+  // tracked for coverage
+  private SourcePosition position;
+
+  private interface FormAnalyzer {
+    Node analyze(Analyzer analyzer, Datum sExpr);
+  }
+
+  private interface BodyAnalyzer {
+    Node analyze(Analyzer analyzer, LinkedList<Value> body);
+  }
+
+  static {
+    define("quote", Analyzer::analyzeQuote);
+    define("quasiquote", Analyzer::analyzeQuasiquote);
+    define("set!", Analyzer::analyzeAssignment);
+    define("define", Analyzer::analyzeDefine);
+    defineForm("lambda", Analyzer::analyzeLambda);
+    define("if", Analyzer::analyzeIf);
+    define("cond", Analyzer::analyzeCond);
+    define("begin", Analyzer::analyzeBegin);
+    define("let", Analyzer::analyzeLet);
+    define("let*", Analyzer::analyzeDerived);
+    define("letrec", Analyzer::analyzeDerived);
+    define("letrec*", Analyzer::analyzeDerived);
+    define("do", Analyzer::analyzeDerived);
+    define("define-record-type", Analyzer::analyzeDerived);
+  }
+
+  private static void define(String symbolName, BodyAnalyzer bodyAnalyzer) {
+    defineForm(symbolName, (analyzer, sExpr) -> bodyAnalyzer.analyze(analyzer, sExpr.asProperList()));
+  }
+
+  // Defines an analyzer that receives the whole form, for forms that need the
+  // identity of their source datum, as SpecialForm.defineForm does
+  private static void defineForm(String symbolName, FormAnalyzer formAnalyzer) {
+    FORM_ANALYZERS.put(LexemeDatum.newSymbol(symbolName), formAnalyzer);
+  }
+
+  /**
+   * @param environment The environment the compiled code will be run in, or
+   *        one with the same shape. It is used to find which variables are
+   *        bound outside of the code being compiled.
+   */
+  Analyzer(Environment environment) {
+    this(environment, null, null);
+  }
+
+  private Analyzer(Environment environment, Scope scope, SourcePosition position) {
+    this.environment = environment;
+    this.scope = scope;
+    this.position = position;
+  }
+
+  /**
+   * Compiles a procedure body: a non-empty sequence of expressions whose last
+   * value is the result.
+   */
+  Node analyzeBody(List<? extends Value> body) {
+    if (body.size() == 1) {
+      return analyze((Datum)body.get(0));
+    }
+    Node[] nodes = new Node[body.size()];
+    for (int i = 0; i < nodes.length; ++i) {
+      nodes[i] = analyze((Datum)body.get(i));
+    }
+    return new Node.Sequence(nodes);
+  }
+
+  /**
+   * Compiles a special form, reporting any syntax error in it rather than
+   * leaving it to the interpreter.
+   */
+  Node compileForm(Datum sExpr) {
+    FormAnalyzer formAnalyzer = FORM_ANALYZERS.get(sExpr.getCar());
+    if (formAnalyzer == null) {
+      throw Problem.internalError("No analyzer for %s", sExpr.getCar());
+    }
+    return at(sExpr, () -> formAnalyzer.analyze(this, sExpr));
+  }
+
+  Node analyze(Datum sExpr) {
+    if (sExpr.isSymbol()) {
+      return analyzeVariable(sExpr.toString());
+    } else if (sExpr.isPair()) {
+      return Coverage.ENABLED ? at(sExpr, () -> analyzeNonEmptyListForm(sExpr)) : analyzeNonEmptyListForm(sExpr);
+    } else if (sExpr.isEmptyList()) {
+      return interpreted(sExpr);
+    } else {
+      return new Node.Constant(sExpr);
+    }
+  }
+
+  // Analyzes a form with its source position, if it has one, as the position.
+  private Node at(Datum sExpr, Supplier<Node> analysis) {
+    SourcePosition enclosing = position;
+    SourcePosition formPosition = Coverage.ENABLED ? SourcePosition.of(sExpr) : null;
+    if (formPosition != null) {
+      position = formPosition;
+    }
+    try {
+      return analysis.get();
+    } finally {
+      position = enclosing;
+    }
+  }
+
+  // Counts executions of the branches of a form, when coverage is enabled.
+  // A branch is at its own position if it is a list read from a source, and
+  // at the form's otherwise.
+  private void countBranches(List<? extends Value> branchData, Node[] branches) {
+    if (!Coverage.ENABLED || position == null) {
+      return;
+    }
+    int form = Coverage.newForm();
+    for (int i = 0; i < branches.length; ++i) {
+      if (branches[i] == null) {
+        continue;
+      }
+      SourcePosition branchPosition = (branchData.get(i) == null) ? null : SourcePosition.of(branchData.get(i));
+      Coverage.Site site = Coverage.Site.branch((branchPosition != null) ? branchPosition : position, form, i);
+      branches[i] = Coverage.counted(site, branches[i]);
+    }
+  }
+
+  private Node analyzeVariable(String variable) {
+    for (Scope s = scope; s != null; s = s.parent) {
+      if (s.names.contains(variable)) {
+        Node constant = s.constants.get(variable);
+        if (constant != null) {
+          ConstantFolder.countPropagated();
+          return constant;
+        }
+        break;
+      }
+    }
+    return new Node.VariableReference(variable);
+  }
+
+  private Node analyzeNonEmptyListForm(Datum sExpr) {
+    Value listHead = sExpr.getCar();
+    SpecialForm specialForm = listHead.isSymbol() ? SpecialForm.lookup(listHead.toString(), environment) : null;
+    if (specialForm != null && specialForm.getMacro() != null) {
+      Datum expansion;
+      try {
+        expansion = specialForm.getMacro().expand(sExpr);
+      } catch (Problem.EvaluationError e) {
+        return interpreted(sExpr);
+      }
+      return analyze(expansion);
+    }
+    if (specialForm != null) {
+      FormAnalyzer formAnalyzer = FORM_ANALYZERS.get(listHead);
+      if (formAnalyzer == null) {
+        return interpreted(sExpr);
+      }
+      try {
+        return Metrics.countedForm(listHead.toString(), formAnalyzer.analyze(this, sExpr));
+      } catch (Problem.EvaluationError e) {
+        return interpreted(sExpr);
+      }
+    }
+    return Metrics.countedForm("application", analyzeApplication(sExpr));
+  }
+
+  private Node analyzeApplication(Datum sExpr) {
+    LinkedList<Value> operands;
+    try {
+      operands = sExpr.getCdr().asProperList();
+    } catch (Problem.EvaluationError e) {
+      return interpreted(sExpr);
+    }
+    Value listHead = sExpr.getCar();
+    Node[] operandNodes = new Node[operands.size()];
+    for (int i = 0; i < operandNodes.length; ++i) {
+      operandNodes[i] = analyze((Datum)operands.get(i));
+    }
+    if (loop != null && listHead == loop.name) {
+      return new Node.Recur(operandNodes);
+    }
+    Node operator = analyze((Datum)listHead);
+    Node application = new Node.Application(sExpr, operator, operandNodes);
+    Assumption assumption = listHead.isSymbol() ? stableBuiltin(listHead.toString()) : null;
+    if (assumption == null) {
+      return application;
+    }
+    String name = listHead.toString();
+    Node call = specializeBuiltinCall(name, assumption, operandNodes, application);
+    if (Primitives.isPure(name)) {
+      Node folded = ConstantFolder.foldCall(environment.lookupVariable(name), assumption, operandNodes, call);
+      if (folded != null) {
+        return folded;
+      }
+    }
+    return call;
+  }
+
+  private Node specializeBuiltinCall(String name, Assumption assumption, Node[] operandNodes, Node application) {
+    if (operandNodes.length == 1) {
+      Function<Value, Value> operation = Primitives.unaryIntrinsic(name);
+      if (operation != null) {
+        return new Node.UnaryPrimitive(assumption, operation, operandNodes[0], application);
+      }
+    } else if (operandNodes.length == 2) {
+      BinaryOperator<Value> operation = Primitives.binaryIntrinsic(name);
+      if (operation != null) {
+        return new Node.BinaryPrimitive(assumption, operation, operandNodes[0], operandNodes[1], application);
+      }
+    }
+    return application;
+  }
+
+  /**
+   * Returns the assumption that the variable refers to the builtin it was
+   * initially bound to, or {@code null} if the variable is bound by the code
+   * being compiled or the assumption no longer holds.
+   */
+  private Assumption stableBuiltin(String variable) {
+    for (Scope s = scope; s != null; s = s.parent) {
+      if (s.names.contains(variable)) {
+        return null;
+      }
+    }
+    return environment.stableBinding(variable);
+  }
+
+  private Node analyzeQuote(LinkedList<Value> body) {
+    SchemeEvaluator.matchSymbol(body, "quote");
+    Value textOfQuote = SchemeEvaluator.next(body);
+    SchemeEvaluator.noExtras(body, "quote");
+    return new Node.Constant(textOfQuote);
+  }
+
+  private Node analyzeQuasiquote(LinkedList<Value> body) {
+    SchemeEvaluator.matchSymbol(body, "quasiquote");
+    Value template = SchemeEvaluator.next(body);
+    SchemeEvaluator.noExtras(body, "quasiquote");
+    return analyzeTemplate(template, 1);
+  }
+
+  /**
+   * Compiles a quasiquote template into the nodes that build it. Any part of
+   * the template without unquoted expressions in it is a constant, so the
+   * result shares those parts with the template and allocates only the pairs
+   * leading to an unquoted expression.
+   *
+   * @param depth The quasiquote nesting level, where only an unquote at level
+   *        one is evaluated.
+   */
+  private Node analyzeTemplate(Value template, int depth) {
+    if (!template.isPair()) {
+      return new Node.Constant(template);
+    }
+    Value head = template.getCar();
+    boolean isUnquote = isAbbreviation(template, "unquote") || isAbbreviation(template, "unquote-splicing");
+    if (isUnquote && depth == 1) {
+      SchemeEvaluator.assertCondition(head == LexemeDatum.newSymbol("unquote"),
+        "unquote-splicing must be in a list: %s", template.toSyntaxString());
+      return analyze((Datum)template.getCdr().getCar());
+    }
+    Node rest;
+    if (isUnquote) {
+      rest = analyzeTemplate(template.getCdr(), depth - 1);
+    } else if (isAbbreviation(template, "quasiquote")) {
+      rest = analyzeTemplate(template.getCdr(), depth + 1);
+    } else {
+      rest = analyzeTemplate(template.getCdr(), depth);
+    }
+    if (depth == 1 && isAbbreviation(head, "unquote-splicing")) {
+      return new Node.Splice(analyze((Datum)head.getCdr().getCar()), rest);
+    }
+    Node first = analyzeTemplate(head, depth);
+    if (first instanceof Node.Constant && rest instanceof Node.Constant) {
+      return new Node.Constant(template);
+    }
+    return new Node.Cons(first, rest);
+  }
+
+  private static boolean isAbbreviation(Value datum, String symbolName) {
+    return datum.isPair() && datum.getCar() == LexemeDatum.newSymbol(symbolName)
+      && datum.getCdr().isPair() && datum.getCdr().getCdr().isEmptyList();
+  }
+
+  private Node analyzeAssignment(LinkedList<Value> body) {
+    SchemeEvaluator.matchSymbol(body, "set!");
+    Value assignee = SchemeEvaluator.next(body);
+    Datum exp = (Datum)SchemeEvaluator.next(body);
+    SchemeEvaluator.noExtras(body, "set!");
+    SchemeEvaluator.assertCondition(assignee.isSymbol(), "Expected a variable in set!");
+    return new Node.Assignment(assignee.toString(), analyze(exp));
+  }
+
+  private Node analyzeDefine(LinkedList<Value> body) {
+    SchemeEvaluator.matchSymbol(body, "define");
+    Value assignee = SchemeEvaluator.next(body);
+    if (assignee.isPair()) {
+      // (define (name . formals) body...)
+      Lambda.Template parsed = SchemeEvaluator.lambdaTemplate((Datum)assignee, assignee.getCdr(), body, environment);
+      return new Node.Definition(assignee.getCar().toString(), compileLambda(parsed));
+    }
+    Datum exp = (Datum)SchemeEvaluator.next(body);
+    SchemeEvaluator.noExtras(body, "define");
+    SchemeEvaluator.assertCondition(assignee.isSymbol(), "Expected a variable in define");
+    return new Node.Definition(assignee.toString(), analyze(exp));
+  }
+
+  private Node analyzeLambda(Datum sExpr) {
+    LinkedList<Value> body = sExpr.asProperList();
+    SchemeEvaluator.matchSymbol(body, "lambda");
+    Value formals = SchemeEvaluator.next(body);
+    return compileLambda(SchemeEvaluator.lambdaTemplate(sExpr, formals, body, environment));
+  }
+
+  private Node compileLambda(Lambda.Template parsed) {
+    Scope inner = new Scope(scope, boundNames(parsed.getFormals(), parsed.getUsage()));
+    SourcePosition lambdaPosition = (parsed.getPosition() != null) ? parsed.getPosition() : position;
+    Node compiledBody = new Analyzer(environment, inner, lambdaPosition).analyzeBody(parsed.getBody());
+    ++closureSites;
+    Coverage.Site site = null;
+    if (Coverage.ENABLED && lambdaPosition != null) {
+      site = Coverage.Site.procedure(lambdaPosition);
+      compiledBody = Coverage.counted(site, compiledBody);
+    }
+    Lambda.Template template = Lambda.Template.precompiled(parsed, compiledBody);
+    if (site != null) {
+      site.setProcedure(template);
+    }
+    return new Node.LambdaExpression(template);
+  }
+
+  private Node interpreted(Datum sExpr) {
+    // the interpreter may create closures from anything it evaluates
+    ++closureSites;
+    return new Node.Interpreted(sExpr);
+  }
+
+  private Node analyzeIf(LinkedList<Value> body) {
+    SchemeEvaluator.matchSymbol(body, "if");
+    Node predicate = analyze((Datum)SchemeEvaluator.next(body));
+    Datum consequent = (Datum)SchemeEvaluator.next(body);
+    Datum alternative = body.isEmpty() ? null : (Datum)body.remove();
+    SchemeEvaluator.noExtras(body, "if");
+    Node[] branches = {
+      analyze(consequent),
+      (alternative != null) ? analyze(alternative) : null
+    };
+    if (Coverage.ENABLED && alternative == null) {
+      // so that falling through is counted as a branch
+      branches[1] = new Node.Constant(RuntimeValue.newUnspecified());
+    }
+    countBranches(Arrays.asList(consequent, alternative), branches);
+    return ConstantFolder.foldIf(predicate, branches[0], branches[1]);
+  }
+
+  private Node analyzeCond(LinkedList<Value> body) {
+    SchemeEvaluator.matchSymbol(body, "cond");
+    Node[] tests = new Node[body.size()];
+    Node[] bodies = new Node[body.size()];
+    List<Value> clauses = new ArrayList<>(body);
+    for (int i = 0; !body.isEmpty(); ++i) {
+      LinkedList<Value> clause = body.remove().asProperList();
+      Datum test = (Datum)SchemeEvaluator.next(clause);
+      boolean isElse = test.isSymbol() && test.toString().equals("else");
+      SchemeEvaluator.assertCondition(!isElse || body.isEmpty(), "else must be the last cond clause");
+      SchemeEvaluator.assertCondition(!isElse || !clause.isEmpty(), "Empty else clause in cond");
+      tests[i] = isElse ? null : analyze(test);
+      bodies[i] = clause.isEmpty() ? null : analyzeBody(clause);
+    }
+    // a clause without a body is not counted, since its value is its test's
+    countBranches(clauses, bodies);
+    return ConstantFolder.foldCond(tests, bodies);
+  }
+
+  private Node analyzeBegin(LinkedList<Value> body) {
+    SchemeEvaluator.matchSymbol(body, "begin");
+    if (body.isEmpty()) {
+      return new Node.Constant(RuntimeValue.newUnspecified());
+    }
+    return analyzeBody(body);
+  }
+
+  private Node analyzeDerived(LinkedList<Value> body) {
+    return analyze(DerivedForms.expand(CompoundDatum.newList(body)));
+  }
+
+  private Node analyzeLet(LinkedList<Value> body) {
+    Datum sExpr = CompoundDatum.newList(body);
+    SchemeEvaluator.matchSymbol(body, "let");
+    Value first = SchemeEvaluator.next(body);
+    boolean isNamed = first.isSymbol();
+    DerivedForms.Bindings bindings = DerivedForms.Bindings.parse(isNamed ? SchemeEvaluator.next(body) : first, "let", false);
+    SchemeEvaluator.assertCondition(!body.isEmpty(), "Empty body in let");
+    if (isNamed && !isLoop((SymbolDatum)first, bindings.variables.size(), body)) {
+      return analyze(DerivedForms.expand(sExpr));
+    }
+    List<String> variables = new ArrayList<>();
+    for (Value variable: bindings.variables) {
+      variables.add(variable.toString());
+    }
+    Node[] inits = new Node[variables.size()];
+    for (int i = 0; i < inits.length; ++i) {
+      inits[i] = analyze((Datum)bindings.inits.get(i));
+    }
+    VariableUsage usage = VariableUsage.ofLambda(variables, body, environment);
+    if (!isNamed) {
+      Map<String, Node> constants = new HashMap<>();
+      for (int i = 0; i < inits.length; ++i) {
+        Node constant = usage.isMutable(variables.get(i)) ? null : ConstantFolder.propagate(variables.get(i), inits[i]);
+        if (constant != null) {
+          constants.put(variables.get(i), constant);
+        }
+      }
+      Node letBody = withScope(boundNames(variables, usage), constants, () -> analyzeBody(body));
+      return new Node.Let(variables, inits, letBody, usage);
+    }
+    LoopContext enclosingLoop = loop;
+    int enclosingClosureSites = closureSites;
+    loop = new LoopContext((SymbolDatum)first);
+    try {
+      Node loopBody = withScope(boundNames(variables, usage), Collections.emptyMap(), () -> analyzeBody(body));
+      // The frame can be reused across iterations unless a closure could have
+      // captured the variables of an earlier one.
+      boolean reuseFrame = (closureSites == enclosingClosureSites);
+      return new Node.Loop(variables, inits, loopBody, usage, reuseFrame);
+    } finally {
+      loop = enclosingLoop;
+    }
+  }
+
+  // Returns the names bound in a body: its variables and those it defines,
+  // which hide any constant an enclosing scope binds the same name to
+  private static Collection<String> boundNames(Collection<String> variables, VariableUsage usage) {
+    List<String> names = new ArrayList<>(variables);
+    names.addAll(usage.getDefined());
+    return names;
+  }
+
+  private Node withScope(Collection<String> names, Map<String, Node> constants, Supplier<Node> analysis) {
+    Scope enclosing = scope;
+    scope = new Scope(enclosing, names, constants);
+    try {
+      return analysis.get();
+    } finally {
+      scope = enclosing;
+    }
+  }
+
+  /**
+   * Returns true if every occurrence of the name in the body of a named let is
+   * a call in tail position with the right number of arguments, so that each
+   * call can only ever start the next iteration. Macro uses are looked at as
+   * they expand, so that neither a call they hide nor one they move out of
+   * tail position is missed.
+   */
+  private boolean isLoop(SymbolDatum name, int arity, List<Value> body) {
+    int occurrences = 0;
+    for (Value datum: body) {
+      occurrences += countOccurrences(datum, name);
+    }
+    int tailCalls = countTailCalls(body.get(body.size() - 1), name, arity);
+    return tailCalls == occurrences;
+  }
+
+  private int countOccurrences(Value datum, SymbolDatum name) {
+    Datum expansion = expandMacroUse(datum);
+    if (expansion != null) {
+      return countOccurrences(expansion, name);
+    }
+    int count = 0;
+    Value curr = datum;
+    while (curr.isPair()) {
+      count += countOccurrences(curr.getCar(), name);
+      curr = curr.getCdr();
+    }
+    return (curr == name) ? count + 1 : count;
+  }
+
+  /**
+   * Counts the calls to the name that are in tail position of the expression,
+   * or returns -1 if one of them has the wrong number of arguments.
+   */
+  private int countTailCalls(Value sExpr, SymbolDatum name, int arity) {
+    if (!sExpr.isPair()) {
+      return 0;
+    }
+    Datum expansion = expandMacroUse(sExpr);
+    if (expansion != null) {
+      return countTailCalls(expansion, name, arity);
+    }
+    LinkedList<Value> parts;
+    try {
+      parts = sExpr.asProperList();
+    } catch (Problem.EvaluationError e) {
+      return -1;
+    }
+    Value head = parts.removeFirst();
+    if (head == name) {
+      return (parts.size() == arity) ? 1 : -1;
+    }
+    if (!head.isSymbol() || SpecialForm.lookup(head.toString()) == null || parts.isEmpty()) {
+      return 0;
+    }
+    switch (head.toString()) {
+      case "if": {
+        parts.removeFirst();
+        return sumTailCalls(parts, name, arity);
+      }
+      case "begin":
+        return countTailCalls(parts.getLast(), name, arity);
+      case "let":
+        // an inner named let is a procedure of its own
+        return parts.getFirst().isSymbol() ? 0 : countBodyTailCalls(parts, name, arity);
+      case "let*":
+      case "letrec":
+      case "letrec*":
+        return countBodyTailCalls(parts, name, arity);
+      case "cond": {
+        List<Value> lastExpressions = new ArrayList<>();
+        for (Value clause: parts) {
+          if (!clause.isPair() || !clause.getCdr().isPair()) {
+            return -1;
+          }
+          List<Value> clauseBody = clause.getCdr().asProperList();
+          lastExpressions.add(clauseBody.get(clauseBody.size() - 1));
+        }
+        return sumTailCalls(lastExpressions, name, arity);
+      }
+      default:
+        return 0;
+    }
+  }
+
+  // Counts the tail calls in the body of a let form, given its bindings and body
+  private int countBodyTailCalls(List<Value> parts, SymbolDatum name, int arity) {
+    return (parts.size() < 2) ? -1 : countTailCalls(parts.get(parts.size() - 1), name, arity);
+  }
+
+  private int sumTailCalls(List<Value> tailExpressions, SymbolDatum name, int arity) {
+    int sum = 0;
+    for (Value expression: tailExpressions) {
+      int count = countTailCalls(expression, name, arity);
+      if (count < 0) {
+        return -1;
+      }
+      sum += count;
+    }
+    return sum;
+  }
+
+  // Returns the expansion of a use of a macro defined in the environment, as
+  // the macro caches it, or null if the datum is not one that expands
+  private Datum expandMacroUse(Value datum) {
+    if (!datum.isPair() || !datum.getCar().isSymbol()) {
+      return null;
+    }
+    SpecialForm specialForm = SpecialForm.lookup(datum.getCar().toString(), environment);
+    if (specialForm == null || specialForm.getMacro() == null) {
+      return null;
+    }
+    try {
+      return specialForm.getMacro().expand((Datum)datum);
+    } catch (Problem.EvaluationError e) {
+      // it is interpreted, and fails, without calling anything
+      return null;
+    }
+  }
+
+  private static final class LoopContext {
+    private final SymbolDatum name;
+
+    private LoopContext(SymbolDatum name) {
+      this.name = name;
+    }
+  }
+
+  /**
+   * The variables bound or defined by the lambda expressions enclosing the
+   * code being analyzed, innermost first.
+   */
+  private static final class Scope {
+    private final Scope parent;
+    private final Set<String> names;
+    // Nodes for the constants some of the names are known to be bound to
+    private final Map<String, Node> constants;
+
+    private Scope(Scope parent, Collection<String> names) {
+      this(parent, names, Collections.emptyMap());
+    }
+
+    private Scope(Scope parent, Collection<String> names, Map<String, Node> constants) {
+      this.parent = parent;
+      this.names = new HashSet<>(names);
+      this.constants = constants;
+    }
+  }
+}
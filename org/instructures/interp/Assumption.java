@@ -0,0 +1,19 @@
+package org.instructures.interp;
+
+/**
+ * A flag that compiled code checks before relying on something that was true
+ * when it was compiled, such as a variable still being bound to a builtin.
+ * Once invalidated an assumption stays invalid, and code depending on it must
+ * fall back to the general case.
+ */
+final class Assumption {
+  private volatile boolean valid = true;
+
+  boolean isValid() {
+    return valid;
+  }
+
+  void invalidate() {
+    valid = false;
+  }
+}
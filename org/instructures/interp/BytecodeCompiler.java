@@ -0,0 +1,304 @@
+package org.instructures.interp;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The second compilation tier, which turns the {@link Node} tree of a hot
+ * procedure body into a JVM class of its own. The class's {@code execute}
+ * does what the tree does, in a single method, with each node's work emitted
+ * inline by {@link Node#compile}; the objects the tree refers to, such as
+ * constants, assumptions and the nodes left to run as they are, become
+ * fields of the class.
+ *
+ * Because each hot body has its own code, each call site in it has its own
+ * type profile. An application of a user-defined procedure calls the
+ * callee's body directly from the caller's code, so a site that always calls
+ * the same procedure is monomorphic, and HotSpot can inline the callee's
+ * compiled body into the caller. The inline builtins behind
+ * {@link Node.UnaryPrimitive} and {@link Node.BinaryPrimitive} are likewise
+ * called through sites of their own.
+ *
+ * A body is compiled once it has been executed as a tree the number of times
+ * set by {@code -Dscheme.jit.bytecode.threshold} (default 1000; negative
+ * disables this tier). The classes are defined as hidden classes where the
+ * JVM has them, so that they are unloaded with the procedures, and otherwise
+ * as classes of the interpreter's own package. A body whose code would be
+ * too large for HotSpot to compile, or that cannot be defined, stays a tree;
+ * running with {@code -Dscheme.jit.verbose=true} reports why.
+ */
+final class BytecodeCompiler {
+  static final int THRESHOLD = Integer.getInteger("scheme.jit.bytecode.threshold", 1000);
+
+  static final String NODE = "org/instructures/interp/Node";
+  static final String ENVIRONMENT = "org/instructures/interp/Environment";
+  static final String LAMBDA = "org/instructures/interp/Lambda";
+  static final String VALUE = "org/instructures/interp/values/Value";
+  static final String NODE_TYPE = "L" + NODE + ";";
+  static final String ENVIRONMENT_TYPE = "L" + ENVIRONMENT + ";";
+  static final String VALUE_TYPE = "L" + VALUE + ";";
+  static final String STRING_TYPE = "Ljava/lang/String;";
+  static final String LIST_TYPE = "Ljava/util/List;";
+  static final String USAGE_TYPE = "Lorg/instructures/interp/VariableUsage;";
+  static final String EXTEND_DESCRIPTOR = "(" + LIST_TYPE + LIST_TYPE + USAGE_TYPE + ")" + ENVIRONMENT_TYPE;
+
+  private static final boolean VERBOSE = Boolean.getBoolean("scheme.jit.verbose");
+  // HotSpot does not compile larger methods (-XX:HugeMethodLimit)
+  private static final int MAX_CODE_SIZE = 8000;
+  private static final String EXECUTE_DESCRIPTOR = "(" + ENVIRONMENT_TYPE + ")" + VALUE_TYPE;
+
+  private static final AtomicInteger classCount = new AtomicInteger();
+  private static final ClassDefiner definer = findDefiner();
+
+  private BytecodeCompiler() {
+  }
+
+  /**
+   * Returns a node of a generated class that does what the tree does, or
+   * {@code null} if the tree cannot be compiled.
+   *
+   * @param name The name of the procedure, if it has one, for reports.
+   */
+  static Node compile(Node tree, String name) {
+    if (definer == null) {
+      return null;
+    }
+    String className = NODE.substring(0, NODE.lastIndexOf('/') + 1) + "Compiled$" + classCount.incrementAndGet();
+    try {
+      Body body = new Body(new ClassFile(className, NODE));
+      byte[] bytes = body.generate(tree);
+      if (bytes == null) {
+        report(name, "its code is too large");
+        return null;
+      }
+      Class<?> generated = definer.define(bytes);
+      return (Node)generated.getDeclaredConstructor(Object[].class).newInstance((Object)body.getConstants());
+    } catch (InvocationTargetException e) {
+      report(name, e.getCause().toString());
+      return null;
+    } catch (Exception | LinkageError e) {
+      report(name, e.toString());
+      return null;
+    }
+  }
+
+  private static void report(String name, String reason) {
+    if (VERBOSE) {
+      System.err.printf("scheme.jit: not compiling %s: %s%n", (name == null) ? "lambda" : name, reason);
+    }
+  }
+
+  /**
+   * The code of a body being generated, and the state of its generation,
+   * which the nodes emit their own code into.
+   */
+  static final class Body {
+    private final ClassFile classFile;
+    private final ClassFile.Code code;
+    // The objects the code refers to, each in a field of its own
+    private final Map<Object, Integer> constantIndexes = new IdentityHashMap<>();
+    private final List<Object> constants = new ArrayList<>();
+    private final List<String> constantTypes = new ArrayList<>();
+    private final Deque<LoopTarget> loops = new ArrayDeque<>();
+    private int environment = 1;
+
+    private Body(ClassFile classFile) {
+      this.classFile = classFile;
+      this.code = classFile.addMethod(0, "execute", EXECUTE_DESCRIPTOR);
+    }
+
+    ClassFile.Code code() {
+      return code;
+    }
+
+    /**
+     * Emits the code of a node, which leaves its value on the stack.
+     */
+    void node(Node node) {
+      node.compile(this);
+    }
+
+    /**
+     * Emits a call of the node's own {@code execute}, for a node whose work
+     * is not emitted inline.
+     */
+    void execute(Node node) {
+      constant(node, NODE_TYPE);
+      loadEnvironment();
+      code.invoke(ClassFile.INVOKEVIRTUAL, NODE, "execute", EXECUTE_DESCRIPTOR);
+    }
+
+    /**
+     * Emits a load of the object, which is kept in a field of the given type.
+     */
+    void constant(Object value, String type) {
+      Integer index = constantIndexes.get(value);
+      if (index == null) {
+        index = constants.size();
+        constantIndexes.put(value, index);
+        constants.add(value);
+        constantTypes.add(type);
+      }
+      code.load(0);
+      code.field(ClassFile.GETFIELD, classFile.getName(), "c" + index, constantTypes.get(index));
+    }
+
+    void loadEnvironment() {
+      code.load(environment);
+    }
+
+    /**
+     * Emits the code of a node to be run in the environment in the local,
+     * rather than the current one.
+     */
+    void nodeIn(int local, Node node) {
+      int enclosing = environment;
+      environment = local;
+      try {
+        node(node);
+      } finally {
+        environment = enclosing;
+      }
+    }
+
+    int getEnvironment() {
+      return environment;
+    }
+
+    void unspecified() {
+      code.invoke(ClassFile.INVOKESTATIC, "org/instructures/interp/values/RuntimeValue", "newUnspecified",
+                  "()Lorg/instructures/interp/values/RuntimeValue;");
+    }
+
+    /**
+     * Emits the code of a loop body, whose tail calls of the loop jump back to
+     * its start.
+     */
+    void loop(LoopTarget loop, Node body) {
+      code.mark(loop.start);
+      loops.push(loop);
+      try {
+        nodeIn(loop.frame, body);
+      } finally {
+        loops.pop();
+      }
+    }
+
+    /**
+     * Returns the loop that a {@link Node.Recur} being emitted continues.
+     */
+    LoopTarget currentLoop() {
+      LoopTarget loop = loops.peek();
+      if (loop == null) {
+        throw Problem.internalError("A loop's tail call outside of it");
+      }
+      return loop;
+    }
+
+    private Object[] getConstants() {
+      return constants.toArray();
+    }
+
+    // Returns the class file, or null if the code is too large
+    private byte[] generate(Node tree) {
+      node(tree);
+      code.op(ClassFile.ARETURN, -1);
+      if (code.size() > MAX_CODE_SIZE) {
+        return null;
+      }
+      code.end();
+      for (int i = 0; i < constants.size(); ++i) {
+        classFile.addField(ClassFile.ACC_PRIVATE | ClassFile.ACC_FINAL, "c" + i, constantTypes.get(i));
+      }
+      generateConstructor();
+      return classFile.toByteArray();
+    }
+
+    // The constructor takes the constants in an array, in the order of the
+    // fields that hold them
+    private void generateConstructor() {
+      ClassFile.Code init = classFile.addMethod(ClassFile.ACC_PUBLIC, "<init>", "([Ljava/lang/Object;)V");
+      init.load(0);
+      init.invoke(ClassFile.INVOKESPECIAL, NODE, "<init>", "()V");
+      for (int i = 0; i < constants.size(); ++i) {
+        String type = constantTypes.get(i);
+        init.load(0);
+        init.load(1);
+        init.pushInt(i);
+        init.op(ClassFile.AALOAD, -1);
+        init.type(ClassFile.CHECKCAST, type.startsWith("L") ? type.substring(1, type.length() - 1) : type);
+        init.field(ClassFile.PUTFIELD, classFile.getName(), "c" + i, type);
+      }
+      init.op(ClassFile.RETURN, 0);
+      init.end();
+    }
+  }
+
+  /**
+   * Where the tail calls of a loop being emitted go: the locals of its frame
+   * and of the environment it is in, and the start of its body.
+   */
+  static final class LoopTarget {
+    final Node.Loop loop;
+    final int frame;
+    final int enclosing;
+    final ClassFile.Label start = new ClassFile.Label();
+
+    LoopTarget(Node.Loop loop, int frame, int enclosing) {
+      this.loop = loop;
+      this.frame = frame;
+      this.enclosing = enclosing;
+    }
+  }
+
+  private interface ClassDefiner {
+    Class<?> define(byte[] bytes) throws Exception;
+  }
+
+  // Finds a way to define a class in this package, by the newest API the JVM
+  // has: hidden classes (Java 15), Lookup.defineClass (Java 9), or
+  // Unsafe.defineAnonymousClass (Java 8). The project targets Java 8, so the
+  // newer ones are found by reflection.
+  private static ClassDefiner findDefiner() {
+    MethodHandles.Lookup lookup = MethodHandles.lookup();
+    try {
+      Class<?> optionClass = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+      Method defineHiddenClass = MethodHandles.Lookup.class.getMethod(
+        "defineHiddenClass", byte[].class, boolean.class, Array.newInstance(optionClass, 0).getClass());
+      Object noOptions = Array.newInstance(optionClass, 0);
+      return bytes -> ((MethodHandles.Lookup)defineHiddenClass.invoke(lookup, bytes, true, noOptions)).lookupClass();
+    } catch (ReflectiveOperationException e) {
+      // an older JVM
+    }
+    try {
+      Method defineClass = MethodHandles.Lookup.class.getMethod("defineClass", byte[].class);
+      return bytes -> (Class<?>)defineClass.invoke(lookup, bytes);
+    } catch (ReflectiveOperationException e) {
+      // an older JVM
+    }
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      Object unsafe = theUnsafe.get(null);
+      Method defineAnonymousClass =
+        unsafeClass.getMethod("defineAnonymousClass", Class.class, byte[].class, Object[].class);
+      return bytes -> (Class<?>)defineAnonymousClass.invoke(unsafe, Node.class, bytes, null);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      if (VERBOSE) {
+        System.err.printf("scheme.jit: cannot define classes: %s%n", e);
+      }
+      return null;
+    }
+  }
+}
@@ -0,0 +1,97 @@
+package org.instructures.interp;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import org.instructures.interp.values.RuntimeValue;
+import org.instructures.interp.values.Value;
+
+/**
+ * A bounded queue of values for passing them between threads started with
+ * {@code spawn}. Putting a value into a full channel blocks until there is
+ * room for it, and getting one from an empty channel blocks until there is
+ * one; on a virtual thread, blocking just parks it. Values are received in
+ * the order they were put, and everything a thread did before putting a
+ * value is visible to the thread that gets it.
+ */
+final class Channel extends RuntimeValue {
+  private final BlockingQueue<Value> queue;
+  // The threads waiting in select for a value on this channel
+  private final Queue<Thread> selectors = new ConcurrentLinkedQueue<>();
+
+  Channel(int capacity) {
+    if (capacity <= 0) {
+      throw Problem.argumentError("Channel capacity must be positive: %d", capacity);
+    }
+    this.queue = new ArrayBlockingQueue<>(capacity);
+  }
+
+  void put(Value value) {
+    try {
+      queue.put(value);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw Problem.interrupted();
+    }
+    for (Thread selector: selectors) {
+      LockSupport.unpark(selector);
+    }
+  }
+
+  Value get() {
+    try {
+      return queue.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw Problem.interrupted();
+    }
+  }
+
+  /**
+   * Returns a value from the first of the channels to have one, waiting for
+   * one of them to if none does yet.
+   */
+  static Value select(List<Channel> channels) {
+    Value value = poll(channels);
+    if (value != null) {
+      return value;
+    }
+    Thread current = Thread.currentThread();
+    for (Channel channel: channels) {
+      channel.selectors.add(current);
+    }
+    try {
+      // a put after the channels are polled again unparks this thread
+      while ((value = poll(channels)) == null) {
+        LockSupport.park(channels);
+        if (Thread.interrupted()) {
+          current.interrupt();
+          throw Problem.interrupted();
+        }
+      }
+      return value;
+    } finally {
+      for (Channel channel: channels) {
+        channel.selectors.remove(current);
+      }
+    }
+  }
+
+  private static Value poll(List<Channel> channels) {
+    for (Channel channel: channels) {
+      Value value = channel.queue.poll();
+      if (value != null) {
+        return value;
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public String toString() {
+    return "<channel>";
+  }
+}
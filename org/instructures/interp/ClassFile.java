@@ -0,0 +1,461 @@
+package org.instructures.interp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a JVM class file, with just what the {@link BytecodeCompiler} needs:
+ * fields, and methods whose code is emitted an instruction at a time. The
+ * class files are of version 49, which the JVM verifies by inferring the
+ * types of the stack and locals itself, so no stack map frames are written.
+ */
+final class ClassFile {
+  static final int ACC_PUBLIC = 0x0001;
+  static final int ACC_PRIVATE = 0x0002;
+  static final int ACC_FINAL = 0x0010;
+  static final int ACC_SUPER = 0x0020;
+  static final int ACC_SYNTHETIC = 0x1000;
+
+  // The opcodes used, by their names in the JVM specification
+  static final int ACONST_NULL = 0x01;
+  static final int LCONST_1 = 0x0a;
+  static final int BIPUSH = 0x10;
+  static final int SIPUSH = 0x11;
+  static final int LDC = 0x12;
+  static final int LDC_W = 0x13;
+  static final int ALOAD = 0x19;
+  static final int LALOAD = 0x2f;
+  static final int AALOAD = 0x32;
+  static final int ASTORE = 0x3a;
+  static final int LASTORE = 0x50;
+  static final int AASTORE = 0x53;
+  static final int POP = 0x57;
+  static final int DUP = 0x59;
+  static final int DUP2 = 0x5c;
+  static final int LADD = 0x61;
+  static final int IFEQ = 0x99;
+  static final int IFNE = 0x9a;
+  static final int GOTO = 0xa7;
+  static final int ARETURN = 0xb0;
+  static final int RETURN = 0xb1;
+  static final int GETSTATIC = 0xb2;
+  static final int GETFIELD = 0xb4;
+  static final int PUTFIELD = 0xb5;
+  static final int INVOKEVIRTUAL = 0xb6;
+  static final int INVOKESPECIAL = 0xb7;
+  static final int INVOKESTATIC = 0xb8;
+  static final int INVOKEINTERFACE = 0xb9;
+  static final int NEW = 0xbb;
+  static final int ANEWARRAY = 0xbd;
+  static final int CHECKCAST = 0xc0;
+  static final int INSTANCEOF = 0xc1;
+  static final int IFNULL = 0xc6;
+  static final int IFNONNULL = 0xc7;
+
+  private static final int MAGIC = 0xcafebabe;
+  private static final int VERSION = 49;
+
+  private static final int CONSTANT_UTF8 = 1;
+  private static final int CONSTANT_INTEGER = 3;
+  private static final int CONSTANT_CLASS = 7;
+  private static final int CONSTANT_STRING = 8;
+  private static final int CONSTANT_FIELDREF = 9;
+  private static final int CONSTANT_METHODREF = 10;
+  private static final int CONSTANT_INTERFACE_METHODREF = 11;
+  private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+  private final String name;
+  private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+  private final DataOutputStream pool = new DataOutputStream(poolBytes);
+  private final Map<String, Integer> poolIndexes = new HashMap<>();
+  private int poolCount = 1;
+  private final int thisClass;
+  private final int superClass;
+  private final List<byte[]> fields = new ArrayList<>();
+  private final List<byte[]> methods = new ArrayList<>();
+
+  /**
+   * @param name The internal name of the class, with slashes.
+   * @param superName The internal name of its superclass.
+   */
+  ClassFile(String name, String superName) {
+    this.name = name;
+    this.thisClass = classConstant(name);
+    this.superClass = classConstant(superName);
+  }
+
+  String getName() {
+    return name;
+  }
+
+  void addField(int access, String fieldName, String descriptor) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    write(() -> {
+      out.writeShort(access);
+      out.writeShort(utf8Constant(fieldName));
+      out.writeShort(utf8Constant(descriptor));
+      out.writeShort(0);
+    });
+    fields.add(bytes.toByteArray());
+  }
+
+  /**
+   * Returns a new method, whose code is added to the class when it is ended.
+   */
+  Code addMethod(int access, String methodName, String descriptor) {
+    return new Code(access, methodName, descriptor);
+  }
+
+  byte[] toByteArray() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    write(() -> {
+      out.writeInt(MAGIC);
+      out.writeShort(0);
+      out.writeShort(VERSION);
+      out.writeShort(poolCount);
+      poolBytes.writeTo(out);
+      out.writeShort(ACC_FINAL | ACC_SUPER | ACC_SYNTHETIC);
+      out.writeShort(thisClass);
+      out.writeShort(superClass);
+      out.writeShort(0);
+      out.writeShort(fields.size());
+      for (byte[] field: fields) {
+        out.write(field);
+      }
+      out.writeShort(methods.size());
+      for (byte[] method: methods) {
+        out.write(method);
+      }
+      out.writeShort(0);
+    });
+    return bytes.toByteArray();
+  }
+
+  private int utf8Constant(String value) {
+    return constant("U" + value, () -> {
+      pool.writeByte(CONSTANT_UTF8);
+      pool.writeUTF(value);
+    });
+  }
+
+  private int classConstant(String className) {
+    int nameIndex = utf8Constant(className);
+    return constant("C" + className, () -> {
+      pool.writeByte(CONSTANT_CLASS);
+      pool.writeShort(nameIndex);
+    });
+  }
+
+  private int stringConstant(String value) {
+    int valueIndex = utf8Constant(value);
+    return constant("S" + value, () -> {
+      pool.writeByte(CONSTANT_STRING);
+      pool.writeShort(valueIndex);
+    });
+  }
+
+  private int integerConstant(int value) {
+    return constant("I" + value, () -> {
+      pool.writeByte(CONSTANT_INTEGER);
+      pool.writeInt(value);
+    });
+  }
+
+  private int memberConstant(int tag, String owner, String memberName, String descriptor) {
+    int ownerIndex = classConstant(owner);
+    int memberNameIndex = utf8Constant(memberName);
+    int descriptorIndex = utf8Constant(descriptor);
+    int nameAndType = constant("N" + memberName + " " + descriptor, () -> {
+      pool.writeByte(CONSTANT_NAME_AND_TYPE);
+      pool.writeShort(memberNameIndex);
+      pool.writeShort(descriptorIndex);
+    });
+    return constant(tag + owner + "." + memberName + " " + descriptor, () -> {
+      pool.writeByte(tag);
+      pool.writeShort(ownerIndex);
+      pool.writeShort(nameAndType);
+    });
+  }
+
+  // Returns the index of the constant with the key, writing it to the pool
+  // the first time
+  private int constant(String key, Writer entry) {
+    Integer index = poolIndexes.get(key);
+    if (index == null) {
+      if (poolCount >= 0xffff) {
+        throw Problem.internalError("Too many constants in %s", name);
+      }
+      write(entry);
+      index = poolCount++;
+      poolIndexes.put(key, index);
+    }
+    return index;
+  }
+
+  private interface Writer {
+    void write() throws IOException;
+  }
+
+  private static void write(Writer writer) {
+    try {
+      writer.write();
+    } catch (IOException e) {
+      // only ever written to memory
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Returns how many words the arguments of a method take on the stack.
+   */
+  static int argumentWords(String descriptor) {
+    int words = 0;
+    for (int i = 1; descriptor.charAt(i) != ')'; ++i) {
+      char c = descriptor.charAt(i);
+      boolean isArray = false;
+      while (c == '[') {
+        isArray = true;
+        c = descriptor.charAt(++i);
+      }
+      if (c == 'L') {
+        i = descriptor.indexOf(';', i);
+      }
+      words += (!isArray && (c == 'J' || c == 'D')) ? 2 : 1;
+    }
+    return words;
+  }
+
+  private static int returnWords(String descriptor) {
+    char c = descriptor.charAt(descriptor.indexOf(')') + 1);
+    return (c == 'V') ? 0 : (c == 'J' || c == 'D') ? 2 : 1;
+  }
+
+  /**
+   * A position in a method's code that branches can jump to.
+   */
+  static final class Label {
+    private int position = -1;
+    // The stack depth at the label, once a branch to it has been emitted
+    private int stack = -1;
+    // Each branch emitted before the label was placed, as the position of its
+    // opcode and of its offset
+    private final List<int[]> fixups = new ArrayList<>();
+  }
+
+  /**
+   * The code of a method. The depth of the operand stack is tracked as the
+   * instructions are emitted; after an unconditional jump or a return, the
+   * code that follows is reachable only through a label, which has the depth
+   * of the branches to it.
+   */
+  final class Code {
+    private final int access;
+    private final String methodName;
+    private final String descriptor;
+    private byte[] code = new byte[256];
+    private int length;
+    private int stack;
+    private int maxStack;
+    private int maxLocals;
+
+    private Code(int access, String methodName, String descriptor) {
+      this.access = access;
+      this.methodName = methodName;
+      this.descriptor = descriptor;
+      this.maxLocals = 1 + argumentWords(descriptor);
+    }
+
+    int size() {
+      return length;
+    }
+
+    int getStack() {
+      return stack;
+    }
+
+    /**
+     * Returns the index of a new local variable of one word.
+     */
+    int newLocal() {
+      if (maxLocals >= 0xff) {
+        throw Problem.internalError("Too many locals in %s", name);
+      }
+      return maxLocals++;
+    }
+
+    void op(int opcode, int stackChange) {
+      writeByte(opcode);
+      adjust(stackChange);
+    }
+
+    void load(int local) {
+      writeByte(ALOAD);
+      writeByte(local);
+      adjust(1);
+    }
+
+    void store(int local) {
+      writeByte(ASTORE);
+      writeByte(local);
+      adjust(-1);
+    }
+
+    void pushInt(int value) {
+      if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+        writeByte(BIPUSH);
+        writeByte(value);
+      } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+        writeByte(SIPUSH);
+        writeShort(value);
+      } else {
+        ldc(integerConstant(value));
+        return;
+      }
+      adjust(1);
+    }
+
+    void pushString(String value) {
+      ldc(stringConstant(value));
+    }
+
+    private void ldc(int index) {
+      if (index < 0x100) {
+        writeByte(LDC);
+        writeByte(index);
+      } else {
+        writeByte(LDC_W);
+        writeShort(index);
+      }
+      adjust(1);
+    }
+
+    /**
+     * Emits an instruction that takes a class: {@code new},
+     * {@code anewarray}, {@code checkcast} or {@code instanceof}.
+     */
+    void type(int opcode, String className) {
+      writeByte(opcode);
+      writeShort(classConstant(className));
+      adjust((opcode == NEW) ? 1 : 0);
+    }
+
+    void field(int opcode, String owner, String fieldName, String fieldDescriptor) {
+      writeByte(opcode);
+      writeShort(memberConstant(CONSTANT_FIELDREF, owner, fieldName, fieldDescriptor));
+      int words = (fieldDescriptor.equals("J") || fieldDescriptor.equals("D")) ? 2 : 1;
+      switch (opcode) {
+        case GETSTATIC:
+          adjust(words);
+          break;
+        case GETFIELD:
+          adjust(words - 1);
+          break;
+        case PUTFIELD:
+          adjust(-words - 1);
+          break;
+        default:
+          throw Problem.internalError("Not a field instruction: %d", opcode);
+      }
+    }
+
+    void invoke(int opcode, String owner, String method, String methodDescriptor) {
+      boolean isInterface = opcode == INVOKEINTERFACE;
+      writeByte(opcode);
+      writeShort(memberConstant(isInterface ? CONSTANT_INTERFACE_METHODREF : CONSTANT_METHODREF,
+                                owner, method, methodDescriptor));
+      int argumentWords = argumentWords(methodDescriptor);
+      if (isInterface) {
+        writeByte(argumentWords + 1);
+        writeByte(0);
+      }
+      adjust(returnWords(methodDescriptor) - argumentWords - ((opcode == INVOKESTATIC) ? 0 : 1));
+    }
+
+    /**
+     * Emits a branch to the label, which pops the value it tests, if any.
+     */
+    void jump(int opcode, Label label) {
+      int start = length;
+      writeByte(opcode);
+      adjust((opcode == GOTO) ? 0 : -1);
+      if (label.stack < 0) {
+        label.stack = stack;
+      } else if (label.stack != stack) {
+        throw Problem.internalError("Inconsistent stack at a branch in %s", name);
+      }
+      if (label.position >= 0) {
+        writeShort(label.position - start);
+      } else {
+        label.fixups.add(new int[] {start, length});
+        writeShort(0);
+      }
+    }
+
+    /**
+     * Places the label at the current position, and patches the branches to
+     * it emitted so far.
+     */
+    void mark(Label label) {
+      label.position = length;
+      if (label.stack >= 0) {
+        stack = label.stack;
+      } else {
+        label.stack = stack;
+      }
+      for (int[] fixup: label.fixups) {
+        int offset = label.position - fixup[0];
+        code[fixup[1]] = (byte)(offset >> 8);
+        code[fixup[1] + 1] = (byte)offset;
+      }
+      label.fixups.clear();
+    }
+
+    /**
+     * Ends the method, adding it to the class.
+     */
+    void end() {
+      ByteArrayOutputStream method = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(method);
+      write(() -> {
+        out.writeShort(access);
+        out.writeShort(utf8Constant(methodName));
+        out.writeShort(utf8Constant(descriptor));
+        out.writeShort(1);
+        out.writeShort(utf8Constant("Code"));
+        out.writeInt(12 + length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(length);
+        out.write(code, 0, length);
+        out.writeShort(0);
+        out.writeShort(0);
+      });
+      methods.add(method.toByteArray());
+    }
+
+    private void writeByte(int value) {
+      if (length == code.length) {
+        code = Arrays.copyOf(code, 2 * length);
+      }
+      code[length++] = (byte)value;
+    }
+
+    private void writeShort(int value) {
+      writeByte(value >> 8);
+      writeByte(value);
+    }
+
+    private void adjust(int change) {
+      stack += change;
+      maxStack = Math.max(maxStack, stack);
+    }
+  }
+}
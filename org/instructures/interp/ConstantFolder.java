@@ -0,0 +1,181 @@
+package org.instructures.interp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import org.instructures.interp.values.*;
+
+/**
+ * Partial evaluation of compiled code, done by the {@link Analyzer} as it
+ * builds each node:
+ * <ul>
+ * <li>a call of a pure builtin whose arguments are all constants is replaced
+ * by its result;</li>
+ * <li>a reference to a {@code let} variable that is never assigned, and whose
+ * init is a constant, is replaced by that constant;</li>
+ * <li>an {@code if} or {@code cond} whose test is a constant is replaced by
+ * the branch that test selects.</li>
+ * </ul>
+ *
+ * A folded call depends on the builtin still being bound to its variable, so
+ * anything folded from it is guarded by the binding's {@link Assumption} and
+ * falls back to the unfolded code once the builtin is rebound.
+ *
+ * Folding is on unless the {@code scheme.fold} system property is false.
+ */
+final class ConstantFolder {
+  static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("scheme.fold", "true"));
+
+  private static final LongAdder foldedCalls = new LongAdder();
+  private static final LongAdder propagatedConstants = new LongAdder();
+  private static final LongAdder prunedBranches = new LongAdder();
+
+  private ConstantFolder() {
+  }
+
+  /**
+   * Returns the result of calling a pure builtin on the constant operands, or
+   * {@code null} if the call cannot be folded, including when the call would
+   * fail, since the error must only happen if the call is made.
+   *
+   * @param generic The code for the call, used if the assumption fails.
+   */
+  static Node foldCall(Value builtin, Assumption assumption, Node[] operands, Node generic) {
+    if (!ENABLED) {
+      return null;
+    }
+    List<Value> args = new ArrayList<>(operands.length);
+    List<Assumption> assumptions = new ArrayList<>();
+    assumptions.add(assumption);
+    for (Node operand: operands) {
+      Value value = constantValue(operand);
+      if (value == null) {
+        return null;
+      }
+      args.add(value);
+      assumptions.addAll(assumptionsOf(operand));
+    }
+    Value result;
+    try {
+      result = builtin.apply(args);
+    } catch (Problem.EvaluationError | ArithmeticException e) {
+      return null;
+    }
+    foldedCalls.increment();
+    return guard(assumptions, new Node.Constant(result), generic);
+  }
+
+  /**
+   * Returns the node to use for references to an unassigned variable bound to
+   * the init, or {@code null} if the init is not a constant.
+   */
+  static Node propagate(String variable, Node init) {
+    Value value = ENABLED ? constantValue(init) : null;
+    if (value == null) {
+      return null;
+    }
+    return guard(assumptionsOf(init), new Node.Constant(value), new Node.VariableReference(variable));
+  }
+
+  /**
+   * Records that a reference was replaced by the node from {@link #propagate}.
+   */
+  static void countPropagated() {
+    propagatedConstants.increment();
+  }
+
+  static Node foldIf(Node predicate, Node consequent, Node alternative) {
+    Node generic = new Node.If(predicate, consequent, alternative);
+    Value test = ENABLED ? constantValue(predicate) : null;
+    if (test == null) {
+      return generic;
+    }
+    prunedBranches.increment();
+    Node taken;
+    if (test.isTrue()) {
+      taken = consequent;
+    } else {
+      taken = (alternative != null) ? alternative : new Node.Constant(RuntimeValue.newUnspecified());
+    }
+    return guard(assumptionsOf(predicate), taken, generic);
+  }
+
+  /**
+   * Drops the clauses whose tests are constantly false, and any clauses after
+   * one whose test is constantly true.
+   */
+  static Node foldCond(Node[] tests, Node[] bodies) {
+    Node generic = new Node.Cond(tests, bodies);
+    if (!ENABLED) {
+      return generic;
+    }
+    List<Node> keptTests = new ArrayList<>();
+    List<Node> keptBodies = new ArrayList<>();
+    List<Assumption> assumptions = new ArrayList<>();
+    boolean isPruned = false;
+    for (int i = 0; i < tests.length; ++i) {
+      Value test = (tests[i] == null) ? null : constantValue(tests[i]);
+      if (tests[i] != null && test == null) {
+        keptTests.add(tests[i]);
+        keptBodies.add(bodies[i]);
+        continue;
+      }
+      if (tests[i] != null) {
+        isPruned = true;
+        assumptions.addAll(assumptionsOf(tests[i]));
+        if (!test.isTrue()) {
+          continue;
+        }
+      }
+      // this clause is always taken when reached
+      keptTests.add(null);
+      keptBodies.add((bodies[i] == null) ? new Node.Constant(test) : bodies[i]);
+      break;
+    }
+    if (!isPruned) {
+      return generic;
+    }
+    prunedBranches.increment();
+    Node simplified;
+    if (keptTests.isEmpty()) {
+      simplified = new Node.Constant(RuntimeValue.newUnspecified());
+    } else if (keptTests.get(0) == null) {
+      simplified = keptBodies.get(0);
+    } else {
+      simplified = new Node.Cond(keptTests.toArray(new Node[0]), keptBodies.toArray(new Node[0]));
+    }
+    return guard(assumptions, simplified, generic);
+  }
+
+  /**
+   * Reports how many nodes have been folded since the interpreter started.
+   */
+  static String report() {
+    return String.format("Constant folding: %d calls folded, %d variable references propagated, %d branches pruned",
+      foldedCalls.sum(), propagatedConstants.sum(), prunedBranches.sum());
+  }
+
+  // Returns the value of a node that always evaluates to the same constant
+  // while its assumptions hold, or null.
+  private static Value constantValue(Node node) {
+    if (node instanceof Node.Guarded) {
+      node = ((Node.Guarded)node).getFast();
+    }
+    return (node instanceof Node.Constant) ? ((Node.Constant)node).getValue() : null;
+  }
+
+  private static List<Assumption> assumptionsOf(Node node) {
+    if (node instanceof Node.Guarded) {
+      return ((Node.Guarded)node).getAssumptions();
+    }
+    return Collections.emptyList();
+  }
+
+  private static Node guard(List<Assumption> assumptions, Node fast, Node generic) {
+    if (assumptions.isEmpty()) {
+      return fast;
+    }
+    return new Node.Guarded(assumptions, fast, generic);
+  }
+}
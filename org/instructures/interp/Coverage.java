@@ -0,0 +1,161 @@
+package org.instructures.interp;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Counts how many times each branch of every {@code if} and {@code cond}, and
+ * the body of every {@code lambda}, has been executed. Each one is given a
+ * slot in an array of counters when it is analyzed, and its node increments
+ * that slot directly; the increments are not synchronized, so counts from
+ * concurrent threads may be slightly low.
+ *
+ * Coverage is enabled by running with {@code -Dscheme.coverage=<file>}, which
+ * also compiles every top-level form so that all of them are instrumented.
+ * When the JVM exits, an LCOV tracefile is written to the file, with a record
+ * for each source file: the procedures as functions, the branches of each
+ * form as branches, and the greatest count on each line as its line count.
+ * Only forms read from a named source are counted.
+ */
+final class Coverage {
+  static final boolean ENABLED = System.getProperty("scheme.coverage") != null;
+
+  private static final int BLOCK_SIZE = 4096;
+
+  // Slot i is at blocks[i / BLOCK_SIZE][i % BLOCK_SIZE], and described by sites[i]
+  private static final List<long[]> blocks = new ArrayList<>();
+  private static final List<Site> sites = new ArrayList<>();
+  private static int forms;
+
+  static {
+    if (ENABLED) {
+      String outputFile = System.getProperty("scheme.coverage");
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> dump(outputFile)));
+    }
+  }
+
+  private Coverage() {
+  }
+
+  /**
+   * Returns a new id for a form whose branches are to be counted.
+   */
+  static synchronized int newForm() {
+    return forms++;
+  }
+
+  /**
+   * Returns a node that counts each execution of the given one in a new slot.
+   */
+  static synchronized Node counted(Site site, Node node) {
+    int id = sites.size();
+    sites.add(site);
+    if (id % BLOCK_SIZE == 0) {
+      blocks.add(new long[BLOCK_SIZE]);
+    }
+    return new Node.Counted(blocks.get(id / BLOCK_SIZE), id % BLOCK_SIZE, node);
+  }
+
+  private static synchronized void dump(String outputFile) {
+    Map<String, SourceFile> files = new TreeMap<>();
+    for (int id = 0; id < sites.size(); ++id) {
+      Site site = sites.get(id);
+      long count = blocks.get(id / BLOCK_SIZE)[id % BLOCK_SIZE];
+      files.computeIfAbsent(site.position.getSourceName(), k -> new SourceFile()).add(site, count);
+    }
+    try (PrintWriter out = new PrintWriter(new FileWriter(outputFile))) {
+      for (Map.Entry<String, SourceFile> entry: files.entrySet()) {
+        entry.getValue().write(entry.getKey(), out);
+      }
+    } catch (IOException e) {
+      System.err.printf("%s:%s%n", outputFile, e.getMessage());
+    }
+  }
+
+  /**
+   * What a slot counts: a branch of a form, or the body of a procedure.
+   */
+  static final class Site {
+    private final SourcePosition position;
+    // The form the branch belongs to, or -1 for a procedure body
+    private final int form;
+    private final int branch;
+    private volatile Lambda.Template procedure;
+
+    private Site(SourcePosition position, int form, int branch) {
+      this.position = position;
+      this.form = form;
+      this.branch = branch;
+    }
+
+    static Site branch(SourcePosition position, int form, int branch) {
+      return new Site(position, form, branch);
+    }
+
+    static Site procedure(SourcePosition position) {
+      return new Site(position, -1, 0);
+    }
+
+    /**
+     * Sets the procedure whose body this counts, for its name.
+     */
+    void setProcedure(Lambda.Template procedure) {
+      this.procedure = procedure;
+    }
+
+    private String procedureName() {
+      Lambda.Template template = procedure;
+      String name = (template == null) ? null : template.getName();
+      return (name != null) ? name : "lambda@" + position.getLine();
+    }
+  }
+
+  private static final class SourceFile {
+    // Each function's line and count, by name
+    private final Map<String, long[]> functions = new LinkedHashMap<>();
+    private final List<String> branches = new ArrayList<>();
+    private final Map<Integer, Long> lines = new TreeMap<>();
+    private int branchesHit;
+
+    private void add(Site site, long count) {
+      int line = site.position.getLine();
+      if (site.form < 0) {
+        long[] function = functions.computeIfAbsent(site.procedureName(), k -> new long[] {line, 0});
+        function[1] += count;
+      } else {
+        branches.add(String.format("BRDA:%d,%d,%d,%d", line, site.form, site.branch, count));
+        branchesHit += (count > 0) ? 1 : 0;
+      }
+      lines.merge(line, count, Math::max);
+    }
+
+    private void write(String sourceName, PrintWriter out) {
+      out.println("TN:");
+      out.printf("SF:%s%n", sourceName);
+      int functionsHit = 0;
+      for (Map.Entry<String, long[]> function: functions.entrySet()) {
+        out.printf("FN:%d,%s%n", function.getValue()[0], function.getKey());
+      }
+      for (Map.Entry<String, long[]> function: functions.entrySet()) {
+        out.printf("FNDA:%d,%s%n", function.getValue()[1], function.getKey());
+        functionsHit += (function.getValue()[1] > 0) ? 1 : 0;
+      }
+      out.printf("FNF:%d%nFNH:%d%n", functions.size(), functionsHit);
+      branches.forEach(out::println);
+      out.printf("BRF:%d%nBRH:%d%n", branches.size(), branchesHit);
+      int linesHit = 0;
+      for (Map.Entry<Integer, Long> line: lines.entrySet()) {
+        out.printf("DA:%d,%d%n", line.getKey(), line.getValue());
+        linesHit += (line.getValue() > 0) ? 1 : 0;
+      }
+      out.printf("LF:%d%nLH:%d%n", lines.size(), linesHit);
+      out.println("end_of_record");
+    }
+  }
+}
@@ -4,11 +4,15 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.StringReader;
+import java.util.ArrayList;
 import java.util.Deque;
 import java.util.LinkedList;
+import java.util.List;
 import org.instructures.interp.values.CompoundDatum;
 import org.instructures.interp.values.Datum;
 import org.instructures.interp.values.LexemeDatum;
+import org.instructures.interp.values.Value;
+import org.instructures.interp.values.VectorDatum;
 
 /**
  * A parser for a subset of the data specified in the Revised^6 Report on the
@@ -16,32 +20,47 @@ import org.instructures.interp.values.LexemeDatum;
  * (Datum Syntax).
  *
  * The subset only allows for the lexeme datum values specified in
- * {@link TokenType}, together with some of the list datum rules, including
- * dotted notation and basic quotes.
+ * {@link TokenType}, together with vectors and some of the list datum rules,
+ * including dotted notation, quotes and quasiquotes.
  * 
  * <pre>
  *   Datum ::= LexemeDatum | CompoundDatum
  *   LexemeDatum ::= Boolean | Number | Character | String | Symbol
  *   Symbol ::= Identifier
- *   CompoundDatum ::= List
+ *   CompoundDatum ::= List | Vector
+ *   Vector ::= `#(` {Datum} `)`
  *   List ::= `(` {Datum} `)`
  *          | `[` {Datum} `]`
  *          | `(` [Datum] `.` Datum `)`
  *          | `[` [Datum] `.` Datum `]`
  *          | Abbreviation
- *   Abbreviation ::= `'` Datum
+ *   Abbreviation ::= `'` Datum | `` ` `` Datum | `,` Datum | `,@` Datum
  * </pre>
  */
 public class DatumParser {
   private final TokenScanner scanner;
+  private final String sourceName;
+  // The next token, or null until it is needed, so that a datum is returned
+  // as soon as it is complete, without waiting for more input
   private Lexeme lookahead;
+  private SourcePosition lastPosition;
 
   /**
    * Constructs a DatumParser that consumes the given input source.
    */
   public DatumParser(BufferedReader in) throws IOException {
+    this(in, null);
+  }
+
+  /**
+   * Constructs a DatumParser that consumes the given input source, recording
+   * the {@link SourcePosition} of every list it reads.
+   *
+   * @param sourceName The name of the source, such as its filename.
+   */
+  public DatumParser(BufferedReader in, String sourceName) throws IOException {
     this.scanner = new TokenScanner(in);
-    readNextToken();
+    this.sourceName = sourceName;
   }
 
   /**
@@ -57,20 +76,20 @@ public class DatumParser {
   }
   
   private CompoundDatum parseList(TokenType start, TokenType end) throws IOException {
-    Lexeme startingLocation = lookahead;
+    Lexeme startingLocation = lookahead();
     match(start);
     Deque<Datum> elements = new LinkedList<>();
-    while (lookahead.isNoneOf(end, TokenType.DOT, TokenType.EOF)) {
+    while (lookahead().isNoneOf(end, TokenType.DOT, TokenType.EOF)) {
       elements.addLast(nextDatum());
     }
-    if (lookahead.matches(TokenType.EOF)) {
+    if (lookahead().matches(TokenType.EOF)) {
       throw Problem.noMatch(startingLocation, "%s must be closed with %s",
         start.getDescription(), end.getDescription());
     }
     CompoundDatum result;
-    if (lookahead.matches(TokenType.DOT)) {
+    if (lookahead().matches(TokenType.DOT)) {
       if (elements.isEmpty()) {
-        throw Problem.noMatch(lookahead, "Expression expected before .");
+        throw Problem.noMatch(lookahead(), "Expression expected before .");
       }
       Datum penultimate = elements.removeLast();
       match(TokenType.DOT);
@@ -83,6 +102,13 @@ public class DatumParser {
       result = CompoundDatum.newPair(elements.removeLast(), result);
     }
     match(end);
+    if (sourceName != null && result.isPair()) {
+      int line = startingLocation.getLineNumber();
+      if (lastPosition == null || lastPosition.getLine() != line) {
+        lastPosition = new SourcePosition(sourceName, line);
+      }
+      SourcePosition.record(result, lastPosition);
+    }
     return result;
   }
 
@@ -114,76 +140,92 @@ public class DatumParser {
   public Datum nextDatum() throws IOException {
 	
 	// These if statements take care of all LexemeDatum
-	if(lookahead.getTokenType() == TokenType.BOOLEAN)
+	if(lookahead().getTokenType() == TokenType.BOOLEAN)
 	{
-		LexemeDatum data = lookahead.getValue();
+		LexemeDatum data = lookahead().getValue();
 		readNextToken();
 		return data;
 	}
-	else if(lookahead.getTokenType() == TokenType.STRING)
+	else if(lookahead().getTokenType() == TokenType.STRING)
 	{
-		LexemeDatum data = lookahead.getValue();
+		LexemeDatum data = lookahead().getValue();
 		readNextToken();
 		return data;
 	}
-	else if(lookahead.getTokenType() == TokenType.CHARACTER)
+	else if(lookahead().getTokenType() == TokenType.CHARACTER)
 	{
-		LexemeDatum data = lookahead.getValue();
+		LexemeDatum data = lookahead().getValue();
 		readNextToken();
 		return data;
 	}
-	else if(lookahead.getTokenType() == TokenType.NUMBER)
+	else if(lookahead().getTokenType() == TokenType.NUMBER)
 	{
 		
-		LexemeDatum data = lookahead.getValue();
+		LexemeDatum data = lookahead().getValue();
 		readNextToken();
 		return data;
 		
 	}
-	else if(lookahead.getTokenType() == TokenType.SYMBOL)
+	else if(lookahead().getTokenType() == TokenType.SYMBOL)
 	{
-		LexemeDatum data = lookahead.getValue();
+		LexemeDatum data = lookahead().getValue();
 		readNextToken();
 		return data;
 	}
-	else if(lookahead.getTokenType() == TokenType.RPAREN)
+	else if(lookahead().getTokenType() == TokenType.RPAREN)
 	{
-		LexemeDatum data = lookahead.getValue();
+		LexemeDatum data = lookahead().getValue();
 		return data;
 	}
-	else if(lookahead.getTokenType() == TokenType.RBRACK)
+	else if(lookahead().getTokenType() == TokenType.RBRACK)
 	{
-		LexemeDatum data = lookahead.getValue();
+		LexemeDatum data = lookahead().getValue();
 		return data;
 	}
-	else if(lookahead.getTokenType() == TokenType.DOT)
+	else if(lookahead().getTokenType() == TokenType.DOT)
 	{
-		LexemeDatum data = lookahead.getValue();
+		LexemeDatum data = lookahead().getValue();
 		return data;
 	}
 	
 	// These cases will cover compoundDatum
-	else if(lookahead.getTokenType() == TokenType.SQUOTE)
+	else if(lookahead().getTokenType() == TokenType.SQUOTE)
 	{
-		Lexeme current = lookahead;
+		Lexeme current = lookahead();
 		readNextToken();
 		Datum sequel = nextDatum();
 		Lexeme QLex = new Lexeme(TokenType.SYMBOL, "quote", current.getLineNumber());
 		CompoundDatum data = CompoundDatum.newList(QLex.getValue(), sequel);
 		return data;
 	}
-	else if(lookahead.getTokenType() == TokenType.LPAREN)
+	else if(lookahead().getTokenType() == TokenType.BACKQUOTE)
+	{
+		return parseAbbreviation("quasiquote");
+	}
+	else if(lookahead().getTokenType() == TokenType.COMMA)
+	{
+		return parseAbbreviation("unquote");
+	}
+	else if(lookahead().getTokenType() == TokenType.COMMA_AT)
+	{
+		return parseAbbreviation("unquote-splicing");
+	}
+	else if(lookahead().getTokenType() == TokenType.LPAREN)
 	{
 		CompoundDatum data = parseList(TokenType.LPAREN, TokenType.RPAREN);
 		return data;
 	}
-	else if(lookahead.getTokenType() == TokenType.LBRACK)
+	else if(lookahead().getTokenType() == TokenType.VECTOR_START)
+	{
+		return parseVector();
+	}
+	else if(lookahead().getTokenType() == TokenType.LBRACK)
 	{
 		CompoundDatum data = parseList(TokenType.LBRACK, TokenType.RBRACK);
 		return data;
 	}
 	// If it is none of these, then it should be the EOF
-	else if(lookahead.getTokenType() == TokenType.EOF)
+	else if(lookahead().getTokenType() == TokenType.EOF)
 	{
 		return null;
 	}
@@ -201,20 +243,57 @@ public class DatumParser {
   }
 
   // Your code here//
+
+  private VectorDatum parseVector() throws IOException {
+    Lexeme startingLocation = lookahead();
+    match(TokenType.VECTOR_START);
+    List<Datum> elements = new ArrayList<>();
+    while (lookahead().isNoneOf(TokenType.RPAREN, TokenType.EOF)) {
+      if (lookahead().matches(TokenType.DOT)) {
+        throw Problem.noMatch(lookahead(), "A vector cannot have a dotted tail");
+      }
+      elements.add(nextDatum());
+    }
+    if (lookahead().matches(TokenType.EOF)) {
+      throw Problem.noMatch(startingLocation, "%s must be closed with %s",
+        TokenType.VECTOR_START.getDescription(), TokenType.RPAREN.getDescription());
+    }
+    match(TokenType.RPAREN);
+    return VectorDatum.newVector(elements.toArray(new Value[0]));
+  }
+
+  // Reads the datum following an abbreviation token, and wraps it in a list
+  // headed by the symbol the abbreviation stands for.
+  private CompoundDatum parseAbbreviation(String symbolName) throws IOException {
+    Lexeme abbreviation = lookahead();
+    readNextToken();
+    Datum sequel = nextDatum();
+    if (sequel == null) {
+      throw Problem.noMatch(abbreviation, "Expression expected after %s", abbreviation.getTokenType().getDescription());
+    }
+    return CompoundDatum.newList(LexemeDatum.newSymbol(symbolName), sequel);
+  }
   
   private void match(TokenType expected) throws IOException {
-    if (lookahead.isNoneOf(expected)) {
-      String found = (lookahead.matches(TokenType.EOF))
-        ? "end of file" : String.format("\"%s\"", lookahead.getOriginalText());
-      throw Problem.noMatch(lookahead, "Expected %s but found %s", expected, found);
+    if (lookahead().isNoneOf(expected)) {
+      String found = (lookahead().matches(TokenType.EOF))
+        ? "end of file" : String.format("\"%s\"", lookahead().getOriginalText());
+      throw Problem.noMatch(lookahead(), "Expected %s but found %s", expected, found);
     }
     readNextToken();
   }
 
-  private void readNextToken() throws IOException {
-    this.lookahead = scanner.nextToken();
-    if (lookahead.hasMessage()) {
-      throw Problem.invalidToken(lookahead);
+  private void readNextToken() {
+    this.lookahead = null;
+  }
+
+  private Lexeme lookahead() throws IOException {
+    if (lookahead == null) {
+      lookahead = scanner.nextToken();
+      if (lookahead.hasMessage()) {
+        throw Problem.invalidToken(lookahead);
+      }
     }
+    return lookahead;
   }
 }
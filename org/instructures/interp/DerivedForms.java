@@ -0,0 +1,257 @@
+package org.instructures.interp;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import org.instructures.interp.values.*;
+import org.instructures.interp.values.LexemeDatum.SymbolDatum;
+
+/**
+ * Rewrites the binding and iteration forms into the core forms: {@code let},
+ * {@code let*}, {@code letrec}, {@code letrec*}, and {@code do}, as well as
+ * {@code define-record-type}.
+ *
+ * <pre>
+ *   (let ((v i) ...) b ...)        =&gt; ((lambda (v ...) b ...) i ...)
+ *   (let n ((v i) ...) b ...)      =&gt; ((letrec ((n (lambda (v ...) b ...))) n) i ...)
+ *   (let* ((v i) rest ...) b ...)  =&gt; (let ((v i)) (let* (rest ...) b ...))
+ *   (letrec ((v i) ...) b ...)     =&gt; (let () (define v i) ... (let () b ...))
+ *   (do ((v i s) ...) (t r ...) c ...)
+ *     =&gt; (let loop ((v i) ...) (if t (begin r ...) (begin c ... (loop s ...))))
+ * </pre>
+ *
+ * A record type definition is rewritten into definitions of its descriptor
+ * and procedures, made by builtins whose names cannot be written in source
+ * text, just as the loop of a {@code do} is named:
+ *
+ * <pre>
+ *   (define-record-type t (c f ...) p (f a [m]) ...)
+ *     =&gt; (begin (define t (make-type 't '(f ...)))
+ *                (define c (constructor t '(f ...)))
+ *                (define p (predicate t))
+ *                (define a (accessor t 'f))
+ *                (define m (modifier t 'f)) ...)
+ * </pre>
+ *
+ * The expansions define what these forms mean, and are used as they are by
+ * the variable usage scan. The analyzer compiles {@code let} and loops more
+ * directly, but with the same meaning.
+ */
+final class DerivedForms {
+  /**
+   * The variable naming the loop procedure of an expanded {@code do}. It
+   * cannot be written in source text, so it can never capture a user's
+   * variable.
+   */
+  static final SymbolDatum DO_LOOP = LexemeDatum.newSymbol(" do-loop");
+
+  // The builtins that make a record type and its procedures
+  static final SymbolDatum RECORD_TYPE = LexemeDatum.newSymbol(" make-record-type");
+  static final SymbolDatum RECORD_CONSTRUCTOR = LexemeDatum.newSymbol(" record-constructor");
+  static final SymbolDatum RECORD_PREDICATE = LexemeDatum.newSymbol(" record-predicate");
+  static final SymbolDatum RECORD_ACCESSOR = LexemeDatum.newSymbol(" record-accessor");
+  static final SymbolDatum RECORD_MODIFIER = LexemeDatum.newSymbol(" record-modifier");
+
+  private static final Map<SymbolDatum, Function<LinkedList<Value>, Datum>> EXPANDERS =
+    new ConcurrentHashMap<>();
+
+  static {
+    EXPANDERS.put(LexemeDatum.newSymbol("let"), DerivedForms::expandLet);
+    EXPANDERS.put(LexemeDatum.newSymbol("let*"), DerivedForms::expandLetStar);
+    EXPANDERS.put(LexemeDatum.newSymbol("letrec"), DerivedForms::expandLetrec);
+    EXPANDERS.put(LexemeDatum.newSymbol("letrec*"), DerivedForms::expandLetrec);
+    EXPANDERS.put(LexemeDatum.newSymbol("do"), DerivedForms::expandDo);
+    EXPANDERS.put(LexemeDatum.newSymbol("define-record-type"), DerivedForms::expandDefineRecordType);
+  }
+
+  private DerivedForms() {
+  }
+
+  static boolean isDerived(Value listHead) {
+    return EXPANDERS.containsKey(listHead);
+  }
+
+  /**
+   * Returns true if the form binds variables of its own, in the way of
+   * {@code let}: a binding list, after a name for a named {@code let}.
+   */
+  static boolean isBindingForm(Value listHead) {
+    return isDerived(listHead) && listHead != LexemeDatum.newSymbol("define-record-type");
+  }
+
+  /**
+   * Expands a derived form by one step. A syntax error is thrown if the form
+   * is not well-formed.
+   */
+  static Datum expand(Datum sExpr) {
+    Function<LinkedList<Value>, Datum> expander = EXPANDERS.get(sExpr.getCar());
+    if (expander == null) {
+      throw Problem.internalError("Not a derived form: %s", sExpr.toSyntaxString());
+    }
+    LinkedList<Value> body = sExpr.asProperList();
+    body.removeFirst();
+    return expander.apply(body);
+  }
+
+  /**
+   * The parts of a {@code let} binding list: {@code ((variable init) ...)}.
+   */
+  static final class Bindings {
+    final List<Value> variables = new ArrayList<>();
+    final List<Value> inits = new ArrayList<>();
+    final List<Value> steps = new ArrayList<>();
+
+    /**
+     * @param allowSteps Whether each binding may have a third part, as the
+     *        bindings of {@code do} do. Bindings without one step to their own
+     *        variable.
+     */
+    static Bindings parse(Value bindingList, String context, boolean allowSteps) {
+      Bindings result = new Bindings();
+      SchemeEvaluator.assertCondition(bindingList.isList(), "Expected bindings in %s", context);
+      for (Value binding: bindingList.asProperList()) {
+        SchemeEvaluator.assertCondition(binding.isPair(), "Invalid binding in %s", context);
+        LinkedList<Value> parts = binding.asProperList();
+        Value variable = parts.removeFirst();
+        SchemeEvaluator.assertCondition(variable.isSymbol(), "Expected a variable in %s", context);
+        SchemeEvaluator.assertCondition(!result.variables.contains(variable),
+          "Duplicate variable in %s: %s", context, variable);
+        result.variables.add(variable);
+        result.inits.add(SchemeEvaluator.next(parts));
+        if (allowSteps && !parts.isEmpty()) {
+          result.steps.add(parts.removeFirst());
+        } else {
+          result.steps.add(variable);
+        }
+        SchemeEvaluator.noExtras(parts, context);
+      }
+      return result;
+    }
+  }
+
+  private static Datum expandLet(LinkedList<Value> body) {
+    Value first = SchemeEvaluator.next(body);
+    if (first.isSymbol()) {
+      // named let
+      Bindings bindings = Bindings.parse(SchemeEvaluator.next(body), "let", false);
+      SchemeEvaluator.assertCondition(!body.isEmpty(), "Empty body in let");
+      Datum procedure = cons(symbol("lambda"), cons(list(bindings.variables), list(body)));
+      Datum letrec = list(symbol("letrec"), list(list(first, procedure)), first);
+      return cons(letrec, list(bindings.inits));
+    }
+    Bindings bindings = Bindings.parse(first, "let", false);
+    SchemeEvaluator.assertCondition(!body.isEmpty(), "Empty body in let");
+    Datum procedure = cons(symbol("lambda"), cons(list(bindings.variables), list(body)));
+    return cons(procedure, list(bindings.inits));
+  }
+
+  private static Datum expandLetStar(LinkedList<Value> body) {
+    LinkedList<Value> bindings = SchemeEvaluator.next(body).asProperList();
+    SchemeEvaluator.assertCondition(!body.isEmpty(), "Empty body in let*");
+    if (bindings.size() <= 1) {
+      return cons(symbol("let"), cons(list(bindings), list(body)));
+    }
+    Value first = bindings.removeFirst();
+    Datum rest = cons(symbol("let*"), cons(list(bindings), list(body)));
+    return list(symbol("let"), list(first), rest);
+  }
+
+  private static Datum expandLetrec(LinkedList<Value> body) {
+    Bindings bindings = Bindings.parse(SchemeEvaluator.next(body), "letrec", false);
+    SchemeEvaluator.assertCondition(!body.isEmpty(), "Empty body in letrec");
+    List<Value> forms = new ArrayList<>();
+    forms.add(symbol("let"));
+    forms.add(CompoundDatum.newEmptyList());
+    for (int i = 0; i < bindings.variables.size(); ++i) {
+      forms.add(list(symbol("define"), bindings.variables.get(i), bindings.inits.get(i)));
+    }
+    forms.add(cons(symbol("let"), cons(CompoundDatum.newEmptyList(), list(body))));
+    return list(forms);
+  }
+
+  private static Datum expandDo(LinkedList<Value> body) {
+    Bindings bindings = Bindings.parse(SchemeEvaluator.next(body), "do", true);
+    Value exit = SchemeEvaluator.next(body);
+    SchemeEvaluator.assertCondition(exit.isPair(), "Expected a test in do");
+    LinkedList<Value> exitParts = exit.asProperList();
+    Value test = exitParts.removeFirst();
+    Datum result = cons(symbol("begin"), list(exitParts));
+    List<Value> commands = new ArrayList<>(body);
+    commands.add(cons(DO_LOOP, list(bindings.steps)));
+    Datum iterate = cons(symbol("begin"), list(commands));
+    List<Value> letBindings = new ArrayList<>();
+    for (int i = 0; i < bindings.variables.size(); ++i) {
+      letBindings.add(list(bindings.variables.get(i), bindings.inits.get(i)));
+    }
+    return list(symbol("let"), DO_LOOP, list(letBindings), list(symbol("if"), test, result, iterate));
+  }
+
+  private static Datum expandDefineRecordType(LinkedList<Value> body) {
+    Value typeName = SchemeEvaluator.next(body);
+    SchemeEvaluator.assertCondition(typeName.isSymbol(), "Expected a type name in define-record-type");
+    Value constructorSpec = SchemeEvaluator.next(body);
+    Value predicate = SchemeEvaluator.next(body);
+    SchemeEvaluator.assertCondition(predicate.isSymbol(), "Expected a predicate name in define-record-type");
+    List<Value> fields = new ArrayList<>();
+    List<Value> definitions = new ArrayList<>();
+    for (Value fieldSpec: body) {
+      SchemeEvaluator.assertCondition(fieldSpec.isPair(), "Invalid field in define-record-type");
+      LinkedList<Value> parts = fieldSpec.asProperList();
+      Value field = parts.removeFirst();
+      SchemeEvaluator.assertCondition(field.isSymbol() && !fields.contains(field),
+        "Invalid field in define-record-type: %s", field);
+      fields.add(field);
+      Value accessor = SchemeEvaluator.next(parts);
+      SchemeEvaluator.assertCondition(accessor.isSymbol(), "Expected an accessor name in define-record-type");
+      definitions.add(list(symbol("define"), accessor, list(RECORD_ACCESSOR, typeName, quote(field))));
+      if (!parts.isEmpty()) {
+        Value modifier = parts.removeFirst();
+        SchemeEvaluator.assertCondition(modifier.isSymbol(), "Expected a modifier name in define-record-type");
+        definitions.add(list(symbol("define"), modifier, list(RECORD_MODIFIER, typeName, quote(field))));
+      }
+      SchemeEvaluator.noExtras(parts, "define-record-type");
+    }
+    // a constructor given by name alone takes every field, in order
+    Value constructor = constructorSpec;
+    Value constructorFields = list(fields);
+    if (constructorSpec.isPair()) {
+      LinkedList<Value> parts = constructorSpec.asProperList();
+      constructor = parts.removeFirst();
+      for (Value field: parts) {
+        SchemeEvaluator.assertCondition(fields.contains(field), "Not a field of %s: %s", typeName, field);
+      }
+      constructorFields = list(parts);
+    }
+    SchemeEvaluator.assertCondition(constructor.isSymbol(), "Expected a constructor name in define-record-type");
+    List<Value> forms = new ArrayList<>();
+    forms.add(symbol("begin"));
+    forms.add(list(symbol("define"), typeName, list(RECORD_TYPE, quote(typeName), quote(list(fields)))));
+    forms.add(list(symbol("define"), constructor, list(RECORD_CONSTRUCTOR, typeName, quote(constructorFields))));
+    forms.add(list(symbol("define"), predicate, list(RECORD_PREDICATE, typeName)));
+    forms.addAll(definitions);
+    return list(forms);
+  }
+
+  private static Datum quote(Value datum) {
+    return list(symbol("quote"), datum);
+  }
+
+  private static SymbolDatum symbol(String name) {
+    return LexemeDatum.newSymbol(name);
+  }
+
+  private static Datum cons(Value car, Value cdr) {
+    return CompoundDatum.newPair(car, cdr);
+  }
+
+  private static Datum list(Value... values) {
+    return CompoundDatum.newList(values);
+  }
+
+  private static Datum list(List<? extends Value> values) {
+    return CompoundDatum.newList(values);
+  }
+}
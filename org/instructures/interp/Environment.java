@@ -1,17 +1,54 @@
 package org.instructures.interp;
 
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 import org.instructures.interp.values.Value;
 
 public abstract class Environment {
+  // The global environment of the evaluator running on each thread
+  private static final ThreadLocal<Environment> session = new ThreadLocal<>();
+
   /**
    * Creates an empty environment where new bindings can be added to it.
    */
   public static Environment newEmptyEnvironment() {
-    return new NullEnvironment().extend(Collections.emptyList(), Collections.emptyList());
+    return new GlobalEnvironment(PersistentMap.empty(), PersistentMap.empty());
+  }
+
+  /**
+   * Returns a new global environment with the same bindings as this one, in
+   * constant time. This environment is frozen by the fork, and its bindings
+   * stay as they are, so that every fork can start from them. Each fork's own
+   * changes are seen by no other environment; but the procedures defined
+   * before the fork, when applied in it, use its bindings: see
+   * {@link #replaceSession}.
+   */
+  public Environment fork() {
+    throw Problem.internalError("Only a global environment can be forked");
+  }
+
+  /**
+   * Makes the global environment the current thread's session, and returns the
+   * one it replaces, or {@code null} if there was none. While a thread is in
+   * a session, the global variables of the environments the session was
+   * forked from are those of the session: a procedure defined in a prelude
+   * sees the definitions of the session it is applied in, and its own
+   * assignments of global variables go to that session's copy of them.
+   */
+  static Environment replaceSession(Environment global) {
+    if (global instanceof GlobalEnvironment) {
+      ((GlobalEnvironment)global).isEvaluatedIn = true;
+    }
+    Environment previous = session.get();
+    session.set(global);
+    return previous;
+  }
+
+  static Environment currentSession() {
+    return session.get();
   }
 
   public abstract void defineVariable(String variable, Value value);
@@ -20,66 +57,426 @@ public abstract class Environment {
 
   public abstract void setVariable(String variable, Value newValue);
 
+  /**
+   * Returns the assumption that the variable still has the binding it had when
+   * {@link #assumeStable} was called on the outermost environment, or
+   * {@code null} if there is no such assumption, it has been invalidated, or
+   * the variable is shadowed by a binding in an inner environment.
+   */
+  abstract Assumption stableBinding(String variable);
+
+  /**
+   * Records that the current binding of the variable is not expected to
+   * change. Any later {@code define} or {@code set!} of a variable with this
+   * name, in any environment extended from the outermost one, invalidates the
+   * assumption.
+   */
+  void assumeStable(String variable) {
+    assumptions().put(variable, new Assumption());
+  }
+
+  abstract Map<String, Assumption> assumptions();
+
+  /**
+   * Returns the macro with the given keyword in this environment's global
+   * environment, or {@code null}.
+   */
+  abstract SpecialForm lookupMacro(String keyword);
+
+  /**
+   * Defines a macro in this environment's global environment. Like a global
+   * variable, it is copied to forks of the global environment.
+   */
+  abstract void defineMacro(String keyword, SpecialForm macro);
+
   /**
    * Creates a new environment by extending the given one. Any bindings not
    * found in the extended environment will be checked in the base environment.
    */
   public Environment extend(List<String> varNames, List<Value> values) {
-    Environment extended = new ExtendedEnvironment(this);
+    return extend(varNames, values, null);
+  }
+
+  /**
+   * Extends this environment with a frame for a body of code whose variable
+   * usage is known, which allows closures created in the frame to capture
+   * just the variables they use.
+   */
+  Environment extend(List<String> varNames, List<Value> values, VariableUsage usage) {
+    ExtendedEnvironment extended = new ExtendedEnvironment(this, usage);
     if (varNames.size() != values.size()) {
       throw Problem.internalError("binding names=%d but binding values=%d!", varNames.size(), values.size());
     }
+    if (usage != null && usage.isComplete()) {
+      // bound up front, so that neither the defines nor closures capturing
+      // the variables before them add to the frame once it can be shared
+      for (String variable: usage.getDefined()) {
+        extended.frame.put(variable, new Box(null, this));
+      }
+    }
     for (int i = 0; i < varNames.size(); ++i) {
-      extended.defineVariable(varNames.get(i), values.get(i));
+      extended.frame.put(varNames.get(i), values.get(i));
     }
     return extended;
   }
 
-  private static class NullEnvironment extends Environment {
+  /**
+   * Replaces the values of variables bound directly in this frame, as a loop
+   * does to start its next iteration in the same frame. Unlike
+   * {@link #setVariable}, this is not an assignment that anything else needs
+   * to know about.
+   */
+  abstract void rebind(List<String> varNames, Value[] values);
+
+  /**
+   * Creates the environment for a closure whose body has the given variable
+   * usage. Rather than the whole of this environment, the result holds just
+   * the body's free variables: a copy of each one that can never change, and
+   * a shared box for each one that can. Global variables are left to be found
+   * in the outermost environment. If the usage is incomplete, or a variable's
+   * binding cannot be pinned down, this environment is returned unchanged.
+   */
+  Environment capture(VariableUsage usage) {
+    return this;
+  }
+
+  /**
+   * The outermost environment. Its bindings are kept in a persistent map, so
+   * lookups never lock, a change swaps in a new map, and a fork can start
+   * with the same map. Once forked, it stands for the session of the current
+   * thread, if that is one of its forks.
+   */
+  private static final class GlobalEnvironment extends Environment {
+    // The environment this one was forked from, or null
+    private final GlobalEnvironment parent;
+    private final AtomicReference<PersistentMap<String, Value>> bindings;
+    private final AtomicReference<PersistentMap<String, SpecialForm>> macros;
+    private final Map<String, Assumption> assumptions = new ConcurrentHashMap<>();
+    private volatile boolean isFrozen;
+    // Whether code has been evaluated, and so may have been compiled, here
+    private volatile boolean isEvaluatedIn;
+
+    private GlobalEnvironment(PersistentMap<String, Value> bindings, PersistentMap<String, SpecialForm> macros) {
+      this(null, bindings, macros);
+    }
+
+    private GlobalEnvironment(GlobalEnvironment parent,
+        PersistentMap<String, Value> bindings, PersistentMap<String, SpecialForm> macros) {
+      Metrics.countFrame();
+      this.parent = parent;
+      this.bindings = new AtomicReference<>(bindings);
+      this.macros = new AtomicReference<>(macros);
+    }
+
     @Override
     public void defineVariable(String variable, Value value) {
-      throw Problem.internalError("Attempted to set a value in the null environment");
+      GlobalEnvironment target = target();
+      target.checkNotFrozen(variable);
+      target.bindings.updateAndGet(map -> map.put(variable, value));
+      target.invalidate(variable);
     }
 
     @Override
     public Value lookupVariable(String variable) {
-      throw Problem.unboundVariable(variable);
+      Value value = target().bindings.get().get(variable);
+      if (value == null) {
+        throw Problem.unboundVariable(variable);
+      }
+      return value;
     }
 
     @Override
     public void setVariable(String variable, Value newValue) {
-      throw Problem.unboundVariable(variable);
+      GlobalEnvironment target = target();
+      target.checkNotFrozen(variable);
+      PersistentMap<String, Value> map;
+      do {
+        map = target.bindings.get();
+        if (map.get(variable) == null) {
+          throw Problem.unboundVariable(variable);
+        }
+      } while (!target.bindings.compareAndSet(map, map.put(variable, newValue)));
+      target.invalidate(variable);
+    }
+
+    @Override
+    void rebind(List<String> varNames, Value[] values) {
+      throw Problem.internalError("Attempted to rebind a value in the global environment");
+    }
+
+    @Override
+    Assumption stableBinding(String variable) {
+      if (bindings.get().get(variable) == null) {
+        return null;
+      }
+      Assumption assumption = assumptions.get(variable);
+      return (assumption != null && assumption.isValid()) ? assumption : null;
+    }
+
+    @Override
+    Map<String, Assumption> assumptions() {
+      return assumptions;
+    }
+
+    @Override
+    SpecialForm lookupMacro(String keyword) {
+      PersistentMap<String, SpecialForm> map = macros.get();
+      return (map.size() == 0) ? null : map.get(keyword);
+    }
+
+    @Override
+    void defineMacro(String keyword, SpecialForm macro) {
+      checkNotFrozen(keyword);
+      macros.updateAndGet(map -> map.put(keyword, macro));
+    }
+
+    @Override
+    public Environment fork() {
+      isFrozen = true;
+      PersistentMap<String, Value> current = bindings.get();
+      GlobalEnvironment fork = new GlobalEnvironment(this, current, macros.get());
+      // Code compiled in the fork must not depend on this environment's
+      // assumptions, which may have been invalidated by other forks. The fork
+      // starts with a fresh one for each variable it still binds as the
+      // environment that first assumed it stable did.
+      GlobalEnvironment root = this;
+      while (root.parent != null) {
+        root = root.parent;
+      }
+      PersistentMap<String, Value> original = root.bindings.get();
+      for (String variable: root.assumptions.keySet()) {
+        Value value = current.get(variable);
+        if (value != null && value == original.get(variable)) {
+          fork.assumptions.put(variable, new Assumption());
+        }
+      }
+      return fork;
+    }
+
+    // Returns the environment whose bindings are this one's on the current
+    // thread: the thread's session, if this one is frozen and the session was
+    // forked from it, or else this one
+    private GlobalEnvironment target() {
+      if (!isFrozen) {
+        return this;
+      }
+      Environment current = session.get();
+      if (current instanceof GlobalEnvironment) {
+        for (GlobalEnvironment env = ((GlobalEnvironment)current).parent; env != null; env = env.parent) {
+          if (env == this) {
+            return (GlobalEnvironment)current;
+          }
+        }
+      }
+      return this;
+    }
+
+    private void checkNotFrozen(String variable) {
+      if (isFrozen) {
+        throw Problem.sharedVariable(variable);
+      }
+    }
+
+    // Invalidates the assumptions about the variable here and in the
+    // environments this one was forked from that code has been evaluated in,
+    // as code compiled in those, which is shared by their forks, may be
+    // running here with this binding. An environment that only ever held
+    // builtins, and was forked for each evaluator, has no such code, and
+    // keeps its assumptions for the evaluators forked later.
+    private void invalidate(String variable) {
+      for (GlobalEnvironment env = this; env != null; env = env.parent) {
+        Assumption assumption = env.assumptions.get(variable);
+        if (assumption != null && (env == this || env.isEvaluatedIn)) {
+          assumption.invalidate();
+        }
+      }
     }
   }
 
+  /**
+   * A frame of local bindings. A frame with a complete variable usage has all
+   * its variables from the start and never changes shape, so that closures
+   * created in it can be applied on other threads, which read the frame
+   * without locking. Any other frame may gain bindings at any time, and is
+   * kept in a concurrent map. Changes to a frame are made while holding its
+   * lock; as with any shared variable, another thread is only sure to see a
+   * change once it has synchronized with the thread that made it, such as by
+   * getting a value from it through a channel.
+   */
   private static class ExtendedEnvironment extends Environment {
-    private final Map<String, Value> frame = new HashMap<>();
+    private final Map<String, Value> frame;
     private final Environment baseEnvironment;
+    // The global environment this one is nested in
+    private final Environment outermost;
+    private final VariableUsage usage;
+    private final Map<String, Assumption> assumptions;
 
-    private ExtendedEnvironment(Environment baseEnvironment) {
+    /**
+     * @param usage How the variables of the frame are used, or {@code null} if
+     *        that is unknown.
+     */
+    private ExtendedEnvironment(Environment baseEnvironment, VariableUsage usage) {
+      Metrics.countFrame();
+      this.frame = (usage != null && usage.isComplete()) ? new HashMap<>() : new ConcurrentHashMap<>();
       this.baseEnvironment = baseEnvironment;
+      this.outermost = (baseEnvironment instanceof ExtendedEnvironment)
+        ? ((ExtendedEnvironment)baseEnvironment).outermost : baseEnvironment;
+      this.usage = usage;
+      this.assumptions = baseEnvironment.assumptions();
     }
 
     @Override
-    public void defineVariable(String variable, Value value) {
-      frame.put(variable, value);
+    public synchronized void defineVariable(String variable, Value value) {
+      Value current = frame.get(variable);
+      if (current instanceof Box) {
+        ((Box)current).value = value;
+      } else {
+        frame.put(variable, value);
+      }
+      invalidate(variable);
     }
 
     @Override
     public Value lookupVariable(String variable) {
-      if (frame.containsKey(variable)) {
-        return frame.get(variable);
+      Value value = frame.get(variable);
+      if (value instanceof Box) {
+        return ((Box)value).lookup(variable);
+      } else if (value != null || frame.containsKey(variable)) {
+        return value;
       }
       return baseEnvironment.lookupVariable(variable);
     }
 
     @Override
-    public void setVariable(String variable, Value newValue) {
-      if (frame.containsKey(variable)) {
+    public synchronized void setVariable(String variable, Value newValue) {
+      Value current = frame.get(variable);
+      if (current instanceof Box) {
+        ((Box)current).set(variable, newValue);
+        invalidate(variable);
+      } else if (current != null || frame.containsKey(variable)) {
         frame.put(variable, newValue);
+        invalidate(variable);
       } else {
         baseEnvironment.setVariable(variable, newValue);
       }
     }
+
+    @Override
+    void rebind(List<String> varNames, Value[] values) {
+      for (int i = 0; i < values.length; ++i) {
+        frame.put(varNames.get(i), values[i]);
+      }
+    }
+
+    @Override
+    Assumption stableBinding(String variable) {
+      if (!frame.containsKey(variable)) {
+        return baseEnvironment.stableBinding(variable);
+      }
+      // shadowed by a local binding
+      return null;
+    }
+
+    @Override
+    Map<String, Assumption> assumptions() {
+      return assumptions;
+    }
+
+    @Override
+    SpecialForm lookupMacro(String keyword) {
+      return outermost.lookupMacro(keyword);
+    }
+
+    @Override
+    void defineMacro(String keyword, SpecialForm macro) {
+      outermost.defineMacro(keyword, macro);
+    }
+
+    @Override
+    Environment capture(VariableUsage closureUsage) {
+      if (!closureUsage.isComplete()) {
+        return this;
+      }
+      ExtendedEnvironment captured = new ExtendedEnvironment(outermost, VariableUsage.SEALED);
+      for (String variable: closureUsage.getFree()) {
+        if (!captureVariable(variable, captured.frame)) {
+          return this;
+        }
+      }
+      return captured;
+    }
+
+    // Finds the frame binding the variable and copies or boxes the binding into
+    // the captured frame. Returns false if the binding cannot be determined.
+    private boolean captureVariable(String variable, Map<String, Value> capturedFrame) {
+      for (ExtendedEnvironment env = this; ; env = (ExtendedEnvironment)env.baseEnvironment) {
+        if (env.usage == null || !env.usage.isComplete()) {
+          return false;
+        }
+        Value value = env.frame.get(variable);
+        if (value instanceof Box) {
+          capturedFrame.put(variable, value);
+          return true;
+        } else if (value != null || env.usage.isDefined(variable)) {
+          if (env.usage.isMutable(variable)) {
+            capturedFrame.put(variable, env.box(variable, value));
+          } else {
+            capturedFrame.put(variable, value);
+          }
+          return true;
+        }
+        if (!(env.baseEnvironment instanceof ExtendedEnvironment)) {
+          // a global variable
+          return true;
+        }
+      }
+    }
+
+    // Boxes the variable's value in this frame, unless a closure being
+    // created on another thread has just done so
+    private synchronized Box box(String variable, Value value) {
+      Value current = frame.get(variable);
+      if (current instanceof Box) {
+        return (Box)current;
+      }
+      Box box = new Box(value, baseEnvironment);
+      frame.put(variable, box);
+      return box;
+    }
+
+    private void invalidate(String variable) {
+      Assumption assumption = assumptions.get(variable);
+      if (assumption != null) {
+        assumption.invalidate();
+      }
+    }
+  }
+
+  /**
+   * A variable binding shared between the frame that owns it and the closures
+   * that captured it. A box for a variable that has not been defined yet, by
+   * an internal define later in a body, refers to the environment enclosing
+   * the owning frame, just as a lookup in the owning frame would.
+   */
+  private static final class Box implements Value {
+    private volatile Value value;
+    private final Environment enclosing;
+
+    private Box(Value value, Environment enclosing) {
+      this.value = value;
+      this.enclosing = enclosing;
+    }
+
+    private Value lookup(String variable) {
+      return (value != null) ? value : enclosing.lookupVariable(variable);
+    }
+
+    private void set(String variable, Value newValue) {
+      if (value != null) {
+        value = newValue;
+      } else {
+        enclosing.setVariable(variable, newValue);
+      }
+    }
   }
 }
@@ -0,0 +1,272 @@
+package org.instructures.interp;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import org.instructures.interp.values.*;
+
+/**
+ * A user-defined procedure: a {@link Template} closed over the environment it
+ * was created in. Where the body's variable usage allows it, the closure
+ * keeps only the variables it refers to rather than that whole environment;
+ * see {@link Environment#capture}.
+ *
+ * Procedures start out interpreted. Each template counts how many times its
+ * closures have been applied, and once that count reaches the compile
+ * threshold the body is analyzed into a tree of {@link Node}s which is used
+ * by every closure of the template from then on. Once the tree has run as
+ * many times again as the {@link BytecodeCompiler}'s threshold, it is
+ * replaced by a class generated from it.
+ */
+class Lambda extends RuntimeValue.Procedure {
+  /**
+   * The number of applications after which a procedure body is compiled.
+   * Negative values disable compilation entirely.
+   */
+  static final int COMPILE_THRESHOLD = Integer.getInteger("scheme.jit.threshold", 8);
+
+  private final Template template;
+  private final Environment scope;
+
+  Lambda(Template template, Environment scope) {
+    super(template.getRequiredArgs(), template.isVarArg());
+    this.template = template;
+    this.scope = scope.capture(template.usage);
+  }
+
+  Template getTemplate() {
+    return template;
+  }
+
+  /**
+   * Names the procedure after the variable it is being defined as, unless its
+   * template already has a name.
+   */
+  static void nameIfAnonymous(Value value, String name) {
+    if (value instanceof Lambda) {
+      Template template = ((Lambda)value).template.original;
+      if (template.name == null) {
+        template.name = name;
+      }
+    }
+  }
+
+  @Override
+  public Value checkedApply(LinkedList<Value> args) {
+    if (Profiler.ENABLED || SamplingProfiler.ENABLED) {
+      return invokeProfiled(args);
+    }
+    return invoke(args);
+  }
+
+  private Value invokeProfiled(LinkedList<Value> args) {
+    // all the templates of a lambda expression are profiled as one procedure
+    if (Profiler.ENABLED) {
+      Profiler.enter(template.original);
+    }
+    if (SamplingProfiler.ENABLED) {
+      SamplingProfiler.enter(template.original);
+    }
+    try {
+      return invoke(args);
+    } finally {
+      if (SamplingProfiler.ENABLED) {
+        SamplingProfiler.exit();
+      }
+      if (Profiler.ENABLED) {
+        Profiler.exit();
+      }
+    }
+  }
+
+  private Value invoke(LinkedList<Value> args) {
+    Environment extendedEnvironment = scope.extend(template.formals, args, template.usage);
+    return template.compiledBody(extendedEnvironment).execute(extendedEnvironment);
+  }
+
+  /**
+   * Starts an application of the procedure by compiled code, which then
+   * executes the {@link #body} itself: counts the application, checks the
+   * arguments and returns the frame binding them. Returns {@code null} if the
+   * application must be made by {@link #apply} instead, as it must to be
+   * profiled.
+   */
+  Environment enter(List<Value> args) {
+    if (Profiler.ENABLED || SamplingProfiler.ENABLED) {
+      return null;
+    }
+    return scope.extend(template.formals, checkArguments(args), template.usage);
+  }
+
+  /**
+   * Returns the code of the body, to be executed in a frame returned by
+   * {@link #enter}.
+   */
+  Node body(Environment frame) {
+    return template.compiledBody(frame);
+  }
+
+  /**
+   * The parts of a lambda expression shared by all closures created from it:
+   * the formals, the body, the body's variable usage, and the code the body
+   * is run by, which is compiled as it gets hot.
+   */
+  static final class Template {
+    private final List<String> formals;
+    private final boolean isVarArg;
+    private final List<Datum> body;
+    private final VariableUsage usage;
+    private final SourcePosition position;
+    // The template parsed from the lambda expression, which this one is a
+    // precompiled copy of, or else this one; the name is kept there
+    private final Template original;
+    private volatile String name;
+    private int invocations;
+    private final Node interpreted;
+    private volatile Node compiled;
+    // Whether the body has been compiled as far as it will be
+    private volatile boolean isFinal;
+
+    private Template(List<String> formals, boolean isVarArg, List<Datum> body, VariableUsage usage,
+                     SourcePosition position, Template original) {
+      this.formals = formals;
+      this.isVarArg = isVarArg;
+      this.body = body;
+      this.usage = usage;
+      this.position = position;
+      this.original = (original != null) ? original : this;
+      this.interpreted = new Node.InterpretedBody(body);
+      this.compiled = interpreted;
+    }
+
+    /**
+     * Creates a template from the parts of {@code (lambda formals body...)}.
+     * The formals may be a proper list, a dotted list with a rest parameter, or
+     * a single symbol bound to the list of all arguments.
+     *
+     * @param environment The environment the lambda expression is in, which
+     *        decides which forms in the body are macro uses.
+     */
+    static Template parse(Value formalsDatum, List<Value> bodyData, Environment environment) {
+      List<String> formals = new ArrayList<>();
+      List<Value> formalsList = new ArrayList<>();
+      boolean isVarArg;
+      if (formalsDatum.isSymbol()) {
+        formalsList.add(formalsDatum);
+        isVarArg = true;
+      } else if (formalsDatum.isList()) {
+        isVarArg = formalsDatum.asImproperList(formalsList);
+      } else {
+        throw Problem.invalidExpression("Invalid lambda formals: %s", formalsDatum.toSyntaxString());
+      }
+      for (Value formal: formalsList) {
+        if (!formal.isSymbol()) {
+          throw Problem.invalidExpression("Lambda formal must be a symbol: %s", formal.toSyntaxString());
+        }
+        if (formals.contains(formal.toString())) {
+          throw Problem.invalidExpression("Duplicate lambda formal: %s", formal);
+        }
+        formals.add(formal.toString());
+      }
+      if (bodyData.isEmpty()) {
+        throw Problem.invalidExpression("Lambda body must not be empty");
+      }
+      List<Datum> body = new ArrayList<>();
+      for (Value datum: bodyData) {
+        body.add((Datum)datum);
+      }
+      // the formals are usually a list on the line of the lambda itself
+      SourcePosition position = SourcePosition.of(formalsDatum);
+      if (position == null) {
+        position = SourcePosition.of(body.get(0));
+      }
+      return new Template(formals, isVarArg, body, VariableUsage.ofLambda(formals, body, environment), position, null);
+    }
+
+    /**
+     * Creates a template whose body has already been compiled, as done for
+     * lambda expressions nested inside a compiled body. It stands for the
+     * same procedure as the parsed template, and shares its name.
+     */
+    static Template precompiled(Template parsed, Node compiledBody) {
+      Template result = new Template(parsed.formals, parsed.isVarArg, parsed.body, parsed.usage, parsed.position,
+                                     parsed.original);
+      result.compiled = compiledBody;
+      return result;
+    }
+
+    int getRequiredArgs() {
+      return formals.size() - (isVarArg ? 1 : 0);
+    }
+
+    boolean isVarArg() {
+      return isVarArg;
+    }
+
+    List<String> getFormals() {
+      return formals;
+    }
+
+    List<Datum> getBody() {
+      return body;
+    }
+
+    VariableUsage getUsage() {
+      return usage;
+    }
+
+    boolean isCompiled() {
+      return compiled != interpreted;
+    }
+
+    /**
+     * Returns the name of the variable the procedure was first defined as, or
+     * {@code null} if it has not been defined as one.
+     */
+    String getName() {
+      return original.name;
+    }
+
+    /**
+     * Returns where the lambda expression was read from, or {@code null} if
+     * that is not known.
+     */
+    SourcePosition getPosition() {
+      return position;
+    }
+
+    /**
+     * Counts an application and returns the code to run the body by,
+     * compiling it first into a tree, or the tree into a class, if this
+     * application made it hot enough. The counter is not synchronized: a lost
+     * update only delays compilation by a call.
+     *
+     * @param environment The environment the body is about to be run in.
+     */
+    private Node compiledBody(Environment environment) {
+      Node result = compiled;
+      if (isFinal) {
+        return result;
+      }
+      if (result == interpreted) {
+        if (COMPILE_THRESHOLD < 0) {
+          isFinal = true;
+        } else if (++invocations > COMPILE_THRESHOLD) {
+          result = new Analyzer(environment).analyzeBody(body);
+          invocations = 0;
+          compiled = result;
+        }
+      } else if (BytecodeCompiler.THRESHOLD < 0) {
+        isFinal = true;
+      } else if (++invocations > BytecodeCompiler.THRESHOLD) {
+        Node generated = BytecodeCompiler.compile(result, getName());
+        if (generated != null) {
+          result = generated;
+          compiled = result;
+        }
+        isFinal = true;
+      }
+      return result;
+    }
+  }
+}
@@ -49,6 +49,8 @@ public class LexicalUtils {
     PUNCTUATION.put("[", TokenType.LBRACK);
     PUNCTUATION.put("]", TokenType.RBRACK);
     PUNCTUATION.put("'", TokenType.SQUOTE);
+    PUNCTUATION.put("`", TokenType.BACKQUOTE);
+    PUNCTUATION.put(",", TokenType.COMMA);
 
     String[] specialInitials = {
       "!", "$", "%", "&", "*", "/", ":", "<", "=", ">", "?", "^", "_", "~"
@@ -0,0 +1,175 @@
+package org.instructures.interp;
+
+import java.lang.ref.WeakReference;
+import java.math.BigInteger;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import org.instructures.interp.values.*;
+import org.instructures.interp.values.RuntimeValue.Procedure;
+
+/**
+ * A procedure that remembers the results of another for the arguments it has
+ * been applied to, as made by {@code memoize}. Arguments are looked up by
+ * structure, as with {@code equal?}, using the hash codes that pairs keep.
+ * A recursive procedure defined as memoized calls its memoized self, so each
+ * distinct call is made only once.
+ *
+ * The cache holds at most a given number of results, and evicts the least
+ * recently used one to make room. It is split into segments by the hash of
+ * the arguments, each with its own lock, so that threads mostly do not
+ * contend for it. The procedure is applied without holding a lock, so two
+ * threads can compute the same result at once, and the later one is kept.
+ * With weak values, a result is also dropped once nothing else refers to it.
+ */
+final class Memoized extends Procedure {
+  static final int DEFAULT_CAPACITY = Integer.getInteger("scheme.memoize.capacity", 10000);
+
+  private static final int MAX_SEGMENTS = 16;
+
+  private final Procedure procedure;
+  private final Segment[] segments;
+  private final boolean isWeak;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  Memoized(Procedure procedure, int capacity, boolean isWeak) {
+    super(0, true);
+    if (capacity <= 0) {
+      throw Problem.argumentError("Memoization capacity must be positive: %d", capacity);
+    }
+    this.procedure = procedure;
+    this.isWeak = isWeak;
+    int count = Math.min(MAX_SEGMENTS, Integer.highestOneBit(capacity));
+    this.segments = new Segment[count];
+    for (int i = 0; i < count; ++i) {
+      // the first segments take the remainder
+      segments[i] = new Segment(capacity / count + ((i < capacity % count) ? 1 : 0));
+    }
+  }
+
+  @Override
+  protected Value checkedApply(LinkedList<Value> args) {
+    LinkedList<Value> arguments = args.removeFirst().asProperList();
+    Key key = new Key(arguments.toArray(new Value[0]));
+    Segment segment = segments[(key.hash ^ (key.hash >>> 16)) & (segments.length - 1)];
+    Value result = segment.get(key);
+    if (result != null) {
+      hits.increment();
+      return result;
+    }
+    misses.increment();
+    result = procedure.apply(arguments);
+    segment.put(key, isWeak ? new WeakReference<>(result) : result);
+    return result;
+  }
+
+  /**
+   * Returns the numbers of hits, misses and evictions, and the number of
+   * results cached, as an association list.
+   */
+  Value statistics() {
+    int size = 0;
+    for (Segment segment: segments) {
+      size += segment.size();
+    }
+    return CompoundDatum.newList(
+      entry("hits", hits.sum()),
+      entry("misses", misses.sum()),
+      entry("evictions", evictions.sum()),
+      entry("size", size));
+  }
+
+  private static Value entry(String name, long count) {
+    return CompoundDatum.newPair(LexemeDatum.newSymbol(name), LexemeDatum.newNumber(BigInteger.valueOf(count)));
+  }
+
+  @Override
+  public String toString() {
+    return "<memoized procedure>";
+  }
+
+  /**
+   * The arguments of a call, with their hash computed once.
+   */
+  private static final class Key {
+    private final Value[] arguments;
+    private final int hash;
+
+    private Key(Value[] arguments) {
+      this.arguments = arguments;
+      int h = 1;
+      for (Value argument: arguments) {
+        h = 31 * h + argument.equalHashCode();
+      }
+      this.hash = h;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Key)) {
+        return false;
+      }
+      Key key = (Key)other;
+      if (hash != key.hash || arguments.length != key.arguments.length) {
+        return false;
+      }
+      for (int i = 0; i < arguments.length; ++i) {
+        if (!arguments[i].isEqual(key.arguments[i])) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  /**
+   * A part of the cache: a map in access order that drops its eldest entry
+   * when it grows past its capacity. The values are results, or weak
+   * references to them.
+   */
+  private final class Segment {
+    private final Map<Key, Object> entries;
+
+    private Segment(int capacity) {
+      this.entries = new LinkedHashMap<Key, Object>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Object> eldest) {
+          if (size() > capacity) {
+            evictions.increment();
+            return true;
+          }
+          return false;
+        }
+      };
+    }
+
+    private synchronized Value get(Key key) {
+      Object value = entries.get(key);
+      if (value instanceof WeakReference) {
+        value = ((WeakReference<?>)value).get();
+        if (value == null) {
+          entries.remove(key);
+        }
+      }
+      return (Value)value;
+    }
+
+    private synchronized void put(Key key, Object value) {
+      entries.put(key, value);
+    }
+
+    private synchronized int size() {
+      return entries.size();
+    }
+  }
+}
@@ -0,0 +1,234 @@
+package org.instructures.interp;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import org.instructures.interp.values.LexemeDatum;
+import org.instructures.interp.values.RuntimeValue;
+import org.instructures.interp.values.RuntimeValue.Procedure;
+import org.instructures.interp.values.Value;
+
+/**
+ * Counters for the interpreter's internals, kept in {@link LongAdder}s so
+ * that evaluating threads do not contend on them. They are published as a
+ * platform MXBean unless the {@code scheme.jmx} system property is false;
+ * registration happens on a background thread so that it does not delay
+ * startup.
+ *
+ * The interpreter always counts the forms it evaluates. Code compiled by the
+ * {@link Analyzer}, and each builtin's applications, are only counted with
+ * {@code -Dscheme.metrics.detailed=true}; otherwise no counting is compiled
+ * into the code at all.
+ */
+final class Metrics implements MetricsMXBean {
+  static final String OBJECT_NAME = "org.instructures.interp:type=Metrics";
+  static final boolean DETAILED = Boolean.getBoolean("scheme.metrics.detailed");
+
+  private static final Metrics INSTANCE = new Metrics();
+  private static final LongAdder applicationForms = new LongAdder();
+  private static final LongAdder frames = new LongAdder();
+  private static final Map<String, LongAdder> problems = new ConcurrentHashMap<>();
+  private static final Map<String, LongAdder> compiledForms = new ConcurrentHashMap<>();
+  private static final Map<String, LongAdder> builtins = new ConcurrentHashMap<>();
+
+  static {
+    if (Boolean.parseBoolean(System.getProperty("scheme.jmx", "true"))) {
+      Thread registration = new Thread(Metrics::register, "scheme-jmx");
+      registration.setDaemon(true);
+      registration.start();
+    }
+  }
+
+  private Metrics() {
+  }
+
+  /**
+   * Returns the current value of every counter, as in
+   * {@link MetricsMXBean#getSnapshot()}.
+   */
+  static Map<String, Long> snapshot() {
+    return INSTANCE.getSnapshot();
+  }
+
+  static void countApplicationForm() {
+    applicationForms.increment();
+  }
+
+  static void countFrame() {
+    frames.increment();
+  }
+
+  static void countProblem(Class<? extends Problem> kind) {
+    problems.computeIfAbsent(kind.getSimpleName(), k -> new LongAdder()).increment();
+  }
+
+  /**
+   * Returns the compiled code of a form, counting its executions under the
+   * form's name when detailed metrics are on. Code that does no work of its
+   * own at run time, such as a folded constant or a form left to the
+   * interpreter, is not counted.
+   */
+  static Node countedForm(String form, Node node) {
+    if (!DETAILED || node instanceof Node.Constant || node instanceof Node.Guarded
+        || node instanceof Node.Interpreted) {
+      return node;
+    }
+    return new Node.Metered(compiledForms.computeIfAbsent(form, k -> new LongAdder()), node);
+  }
+
+  /**
+   * Returns the builtin, counting its applications under its name when
+   * detailed metrics are on.
+   */
+  static Procedure countedBuiltin(String name, Procedure builtin) {
+    if (!DETAILED) {
+      return builtin;
+    }
+    LongAdder counter = builtins.computeIfAbsent(name, k -> new LongAdder());
+    return new Procedure(0, true) {
+      @Override
+      public Value apply(List<Value> args) {
+        counter.increment();
+        return builtin.apply(args);
+      }
+
+      @Override
+      protected Value checkedApply(LinkedList<Value> args) {
+        throw Problem.internalError("Counted builtin %s applied unchecked", name);
+      }
+
+      @Override
+      public String toString() {
+        return builtin.toString();
+      }
+    };
+  }
+
+  /**
+   * Returns the inline implementation of a builtin's calls with one
+   * argument, counting them as applications of the builtin when detailed
+   * metrics are on.
+   */
+  static Function<Value, Value> countedIntrinsic(String name, Function<Value, Value> operation) {
+    if (!DETAILED || operation == null) {
+      return operation;
+    }
+    LongAdder counter = builtins.computeIfAbsent(name, k -> new LongAdder());
+    return operand -> {
+      counter.increment();
+      return operation.apply(operand);
+    };
+  }
+
+  /**
+   * Returns the inline implementation of a builtin's calls with two
+   * arguments; see {@link #countedIntrinsic(String, Function)}.
+   */
+  static BinaryOperator<Value> countedIntrinsic(String name, BinaryOperator<Value> operation) {
+    if (!DETAILED || operation == null) {
+      return operation;
+    }
+    LongAdder counter = builtins.computeIfAbsent(name, k -> new LongAdder());
+    return (left, right) -> {
+      counter.increment();
+      return operation.apply(left, right);
+    };
+  }
+
+  private static void register() {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+    } catch (JMException e) {
+      System.err.printf("%s:%s%n", OBJECT_NAME, e.getMessage());
+    }
+  }
+
+  @Override
+  public Map<String, Long> getSnapshot() {
+    Map<String, Long> snapshot = new TreeMap<>();
+    getInterpretedFormEvaluations().forEach((form, count) -> snapshot.put("interpreted." + form, count));
+    getCompiledFormEvaluations().forEach((form, count) -> snapshot.put("compiled." + form, count));
+    getBuiltinApplications().forEach((name, count) -> snapshot.put("builtin." + name, count));
+    snapshot.put("procedureApplications", getProcedureApplications());
+    snapshot.put("environmentFrames", getEnvironmentFrames());
+    getErrors().forEach((kind, count) -> snapshot.put("error." + kind, count));
+    for (Map.Entry<String, LexemeDatum.InternPool<?, ?>> entry: internPools().entrySet()) {
+      LexemeDatum.InternPool<?, ?> pool = entry.getValue();
+      snapshot.put("pool." + entry.getKey() + ".size", (long)pool.size());
+      snapshot.put("pool." + entry.getKey() + ".hits", pool.getHitCount());
+      snapshot.put("pool." + entry.getKey() + ".misses", pool.getMissCount());
+    }
+    return snapshot;
+  }
+
+  @Override
+  public Map<String, Long> getInterpretedFormEvaluations() {
+    Map<String, Long> counts = SpecialForm.getEvaluationCounts();
+    counts.put("application", applicationForms.sum());
+    return counts;
+  }
+
+  @Override
+  public Map<String, Long> getCompiledFormEvaluations() {
+    return sums(compiledForms);
+  }
+
+  @Override
+  public Map<String, Long> getBuiltinApplications() {
+    return sums(builtins);
+  }
+
+  @Override
+  public long getProcedureApplications() {
+    return RuntimeValue.Procedure.getApplicationCount();
+  }
+
+  @Override
+  public long getEnvironmentFrames() {
+    return frames.sum();
+  }
+
+  @Override
+  public Map<String, Long> getErrors() {
+    return sums(problems);
+  }
+
+  @Override
+  public Map<String, Long> getInternPoolSizes() {
+    Map<String, Long> sizes = new TreeMap<>();
+    internPools().forEach((name, pool) -> sizes.put(name, (long)pool.size()));
+    return sizes;
+  }
+
+  @Override
+  public Map<String, Double> getInternPoolHitRates() {
+    Map<String, Double> rates = new TreeMap<>();
+    internPools().forEach((name, pool) -> {
+      long lookups = pool.getHitCount() + pool.getMissCount();
+      rates.put(name, (lookups == 0) ? 0.0 : (double)pool.getHitCount() / lookups);
+    });
+    return rates;
+  }
+
+  private static Map<String, Long> sums(Map<String, LongAdder> counters) {
+    Map<String, Long> counts = new TreeMap<>();
+    counters.forEach((name, count) -> counts.put(name, count.sum()));
+    return counts;
+  }
+
+  private static Map<String, LexemeDatum.InternPool<?, ?>> internPools() {
+    Map<String, LexemeDatum.InternPool<?, ?>> pools = new TreeMap<>();
+    pools.put("symbol", LexemeDatum.getSymbolPool());
+    pools.put("string", LexemeDatum.getStringPool());
+    pools.put("number", LexemeDatum.getNumberPool());
+    return pools;
+  }
+}
@@ -0,0 +1,56 @@
+package org.instructures.interp;
+
+import java.util.Map;
+
+/**
+ * The interpreter's counters, as seen by JMX clients such as JConsole under
+ * {@code org.instructures.interp:type=Metrics}. All counts are since the
+ * interpreter started.
+ */
+public interface MetricsMXBean {
+  /**
+   * Returns every counter below, flattened into one map.
+   */
+  Map<String, Long> getSnapshot();
+
+  /**
+   * Returns how many times the interpreter has evaluated each special form,
+   * and each application, keyed by form name. Code compiled by the
+   * {@link Analyzer}, which hot procedure bodies run as, is not counted here
+   * but in {@link #getCompiledFormEvaluations()}.
+   */
+  Map<String, Long> getInterpretedFormEvaluations();
+
+  /**
+   * Returns how many times compiled code has executed each special form, and
+   * each application, keyed by form name. Only counted with
+   * {@code -Dscheme.metrics.detailed=true}.
+   */
+  Map<String, Long> getCompiledFormEvaluations();
+
+  /**
+   * Returns how many times each builtin has been applied, keyed by its name,
+   * including calls that compiled code makes inline. Calls that the
+   * {@link Analyzer} folds into constants are counted once, when folded.
+   * Only counted with {@code -Dscheme.metrics.detailed=true}.
+   */
+  Map<String, Long> getBuiltinApplications();
+
+  long getProcedureApplications();
+
+  long getEnvironmentFrames();
+
+  /**
+   * Returns how many errors of each kind have been raised, keyed by the name
+   * of the {@link Problem} subclass. Errors that were caught are included.
+   */
+  Map<String, Long> getErrors();
+
+  Map<String, Long> getInternPoolSizes();
+
+  /**
+   * Returns, for each pool of unique datums, the fraction of lookups that
+   * found a datum already in the pool.
+   */
+  Map<String, Double> getInternPoolHitRates();
+}
@@ -0,0 +1,848 @@
+package org.instructures.interp;
+
+import static org.instructures.interp.BytecodeCompiler.*;
+import static org.instructures.interp.ClassFile.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import org.instructures.interp.values.*;
+
+/**
+ * A node of compiled code, as produced by the {@link Analyzer}. All of the
+ * syntax checking and dispatching on special forms is done once, when the
+ * tree is built, so executing a node only does the work of the expression.
+ *
+ * A tree is walked by virtual calls. The call to {@code execute} on a child
+ * is made from the same few places for every kind of child, so those call
+ * sites are megamorphic, and the JVM does not inline through them; what the
+ * tree saves is the interpreter's re-parsing of each form. Once a procedure
+ * body's tree is hot, the {@link BytecodeCompiler} turns it into a class of
+ * its own, from the code each node emits by {@link #compile}, and there the
+ * calls between nodes, and between procedures, can be inlined.
+ */
+abstract class Node {
+  abstract Value execute(Environment environment);
+
+  /**
+   * Emits code that does what {@link #execute} does, leaving the value on the
+   * stack, for the {@link BytecodeCompiler}. Unless a node emits its work
+   * inline, the code calls the node itself.
+   */
+  void compile(BytecodeCompiler.Body body) {
+    body.execute(this);
+  }
+
+  /**
+   * A quoted or self-evaluating datum.
+   */
+  static final class Constant extends Node {
+    private final Value value;
+
+    Constant(Value value) {
+      this.value = value;
+    }
+
+    Value getValue() {
+      return value;
+    }
+
+    @Override
+    Value execute(Environment environment) {
+      return value;
+    }
+
+    @Override
+    void compile(BytecodeCompiler.Body body) {
+      body.constant(value, VALUE_TYPE);
+    }
+  }
+
+  static final class VariableReference extends Node {
+    private final String name;
+
+    VariableReference(String name) {
+      this.name = name;
+    }
+
+    @Override
+    Value execute(Environment environment) {
+      return environment.lookupVariable(name);
+    }
+
+    @Override
+    void compile(BytecodeCompiler.Body body) {
+      body.loadEnvironment();
+      body.code().pushString(name);
+      body.code().invoke(INVOKEVIRTUAL, ENVIRONMENT, "lookupVariable", "(" + STRING_TYPE + ")" + VALUE_TYPE);
+    }
+  }
+
+  static final class Assignment extends Node {
+    private final String name;
+    private final Node valueNode;
+
+    Assignment(String name, Node valueNode) {
+      this.name = name;
+      this.valueNode = valueNode;
+    }
+
+    @Override
+    Value execute(Environment environment) {
+      environment.setVariable(name, valueNode.execute(environment));
+      return RuntimeValue.newUnspecified();
+    }
+
+    @Override
+    void compile(BytecodeCompiler.Body body) {
+      body.loadEnvironment();
+      body.code().pushString(name);
+      body.node(valueNode);
+      body.code().invoke(INVOKEVIRTUAL, ENVIRONMENT, "setVariable", "(" + STRING_TYPE + VALUE_TYPE + ")V");
+      body.unspecified();
+    }
+  }
+
+  static final class Definition extends Node {
+    private final String name;
+    private final Node valueNode;
+
+    Definition(String name, Node valueNode) {
+      this.name = name;
+      this.valueNode = valueNode;
+    }
+
+    @Override
+    Value execute(Environment environment) {
+      Value value = valueNode.execute(environment);
+      Lambda.nameIfAnonymous(value, name);
+      environment.defineVariable(name, value);
+      return RuntimeValue.newUnspecified();
+    }
+
+    @Override
+    void compile(BytecodeCompiler.Body body) {
+      ClassFile.Code code = body.code();
+      int value = code.newLocal();
+      body.node(valueNode);
+      code.store(value);
+      code.load(value);
+      code.pushString(name);
+      code.invoke(INVOKESTATIC, LAMBDA, "nameIfAnonymous", "(" + VALUE_TYPE + STRING_TYPE + ")V");
+      body.loadEnvironment();
+      code.pushString(name);
+      code.load(value);
+      code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "defineVariable", "(" + STRING_TYPE + VALUE_TYPE + ")V");
+      body.unspecified();
+    }
+  }
+
+  static final class If extends Node {
+    private final Node predicate;
+    private final Node consequent;
+    private final Node alternative;
+
+    /**
+     * @param alternative The node for the false branch, or {@code null} when
+     *        the expression has none.
+     */
+    If(Node predicate, Node consequent, Node alternative) {
+      this.predicate = predicate;
+      this.consequent = consequent;
+      this.alternative = alternative;
+    }
+
+    @Override
+    Value execute(Environment environment) {
+      if (predicate.execute(environment).isTrue()) {
+        return consequent.execute(environment);
+      } else if (alternative != null) {
+        return alternative.execute(environment);
+      }
+      return RuntimeValue.newUnspecified();
+    }
+
+    @Override
+    void compile(BytecodeCompiler.Body body) {
+      ClassFile.Code code = body.code();
+      ClassFile.Label otherwise = new ClassFile.Label();
+      ClassFile.Label end = new ClassFile.Label();
+      body.node(predicate);
+      code.invoke(INVOKEINTERFACE, VALUE, "isTrue", "()Z");
+      code.jump(IFEQ, otherwise);
+      body.node(consequent);
+      code.jump(GOTO, end);
+      code.mark(otherwise);
+      if (alternative != null) {
+        body.node(alternative);
+      } else {
+        body.unspecified();
+      }
+      code.mark(end);
+    }
+  }
+
+  static final class Cond extends Node {
+    private final Node[] tests;
+    private final Node[] bodies;
+
+    /**
+     * @param tests The test of each clause; {@code null} for an else clause.
+     * @param bodies The body of each clause; {@code null} when the clause is
+     *        just a test, whose value is then the result.
+     */
+    Cond(Node[] tests, Node[] bodies) {
+      this.tests = tests;
+      this.bodies = bodies;
+    }
+
+    @Override
+    Value execute(Environment environment) {
+      for (int i = 0; i < tests.length; ++i) {
+        Value test = (tests[i] == null) ? null : tests[i].execute(environment);
+        if (test == null || test.isTrue()) {
+          return (bodies[i] == null) ? test : bodies[i].execute(environment);
+        }
+      }
+      return RuntimeValue.newUnspecified();
+    }
+
+    @Override
+    void compile(BytecodeCompiler.Body body) {
+      ClassFile.Code code = body.code();
+      ClassFile.Label end = new ClassFile.Label();
+      for (int i = 0; i < tests.length; ++i) {
+        if (tests[i] == null) {
+          // an else clause, which is the last
+          body.node(bodies[i]);
+          code.mark(end);
+          return;
+        }
+        body.node(tests[i]);
+        if (bodies[i] == null) {
+          code.op(DUP, 1);
+          code.invoke(INVOKEINTERFACE, VALUE, "isTrue", "()Z");
+          code.jump(IFNE, end);
+          code.op(POP, -1);
+        } else {
+          ClassFile.Label next = new ClassFile.Label();
+          code.invoke(INVOKEINTERFACE, VALUE, "isTrue", "()Z");
+          code.jump(IFEQ, next);
+          body.node(bodies[i]);
+          code.jump(GOTO, end);
+          code.mark(next);
+        }
+      }
+      body.unspecified();
+      code.mark(end);
+    }
+  }
+
+  static final class Sequence extends Node {
+    private final Node[] body;
+
+    Sequence(Node[] body) {
+      this.body = body;
+    }
+
+    @Override
+    Value execute(Environment environment) {
+      int last = body.length - 1;
+      for (int i = 0; i < last; ++i) {
+        body[i].execute(environment);
+      }
+      return body[last].execute(environment);
+    }
+
+    @Override
+    void compile(BytecodeCompiler.Body compiled) {
+      int last = body.length - 1;
+      for (int i = 0; i < last; ++i) {
+        compiled.node(body[i]);
+        compiled.code().op(POP, -1);
+      }
+      compiled.node(body[last]);
+    }
+  }
+
+  /**
+   * A pair built by a quasiquote template.
+   */
+  static final class Cons extends Node {
+    private final Node car;
+    private final Node cdr;
+
+    Cons(Node car, Node cdr) {
+      this.car = car;
+      this.cdr = cdr;
+    }
+
+    @Override
+    Value execute(Environment environment) {
+      Value carValue = car.execute(environment);
+      return CompoundDatum.newPair(carValue, cdr.execute(environment));
+    }
+
+    @Override
+    void compile(BytecodeCompiler.Body body) {
+      body.node(car);
+      body.node(cdr);
+      body.code().invoke(INVOKESTATIC, "org/instructures/interp/values/CompoundDatum", "newPair",
+                         "(" + VALUE_TYPE + VALUE_TYPE + ")Lorg/instructures/interp/values/CompoundDatum$Pair;");
+    }
+  }
+
+  /**
+   * An {@code unquote-splicing} in a quasiquote template, which copies the
+   * elements of a list onto the rest of the template. When nothing follows
+   * it, the list itself is the rest, as it does not need to be copied.
+   */
+  static final class Splice extends Node {
+    private final Node list;
+    private final Node rest;
+
+    Splice(Node list, Node rest) {
+      this.list = list;
+      this.rest = rest;
+    }
+
+    @Override
+    Value execute(Environment environment) {
+      Value listValue = list.execute(environment);
+      if (!listValue.isList()) {
+        throw Problem.typeError("unquote-splicing requires a list: %s", listValue.toSyntaxString());
+      }
+      Value result = rest.execute(environment);
+      if (result.isEmptyList()) {
+        return listValue;
+      }
+      List<Value> elements = listValue.asProperList();
+      for (int i = elements.size() - 1; i >= 0; --i) {
+        result = CompoundDatum.newPair(elements.get(i), result);
+      }
+      return result;
+    }
+  }
+
+  /**
+   * A {@code let}, which runs its body in a new frame without creating a
+   * procedure to do it.
+   */
+  static final class Let extends Node {
+    private final List<String> variables;
+    private final Node[] inits;
+    private final Node body;
+    private final VariableUsage usage;
+
+    Let(List<String> variables, Node[] inits, Node body, VariableUsage usage) {
+      this.variables = variables;
+      this.inits = inits;
+      this.body = body;
+      this.usage = usage;
+    }
+
+    @Override
+    Value execute(Environment environment) {
+      return body.execute(environment.extend(variables, executeAll(inits, environment), usage));
+    }
+
+    @Override
+    void compile(BytecodeCompiler.Body compiled) {
+      int frame = compiled.code().newLocal();
+      compileExtend(compiled, variables, inits, usage);
+      compiled.code().store(frame);
+      compiled.nodeIn(frame, body);
+    }
+  }
+
+  /**
+   * A named {@code let} whose body only ever calls itself in tail position.
+   * Each such call is a {@link Recur} that ends the current iteration, so the
+   * loop runs in constant stack space. When no closure can capture the loop
+   * variables, every iteration rebinds them in the same frame.
+   */
+  static final class Loop extends Node {
+    private final List<String> variables;
+    private final Node[] inits;
+    private final Node body;
+    private final VariableUsage usage;
+    private final boolean reuseFrame;
+
+    Loop(List<String> variables, Node[] inits, Node body, VariableUsage usage, boolean reuseFrame) {
+      this.variables = variables;
+      this.inits = inits;
+      this.body = body;
+      this.usage = usage;
+      this.reuseFrame = reuseFrame;
+    }
+
+    @Override
+    Value execute(Environment environment) {
+      Environment frame = environment.extend(variables, executeAll(inits, environment), usage);
+      for (;;) {
+        Value result = body.execute(frame);
+        if (!(result instanceof NextIteration)) {
+          return result;
+        }
+        Value[] values = ((NextIteration)result).values;
+        if (reuseFrame) {
+          frame.rebind(variables, values);
+        } else {
+          frame = environment.extend(variables, Arrays.asList(values), usage);
+        }
+      }
+    }
+
+    // Each Recur in the body rebinds the variables and jumps back to the start
+    @Override
+    void compile(BytecodeCompiler.Body compiled) {
+      ClassFile.Code code = compiled.code();
+      BytecodeCompiler.LoopTarget loop = new BytecodeCompiler.LoopTarget(this, code.newLocal(), compiled.getEnvironment());
+      compileExtend(compiled, variables, inits, usage);
+      code.store(loop.frame);
+      compiled.loop(loop, body);
+    }
+
+    private void compileNextIteration(BytecodeCompiler.Body compiled, BytecodeCompiler.LoopTarget loop) {
+      ClassFile.Code code = compiled.code();
+      int values = code.newLocal();
+      code.store(values);
+      if (reuseFrame) {
+        code.load(loop.frame);
+        compiled.constant(variables, LIST_TYPE);
+        code.load(values);
+        code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "rebind", "(" + LIST_TYPE + "[" + VALUE_TYPE + ")V");
+      } else {
+        code.load(loop.enclosing);
+        compiled.constant(variables, LIST_TYPE);
+        code.load(values);
+        code.invoke(INVOKESTATIC, "java/util/Arrays", "asList", "([Ljava/lang/Object;)" + LIST_TYPE);
+        compiled.constant(usage, USAGE_TYPE);
+        code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "extend", EXTEND_DESCRIPTOR);
+        code.store(loop.frame);
+      }
+      code.jump(GOTO, loop.start);
+      // never reached, but stands for the value the enclosing code expects
+      code.op(ACONST_NULL, 1);
+    }
+  }
+
+  /**
+   * A tail call of the enclosing {@link Loop}, which evaluates the values for
+   * the next iteration and hands them back to the loop.
+   */
+  static final class Recur extends Node {
+    private final Node[] operands;
+
+    Recur(Node[] operands) {
+      this.operands = operands;
+    }
+
+    @Override
+    Value execute(Environment environment) {
+      Value[] values = new Value[operands.length];
+      for (int i = 0; i < values.length; ++i) {
+        values[i] = operands[i].execute(environment);
+      }
+      return new NextIteration(values);
+    }
+
+    @Override
+    void compile(BytecodeCompiler.Body body) {
+      BytecodeCompiler.LoopTarget loop = body.currentLoop();
+      ClassFile.Code code = body.code();
+      code.pushInt(operands.length);
+      code.type(ANEWARRAY, VALUE);
+      for (int i = 0; i < operands.length; ++i) {
+        code.op(DUP, 1);
+        code.pushInt(i);
+        body.node(operands[i]);
+        code.op(AASTORE, -3);
+      }
+      loop.loop.compileNextIteration(body, loop);
+    }
+  }
+
+  // Only ever returned from the body of a loop to the loop itself
+  private static final class NextIteration implements Value {
+    private final Value[] values;
+
+    private NextIteration(Value[] values) {
+      this.values = values;
+    }
+  }
+
+  /**
+   * Creates a closure of a template whose body was compiled along with the
+   * enclosing code.
+   */
+  static final class LambdaExpression extends Node {
+    private final Lambda.Template template;
+
+    LambdaExpression(Lambda.Template template) {
+      this.template = template;
+    }
+
+    @Override
+    Value execute(Environment environment) {
+      return new Lambda(template, environment);
+    }
+
+    @Override
+    void compile(BytecodeCompiler.Body body) {
+      ClassFile.Code code = body.code();
+      code.type(NEW, LAMBDA);
+      code.op(DUP, 1);
+      body.constant(template, "L" + LAMBDA + "$Template;");
+      body.loadEnvironment();
+      code.invoke(INVOKESPECIAL, LAMBDA, "<init>", "(L" + LAMBDA + "$Template;" + ENVIRONMENT_TYPE + ")V");
+    }
+  }
+
+  static final class Application extends Node {
+    private final Datum sExpr;
+    private final Node operator;
+    private final Node[] operands;
+
+    Application(Datum sExpr, Node operator, Node[] operands) {
+      this.sExpr = sExpr;
+      this.operator = operator;
+      this.operands = operands;
+    }
+
+    @Override
+    Value execute(Environment environment) {
+      Value procedure = operator.execute(environment);
+      List<Value> args = new ArrayList<>(operands.length);
+      for (Node operand: operands) {
+        args.add(operand.execute(environment));
+      }
+      if (SamplingProfiler.ENABLED) {
+        SamplingProfiler.callSite(sExpr);
+      }
+      return procedure.apply(args);
+    }
+
+    // A user-defined procedure's body is called from the generated code
+    // itself, so that the call site sees only the procedures called here.
+    @Override
+    void compile(BytecodeCompiler.Body body) {
+      ClassFile.Code code = body.code();
+      int procedure = code.newLocal();
+      int args = code.newLocal();
+      int frame = code.newLocal();
+      ClassFile.Label profiled = new ClassFile.Label();
+      ClassFile.Label generic = new ClassFile.Label();
+      ClassFile.Label end = new ClassFile.Label();
+      body.node(operator);
+      code.store(procedure);
+      compileList(body, operands);
+      code.store(args);
+      code.field(GETSTATIC, "org/instructures/interp/SamplingProfiler", "ENABLED", "Z");
+      code.jump(IFEQ, profiled);
+      body.constant(sExpr, "Lorg/instructures/interp/values/Datum;");
+      code.invoke(INVOKESTATIC, "org/instructures/interp/SamplingProfiler", "callSite",
+                  "(Lorg/instructures/interp/values/Datum;)V");
+      code.mark(profiled);
+      code.load(procedure);
+      code.type(INSTANCEOF, LAMBDA);
+      code.jump(IFEQ, generic);
+      code.load(procedure);
+      code.type(CHECKCAST, LAMBDA);
+      code.load(args);
+      code.invoke(INVOKEVIRTUAL, LAMBDA, "enter", "(" + LIST_TYPE + ")" + ENVIRONMENT_TYPE);
+      code.op(DUP, 1);
+      code.store(frame);
+      code.jump(IFNULL, generic);
+      code.load(procedure);
+      code.type(CHECKCAST, LAMBDA);
+      code.load(frame);
+      code.invoke(INVOKEVIRTUAL, LAMBDA, "body", "(" + ENVIRONMENT_TYPE + ")" + NODE_TYPE);
+      code.load(frame);
+      code.invoke(INVOKEVIRTUAL, NODE, "execute", "(" + ENVIRONMENT_TYPE + ")" + VALUE_TYPE);
+      code.jump(GOTO, end);
+      code.mark(generic);
+      code.load(procedure);
+      code.load(args);
+      code.invoke(INVOKEINTERFACE, VALUE, "apply", "(" + LIST_TYPE + ")" + VALUE_TYPE);
+      code.mark(end);
+    }
+  }
+
+  /**
+   * A call of a builtin with one argument, done inline for as long as the
+   * variable naming the builtin has not been redefined or assigned. After
+   * that, the call deoptimizes to the equivalent generic application.
+   */
+  static final class UnaryPrimitive extends Node {
+    private final Assumption assumption;
+    private final Function<Value, Value> operation;
+    private final Node operand;
+    private final Node generic;
+
+    UnaryPrimitive(Assumption assumption, Function<Value, Value> operation, Node operand, Node generic) {
+      this.assumption = assumption;
+      this.operation = operation;
+      this.operand = operand;
+      this.generic = generic;
+    }
+
+    @Override
+    Value execute(Environment environment) {
+      if (assumption.isValid()) {
+        return operation.apply(operand.execute(environment));
+      }
+      return generic.execute(environment);
+    }
+
+    @Override
+    void compile(BytecodeCompiler.Body body) {
+      ClassFile.Code code = body.code();
+      ClassFile.Label invalid = new ClassFile.Label();
+      ClassFile.Label end = new ClassFile.Label();
+      compileCheck(body, assumption, invalid);
+      body.constant(operation, "Ljava/util/function/Function;");
+      body.node(operand);
+      code.invoke(INVOKEINTERFACE, "java/util/function/Function", "apply",
+                  "(Ljava/lang/Object;)Ljava/lang/Object;");
+      code.type(CHECKCAST, VALUE);
+      code.jump(GOTO, end);
+      code.mark(invalid);
+      body.execute(generic);
+      code.mark(end);
+    }
+  }
+
+  /**
+   * A call of a builtin with two arguments; see {@link UnaryPrimitive}.
+   */
+  static final class BinaryPrimitive extends Node {
+    private final Assumption assumption;
+    private final BinaryOperator<Value> operation;
+    private final Node left;
+    private final Node right;
+    private final Node generic;
+
+    BinaryPrimitive(Assumption assumption, BinaryOperator<Value> operation, Node left, Node right, Node generic) {
+      this.assumption = assumption;
+      this.operation = operation;
+      this.left = left;
+      this.right = right;
+      this.generic = generic;
+    }
+
+    @Override
+    Value execute(Environment environment) {
+      if (assumption.isValid()) {
+        Value leftValue = left.execute(environment);
+        return operation.apply(leftValue, right.execute(environment));
+      }
+      return generic.execute(environment);
+    }
+
+    @Override
+    void compile(BytecodeCompiler.Body body) {
+      ClassFile.Code code = body.code();
+      ClassFile.Label invalid = new ClassFile.Label();
+      ClassFile.Label end = new ClassFile.Label();
+      compileCheck(body, assumption, invalid);
+      body.constant(operation, "Ljava/util/function/BinaryOperator;");
+      body.node(left);
+      body.node(right);
+      code.invoke(INVOKEINTERFACE, "java/util/function/BiFunction", "apply",
+                  "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;");
+      code.type(CHECKCAST, VALUE);
+      code.jump(GOTO, end);
+      code.mark(invalid);
+      body.execute(generic);
+      code.mark(end);
+    }
+  }
+
+  private static List<Value> executeAll(Node[] nodes, Environment environment) {
+    List<Value> values = new ArrayList<>(nodes.length);
+    for (Node node: nodes) {
+      values.add(node.execute(environment));
+    }
+    return values;
+  }
+
+  // Emits code that leaves a list of the values of the nodes on the stack, as
+  // executeAll returns
+  private static void compileList(BytecodeCompiler.Body body, Node[] nodes) {
+    ClassFile.Code code = body.code();
+    code.type(NEW, "java/util/ArrayList");
+    code.op(DUP, 1);
+    code.pushInt(nodes.length);
+    code.invoke(INVOKESPECIAL, "java/util/ArrayList", "<init>", "(I)V");
+    for (Node node: nodes) {
+      code.op(DUP, 1);
+      body.node(node);
+      code.invoke(INVOKEINTERFACE, "java/util/List", "add", "(Ljava/lang/Object;)Z");
+      code.op(POP, -1);
+    }
+  }
+
+  // Emits code that leaves a frame binding the variables to the values of the
+  // inits, extending the current environment, on the stack
+  private static void compileExtend(BytecodeCompiler.Body body, List<String> variables, Node[] inits,
+                                    VariableUsage usage) {
+    body.loadEnvironment();
+    body.constant(variables, LIST_TYPE);
+    compileList(body, inits);
+    body.constant(usage, USAGE_TYPE);
+    body.code().invoke(INVOKEVIRTUAL, ENVIRONMENT, "extend", EXTEND_DESCRIPTOR);
+  }
+
+  // Emits a jump to the label unless the assumption is valid
+  private static void compileCheck(BytecodeCompiler.Body body, Assumption assumption, ClassFile.Label invalid) {
+    body.constant(assumption, "Lorg/instructures/interp/Assumption;");
+    body.code().invoke(INVOKEVIRTUAL, "org/instructures/interp/Assumption", "isValid", "()Z");
+    body.code().jump(IFEQ, invalid);
+  }
+
+  /**
+   * Code specialized on assumptions about the bindings of builtins, which
+   * falls back to the generic code once any of them fails.
+   */
+  static final class Guarded extends Node {
+    private final Assumption[] assumptions;
+    private final Node fast;
+    private final Node generic;
+
+    Guarded(List<Assumption> assumptions, Node fast, Node generic) {
+      this.assumptions = assumptions.toArray(new Assumption[0]);
+      this.fast = fast;
+      this.generic = generic;
+    }
+
+    List<Assumption> getAssumptions() {
+      return Arrays.asList(assumptions);
+    }
+
+    Node getFast() {
+      return fast;
+    }
+
+    @Override
+    Value execute(Environment environment) {
+      for (Assumption assumption: assumptions) {
+        if (!assumption.isValid()) {
+          return generic.execute(environment);
+        }
+      }
+      return fast.execute(environment);
+    }
+
+    // The generic code is emitted inline too, as it may hold a loop's tail
+    // calls
+    @Override
+    void compile(BytecodeCompiler.Body body) {
+      ClassFile.Code code = body.code();
+      ClassFile.Label invalid = new ClassFile.Label();
+      ClassFile.Label end = new ClassFile.Label();
+      for (Assumption assumption: assumptions) {
+        compileCheck(body, assumption, invalid);
+      }
+      body.node(fast);
+      code.jump(GOTO, end);
+      code.mark(invalid);
+      body.node(generic);
+      code.mark(end);
+    }
+  }
+
+  /**
+   * Counts each execution of a node in its slot of a {@link Coverage} block.
+   */
+  static final class Counted extends Node {
+    private final long[] counters;
+    private final int index;
+    private final Node node;
+
+    Counted(long[] counters, int index, Node node) {
+      this.counters = counters;
+      this.index = index;
+      this.node = node;
+    }
+
+    @Override
+    Value execute(Environment environment) {
+      ++counters[index];
+      return node.execute(environment);
+    }
+
+    @Override
+    void compile(BytecodeCompiler.Body body) {
+      ClassFile.Code code = body.code();
+      body.constant(counters, "[J");
+      code.pushInt(index);
+      code.op(DUP2, 2);
+      code.op(LALOAD, 0);
+      code.op(LCONST_1, 2);
+      code.op(LADD, -2);
+      code.op(LASTORE, -4);
+      body.node(node);
+    }
+  }
+
+  /**
+   * Counts each execution of a node in one of the {@link Metrics} counters.
+   */
+  static final class Metered extends Node {
+    private final LongAdder counter;
+    private final Node node;
+
+    Metered(LongAdder counter, Node node) {
+      this.counter = counter;
+      this.node = node;
+    }
+
+    @Override
+    Value execute(Environment environment) {
+      counter.increment();
+      return node.execute(environment);
+    }
+
+    @Override
+    void compile(BytecodeCompiler.Body body) {
+      body.constant(counter, "Ljava/util/concurrent/atomic/LongAdder;");
+      body.code().invoke(INVOKEVIRTUAL, "java/util/concurrent/atomic/LongAdder", "increment", "()V");
+      body.node(node);
+    }
+  }
+
+  /**
+   * A procedure body that is still interpreted.
+   */
+  static final class InterpretedBody extends Node {
+    private final List<Datum> body;
+
+    InterpretedBody(List<Datum> body) {
+      this.body = body;
+    }
+
+    @Override
+    Value execute(Environment environment) {
+      return SchemeEvaluator.evaluateSequence(body, environment);
+    }
+  }
+
+  /**
+   * A form the analyzer does not handle, which is left to the interpreter.
+   */
+  static final class Interpreted extends Node {
+    private final Datum sExpr;
+
+    Interpreted(Datum sExpr) {
+      this.sExpr = sExpr;
+    }
+
+    @Override
+    Value execute(Environment environment) {
+      return SchemeEvaluator.evaluate(sExpr, environment);
+    }
+  }
+}
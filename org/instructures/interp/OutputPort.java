@@ -0,0 +1,191 @@
+package org.instructures.interp;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.instructures.interp.values.RuntimeValue;
+
+/**
+ * A port that {@code display}, {@code write} and the like write to: an
+ * evaluator's output, a file, or a string. A port keeps what is written to it
+ * in a buffer, and passes it on only when it is flushed: by
+ * {@code flush-output-port}, after each top-level form an evaluator
+ * evaluates, when the port is closed, or when the JVM exits. So a loop that
+ * displays many values locks and encodes into the underlying stream once per
+ * buffer full, not once per call.
+ *
+ * Each thread has a current output port, that of the evaluator running on
+ * it, or else one for standard output. The threads started by {@code pmap}
+ * or {@code spawn} write to the port of the thread that started them, and
+ * each write to a port is atomic.
+ */
+final class OutputPort extends RuntimeValue {
+  private static final int BUFFER_SIZE = 8192;
+
+  private static final ThreadLocal<OutputPort> current = new ThreadLocal<>();
+  // The ports with buffered output, which are flushed at exit
+  private static final Set<OutputPort> pending = ConcurrentHashMap.newKeySet();
+  private static final OutputPort standardOutput = newPort(System.out);
+
+  static {
+    Runtime.getRuntime().addShutdownHook(new Thread(OutputPort::flushAll, "scheme-output"));
+  }
+
+  private final Writer writer;
+  // What has been written to a string port, or null for any other port
+  private final StringWriter text;
+  private boolean isBuffered;
+  private boolean isClosed;
+
+  private OutputPort(Writer writer, StringWriter text) {
+    this.writer = writer;
+    this.text = text;
+  }
+
+  /**
+   * Returns a new port that writes to the stream, which encodes what is
+   * written. Closing the port flushes it, but leaves the stream open.
+   */
+  static OutputPort newPort(PrintStream stream) {
+    return new OutputPort(new BufferedWriter(new PrintStreamWriter(stream), BUFFER_SIZE), null);
+  }
+
+  /**
+   * Returns a new port that writes to the named file in UTF-8, replacing
+   * what it held.
+   */
+  static OutputPort openFile(String filename) {
+    try {
+      Writer file = new OutputStreamWriter(new FileOutputStream(filename), StandardCharsets.UTF_8);
+      return new OutputPort(new BufferedWriter(file, BUFFER_SIZE), null);
+    } catch (IOException e) {
+      throw Problem.ioError("Cannot open %s: %s", filename, e.getMessage());
+    }
+  }
+
+  /**
+   * Returns a new port that collects what is written to it in a string.
+   */
+  static OutputPort newStringPort() {
+    StringWriter text = new StringWriter();
+    return new OutputPort(text, text);
+  }
+
+  static OutputPort current() {
+    OutputPort port = current.get();
+    return (port != null) ? port : standardOutput;
+  }
+
+  /**
+   * Makes the port the current thread's output, or standard output if it is
+   * {@code null}, and returns the output it replaces.
+   */
+  static OutputPort replace(OutputPort port) {
+    OutputPort previous = current.get();
+    current.set(port);
+    return previous;
+  }
+
+  synchronized void write(String string) {
+    if (isClosed) {
+      throw Problem.ioError("Output port is closed");
+    }
+    try {
+      writer.write(string);
+    } catch (IOException e) {
+      throw Problem.ioError("Cannot write output: %s", e.getMessage());
+    }
+    if (!isBuffered && text == null) {
+      isBuffered = true;
+      pending.add(this);
+    }
+  }
+
+  synchronized void flush() {
+    if (!isBuffered) {
+      return;
+    }
+    isBuffered = false;
+    pending.remove(this);
+    try {
+      writer.flush();
+    } catch (IOException e) {
+      throw Problem.ioError("Cannot write output: %s", e.getMessage());
+    }
+  }
+
+  synchronized void close() {
+    if (isClosed) {
+      return;
+    }
+    flush();
+    isClosed = true;
+    try {
+      writer.close();
+    } catch (IOException e) {
+      throw Problem.ioError("Cannot close output: %s", e.getMessage());
+    }
+  }
+
+  /**
+   * Returns what has been written to a string port.
+   */
+  synchronized String getString() {
+    if (text == null) {
+      throw Problem.typeError("Not a string port: %s", this);
+    }
+    return text.toString();
+  }
+
+  private static void flushAll() {
+    List<OutputPort> ports = new ArrayList<>(pending);
+    for (OutputPort port: ports) {
+      try {
+        port.flush();
+      } catch (Problem e) {
+        // there is nowhere left to report it
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "<output-port>";
+  }
+
+  /**
+   * Writes characters to a print stream, which encodes them as it is set up
+   * to, so that a port over an evaluator's output uses its encoding.
+   */
+  private static final class PrintStreamWriter extends Writer {
+    private final PrintStream stream;
+
+    private PrintStreamWriter(PrintStream stream) {
+      this.stream = stream;
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length) {
+      stream.print(new String(chars, offset, length));
+    }
+
+    @Override
+    public void flush() {
+      stream.flush();
+    }
+
+    @Override
+    public void close() {
+      stream.flush();
+    }
+  }
+}
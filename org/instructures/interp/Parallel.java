@@ -0,0 +1,155 @@
+package org.instructures.interp;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import org.instructures.interp.values.*;
+import org.instructures.interp.values.RuntimeValue.Procedure;
+
+/**
+ * The builtins that run Scheme code on other threads. The data-parallel ones,
+ * {@code pmap}, {@code pfor-each} and {@code preduce}, apply a procedure to
+ * the elements of a list on the common fork/join pool, and {@code future}
+ * starts a thunk there. {@code spawn} starts a thunk on a thread of its own,
+ * a virtual thread when the JVM has them, to communicate through
+ * {@link Channel}s.
+ *
+ * A list is split into a balanced tree of tasks by its spliterator; see
+ * {@link CompoundDatum#spliterator}. Lists shorter than the threshold set by
+ * {@code -Dscheme.parallel.threshold} are done on the calling thread, where
+ * the cost of splitting would be more than it saves. The procedures run with
+ * the caller's output port and global environment, and may read, but should
+ * not assign, the variables they share with each other.
+ */
+final class Parallel {
+  static final int SEQUENTIAL_THRESHOLD = Integer.getInteger("scheme.parallel.threshold", 8);
+
+  private static final ExecutorService SPAWNED = newThreadPerTaskExecutor("scheme-spawn");
+
+  private Parallel() {
+  }
+
+  /**
+   * Returns the list of the procedure's results for the elements, in order.
+   */
+  static CompoundDatum map(Procedure procedure, CompoundDatum list) {
+    Function<Value, Value> apply = inCallerContext(element -> procedure.apply(Collections.singletonList(element)));
+    List<Value> results = elements(list).map(apply).collect(Collectors.toList());
+    return CompoundDatum.newList(results);
+  }
+
+  /**
+   * Applies the procedure to the elements, in no particular order.
+   */
+  static void forEach(Procedure procedure, CompoundDatum list) {
+    Function<Value, Value> apply = inCallerContext(element -> procedure.apply(Collections.singletonList(element)));
+    elements(list).forEach(apply::apply);
+  }
+
+  /**
+   * Combines the elements with the procedure, which must be associative and
+   * have the given identity: each task folds its part of the list starting
+   * from the identity, and the parts are then combined in order.
+   */
+  static Value reduce(Procedure procedure, Value identity, CompoundDatum list) {
+    Function<List<Value>, Value> apply = inCallerContext(procedure::apply);
+    BinaryOperator<Value> combine = (a, b) -> apply.apply(Arrays.asList(a, b));
+    return elements(list).reduce(identity, combine, combine);
+  }
+
+  /**
+   * Starts applying the thunk on the pool and returns its future.
+   */
+  static Future future(Procedure thunk) {
+    Function<List<Value>, Value> apply = inCallerContext(thunk::apply);
+    Callable<Value> task = () -> apply.apply(Collections.emptyList());
+    return new Future(ForkJoinPool.commonPool().submit(task));
+  }
+
+  /**
+   * Starts applying the thunk on a new thread. An error in it is reported on
+   * standard error, as there is nothing to return it to.
+   */
+  static void spawn(Procedure thunk) {
+    Function<List<Value>, Value> apply = inCallerContext(thunk::apply);
+    SPAWNED.execute(() -> {
+      try {
+        apply.apply(Collections.emptyList());
+      } catch (Problem e) {
+        System.err.printf("spawn:%s%n", e.getMessage());
+      }
+    });
+  }
+
+  /**
+   * Returns an executor that starts a virtual thread for each task, or a
+   * daemon platform thread with the given name if virtual threads are not
+   * available.
+   */
+  static ExecutorService newThreadPerTaskExecutor(String name) {
+    try {
+      return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+  }
+
+  private static Stream<Value> elements(CompoundDatum list) {
+    Spliterator<Value> spliterator = list.spliterator();
+    return StreamSupport.stream(spliterator, spliterator.estimateSize() >= SEQUENTIAL_THRESHOLD);
+  }
+
+  // Wraps a function to be run on a worker thread with the calling thread's
+  // output port and session.
+  static <T> Function<T, Value> inCallerContext(Function<T, Value> fn) {
+    OutputPort out = OutputPort.current();
+    Environment global = Environment.currentSession();
+    return arg -> {
+      OutputPort previous = OutputPort.replace(out);
+      Environment previousSession = Environment.replaceSession(global);
+      try {
+        return fn.apply(arg);
+      } finally {
+        Environment.replaceSession(previousSession);
+        OutputPort.replace(previous);
+      }
+    };
+  }
+
+  /**
+   * The result of a thunk being applied on another thread. Touching the
+   * future waits for the thunk to finish, and returns its value or throws its
+   * error.
+   */
+  static final class Future extends RuntimeValue {
+    private final ForkJoinTask<Value> task;
+
+    private Future(ForkJoinTask<Value> task) {
+      this.task = task;
+    }
+
+    Value touch() {
+      return task.join();
+    }
+
+    @Override
+    public String toString() {
+      return "<future>";
+    }
+  }
+}
@@ -0,0 +1,219 @@
+package org.instructures.interp;
+
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+/**
+ * An immutable map, as a hash array mapped trie: each level of the trie is
+ * indexed by the next five bits of a key's hash, and holds only the entries
+ * that are present, found with a bitmap. Adding a binding copies just the
+ * path to it, so the new map shares everything else with the old one, and
+ * any number of threads can read either without locking.
+ */
+final class PersistentMap<K, V> {
+  private static final PersistentMap<?, ?> EMPTY = new PersistentMap<>(null, 0);
+
+  private final TrieNode root;
+  private final int size;
+
+  private PersistentMap(TrieNode root, int size) {
+    this.root = root;
+    this.size = size;
+  }
+
+  @SuppressWarnings("unchecked")
+  static <K, V> PersistentMap<K, V> empty() {
+    return (PersistentMap<K, V>)EMPTY;
+  }
+
+  /**
+   * Returns the value for the key, or {@code null} if it has none.
+   */
+  @SuppressWarnings("unchecked")
+  V get(K key) {
+    return (root == null) ? null : (V)root.find(key, hash(key), 0);
+  }
+
+  /**
+   * Returns a map with the key bound to the value, and otherwise the same as
+   * this one.
+   */
+  PersistentMap<K, V> put(K key, V value) {
+    boolean[] isAdded = {false};
+    TrieNode start = (root == null) ? BitmapNode.EMPTY : root;
+    TrieNode newRoot = start.put(key, value, hash(key), 0, isAdded);
+    return (newRoot == root) ? this : new PersistentMap<>(newRoot, isAdded[0] ? size + 1 : size);
+  }
+
+  int size() {
+    return size;
+  }
+
+  @SuppressWarnings("unchecked")
+  void forEach(BiConsumer<? super K, ? super V> action) {
+    if (root != null) {
+      root.forEach((key, value) -> action.accept((K)key, (V)value));
+    }
+  }
+
+  private static int hash(Object key) {
+    int h = key.hashCode();
+    return h ^ (h >>> 16);
+  }
+
+  private abstract static class TrieNode {
+    abstract Object find(Object key, int hash, int shift);
+
+    // Returns this node if the key was already bound to the value
+    abstract TrieNode put(Object key, Object value, int hash, int shift, boolean[] isAdded);
+
+    abstract void forEach(BiConsumer<Object, Object> action);
+  }
+
+  /**
+   * A level of the trie. The entries are stored in pairs: a key and its
+   * value, or {@code null} and the node for the next level.
+   */
+  private static final class BitmapNode extends TrieNode {
+    private static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+    private final int bitmap;
+    private final Object[] entries;
+
+    private BitmapNode(int bitmap, Object[] entries) {
+      this.bitmap = bitmap;
+      this.entries = entries;
+    }
+
+    private static int bit(int hash, int shift) {
+      return 1 << ((hash >>> shift) & 31);
+    }
+
+    private int index(int bit) {
+      return 2 * Integer.bitCount(bitmap & (bit - 1));
+    }
+
+    @Override
+    Object find(Object key, int hash, int shift) {
+      int bit = bit(hash, shift);
+      if ((bitmap & bit) == 0) {
+        return null;
+      }
+      int i = index(bit);
+      Object entryKey = entries[i];
+      if (entryKey == null) {
+        return ((TrieNode)entries[i + 1]).find(key, hash, shift + 5);
+      }
+      return key.equals(entryKey) ? entries[i + 1] : null;
+    }
+
+    @Override
+    TrieNode put(Object key, Object value, int hash, int shift, boolean[] isAdded) {
+      int bit = bit(hash, shift);
+      int i = index(bit);
+      if ((bitmap & bit) == 0) {
+        isAdded[0] = true;
+        Object[] newEntries = new Object[entries.length + 2];
+        System.arraycopy(entries, 0, newEntries, 0, i);
+        newEntries[i] = key;
+        newEntries[i + 1] = value;
+        System.arraycopy(entries, i, newEntries, i + 2, entries.length - i);
+        return new BitmapNode(bitmap | bit, newEntries);
+      }
+      Object entryKey = entries[i];
+      Object entryValue = entries[i + 1];
+      if (entryKey == null) {
+        TrieNode child = ((TrieNode)entryValue).put(key, value, hash, shift + 5, isAdded);
+        return (child == entryValue) ? this : with(i, null, child);
+      }
+      if (key.equals(entryKey)) {
+        return (value == entryValue) ? this : with(i, entryKey, value);
+      }
+      isAdded[0] = true;
+      return with(i, null, split(entryKey, entryValue, key, value, hash, shift + 5));
+    }
+
+    private BitmapNode with(int i, Object key, Object value) {
+      Object[] newEntries = entries.clone();
+      newEntries[i] = key;
+      newEntries[i + 1] = value;
+      return new BitmapNode(bitmap, newEntries);
+    }
+
+    // Returns a node holding two entries whose hashes agree below the shift
+    private static TrieNode split(Object key1, Object value1, Object key2, Object value2, int hash2, int shift) {
+      int hash1 = hash(key1);
+      if (hash1 == hash2) {
+        return new CollisionNode(hash1, new Object[] {key1, value1, key2, value2});
+      }
+      boolean[] ignored = {false};
+      return EMPTY.put(key1, value1, hash1, shift, ignored).put(key2, value2, hash2, shift, ignored);
+    }
+
+    @Override
+    void forEach(BiConsumer<Object, Object> action) {
+      for (int i = 0; i < entries.length; i += 2) {
+        if (entries[i] == null) {
+          ((TrieNode)entries[i + 1]).forEach(action);
+        } else {
+          action.accept(entries[i], entries[i + 1]);
+        }
+      }
+    }
+  }
+
+  /**
+   * The entries whose keys have the same full hash.
+   */
+  private static final class CollisionNode extends TrieNode {
+    private final int hash;
+    private final Object[] entries;
+
+    private CollisionNode(int hash, Object[] entries) {
+      this.hash = hash;
+      this.entries = entries;
+    }
+
+    @Override
+    Object find(Object key, int hash, int shift) {
+      if (hash == this.hash) {
+        for (int i = 0; i < entries.length; i += 2) {
+          if (key.equals(entries[i])) {
+            return entries[i + 1];
+          }
+        }
+      }
+      return null;
+    }
+
+    @Override
+    TrieNode put(Object key, Object value, int hash, int shift, boolean[] isAdded) {
+      if (hash != this.hash) {
+        TrieNode level = new BitmapNode(BitmapNode.bit(this.hash, shift), new Object[] {null, this});
+        return level.put(key, value, hash, shift, isAdded);
+      }
+      for (int i = 0; i < entries.length; i += 2) {
+        if (key.equals(entries[i])) {
+          if (value == entries[i + 1]) {
+            return this;
+          }
+          Object[] newEntries = entries.clone();
+          newEntries[i + 1] = value;
+          return new CollisionNode(hash, newEntries);
+        }
+      }
+      isAdded[0] = true;
+      Object[] newEntries = Arrays.copyOf(entries, entries.length + 2);
+      newEntries[entries.length] = key;
+      newEntries[entries.length + 1] = value;
+      return new CollisionNode(hash, newEntries);
+    }
+
+    @Override
+    void forEach(BiConsumer<Object, Object> action) {
+      for (int i = 0; i < entries.length; i += 2) {
+        action.accept(entries[i], entries[i + 1]);
+      }
+    }
+  }
+}
@@ -1,18 +1,91 @@
 package org.instructures.interp;
 
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.BinaryOperator;
 import java.util.function.Function;
 import java.util.function.Supplier;
 import org.instructures.interp.values.*;
 import org.instructures.interp.values.LexemeDatum.CharacterDatum;
 import org.instructures.interp.values.LexemeDatum.NumberDatum;
+import org.instructures.interp.values.LexemeDatum.StringDatum;
+import org.instructures.interp.values.LexemeDatum.SymbolDatum;
 import org.instructures.interp.values.RuntimeValue.Procedure;
 
 public class Primitives {
+  private static final Map<String, Function<Value, Value>> UNARY_INTRINSICS = new HashMap<>();
+  private static final Map<String, BinaryOperator<Value>> BINARY_INTRINSICS = new HashMap<>();
+  private static final Set<String> PURE_BUILTINS = new HashSet<>();
+
+  private static final StringDatum EMPTY_STRING = LexemeDatum.newString("");
+  private static final StringDatum SPACE_STRING = LexemeDatum.newString(" ");
+
+  // Inline versions of builtins for compiled call sites with a fixed number of
+  // arguments. Each must behave exactly like the builtin of the same name.
+  static {
+    UNARY_INTRINSICS.put("car", obj -> checkArgType(CompoundDatum.Pair.class, obj).getCar());
+    UNARY_INTRINSICS.put("cdr", obj -> checkArgType(CompoundDatum.Pair.class, obj).getCdr());
+    UNARY_INTRINSICS.put("null?", obj -> LexemeDatum.newBoolean(obj.isEmptyList()));
+    UNARY_INTRINSICS.put("pair?", obj -> LexemeDatum.newBoolean(obj.isPair()));
+    UNARY_INTRINSICS.put("not", obj -> LexemeDatum.newBoolean(!obj.isTrue()));
+    UNARY_INTRINSICS.put("zero?", obj -> {
+      return LexemeDatum.newBoolean(checkArgType(NumberDatum.class, obj).getValue().signum() == 0);
+    });
+
+    BINARY_INTRINSICS.put("cons", CompoundDatum::newPair);
+    BINARY_INTRINSICS.put("eq?", (a, b) -> LexemeDatum.newBoolean(a == b));
+    BINARY_INTRINSICS.put("eqv?", (a, b) -> LexemeDatum.newBoolean(a == b));
+    BINARY_INTRINSICS.put("equal?", (a, b) -> LexemeDatum.newBoolean(a.isEqual(b)));
+    BINARY_INTRINSICS.put("+", (a, b) -> LexemeDatum.newNumber(numberValue(a).add(numberValue(b))));
+    BINARY_INTRINSICS.put("-", (a, b) -> LexemeDatum.newNumber(numberValue(a).subtract(numberValue(b))));
+    BINARY_INTRINSICS.put("*", (a, b) -> LexemeDatum.newNumber(numberValue(a).multiply(numberValue(b))));
+    BINARY_INTRINSICS.put("<", (a, b) -> LexemeDatum.newBoolean(numberValue(a).compareTo(numberValue(b)) < 0));
+    BINARY_INTRINSICS.put("<=", (a, b) -> LexemeDatum.newBoolean(numberValue(a).compareTo(numberValue(b)) <= 0));
+    BINARY_INTRINSICS.put(">", (a, b) -> LexemeDatum.newBoolean(numberValue(a).compareTo(numberValue(b)) > 0));
+    BINARY_INTRINSICS.put(">=", (a, b) -> LexemeDatum.newBoolean(numberValue(a).compareTo(numberValue(b)) >= 0));
+    BINARY_INTRINSICS.put("=", (a, b) -> LexemeDatum.newBoolean(numberValue(a).compareTo(numberValue(b)) == 0));
+  }
+
+  // Builtins with no side effects whose result depends only on their
+  // arguments, and is never a newly allocated pair, so that calls with
+  // constant arguments can be folded.
+  static {
+    String[] pureBuiltins = {
+      "eq?", "eqv?", "equal?",
+      "boolean?", "char?", "list?", "null?", "number?", "pair?", "procedure?", "string?", "symbol?",
+      "vector?", "bytevector?", "fxvector?",
+      "not", "car", "cdr",
+      "length", "list-tail", "list-ref", "memq", "memv", "assq", "assv",
+      "string", "string-length", "string-ref", "string-append", "substring", "string-join",
+      "list->string", "number->string", "string->symbol", "symbol->string",
+      "abs", "even?", "odd?", "positive?", "negative?", "zero?",
+      "*", "+", "max", "min", "-", "/", "<", "<=", ">", ">=", "="
+    };
+    PURE_BUILTINS.addAll(Arrays.asList(pureBuiltins));
+  }
+
+  // Built once and forked for each new global environment
+  private static final Environment BUILTINS = newBuiltinEnvironment();
+
+  /**
+   * Returns a new environment with just the builtins defined in it.
+   */
   public static Environment newGlobalEnvironment() {
+    return BUILTINS.fork();
+  }
+
+  private static Environment newBuiltinEnvironment() {
     Environment ge = Environment.newEmptyEnvironment();
     
     // apply
@@ -40,16 +113,70 @@ public class Primitives {
     add(ge, "string?", newUnaryOp(Value.class, obj -> LexemeDatum.newBoolean(obj.isString())));
     add(ge, "symbol?", newUnaryOp(Value.class, obj -> LexemeDatum.newBoolean(obj.isSymbol())));
 
-    // output functions
-    add(ge, "newline", newNullaryOp(() -> {
-      System.out.println();
+    // output functions, which write to the current output port or the one
+    // given last
+    add(ge, "current-output-port", newNullaryOp(OutputPort::current));
+    add(ge, "newline", new Procedure(0, true) {
+      @Override
+      protected Value checkedApply(LinkedList<Value> args) {
+        portArg(args.removeFirst()).write(System.lineSeparator());
+        return RuntimeValue.newUnspecified();
+      }
+    });
+    add(ge, "display", new Procedure(1, true) {
+      @Override
+      protected Value checkedApply(LinkedList<Value> args) {
+        Value obj = args.removeFirst();
+        portArg(args.removeFirst()).write(obj.toString());
+        return RuntimeValue.newUnspecified();
+      }
+    });
+    add(ge, "write", new Procedure(1, true) {
+      @Override
+      protected Value checkedApply(LinkedList<Value> args) {
+        Value obj = args.removeFirst();
+        portArg(args.removeFirst()).write(obj.toSyntaxString());
+        return RuntimeValue.newUnspecified();
+      }
+    });
+    add(ge, "write-string", new Procedure(1, true) {
+      @Override
+      protected Value checkedApply(LinkedList<Value> args) {
+        StringDatum str = checkArgType(StringDatum.class, args.removeFirst());
+        portArg(args.removeFirst()).write(str.toString());
+        return RuntimeValue.newUnspecified();
+      }
+    });
+    add(ge, "flush-output-port", new Procedure(0, true) {
+      @Override
+      protected Value checkedApply(LinkedList<Value> args) {
+        portArg(args.removeFirst()).flush();
+        return RuntimeValue.newUnspecified();
+      }
+    });
+    add(ge, "open-output-file", newUnaryOp(StringDatum.class, filename -> OutputPort.openFile(filename.toString())));
+    add(ge, "close-output-port", newUnaryOp(OutputPort.class, port -> {
+      port.close();
       return RuntimeValue.newUnspecified();
     }));
-    add(ge, "display", newUnaryOp(Value.class, obj -> {
-      System.out.printf("%s", obj.toString());
-      return RuntimeValue.newUnspecified();
+    add(ge, "with-output-to-string", newUnaryOp(Procedure.class, thunk -> {
+      OutputPort port = OutputPort.newStringPort();
+      OutputPort previous = OutputPort.replace(port);
+      try {
+        thunk.apply(Collections.emptyList());
+      } finally {
+        OutputPort.replace(previous);
+      }
+      return LexemeDatum.newFreshString(port.getString());
     }));
 
+    // equivalence predicates; atoms are interned, so eqv? is eq?
+    Procedure eq = newBinaryOp(Value.class, Value.class, (a, b) -> LexemeDatum.newBoolean(a == b));
+    Procedure equal = newBinaryOp(Value.class, Value.class, (a, b) -> LexemeDatum.newBoolean(a.isEqual(b)));
+    add(ge, "eq?", eq);
+    add(ge, "eqv?", eq);
+    add(ge, "equal?", equal);
+
     // unary logical functions
     add(ge, "not", newUnaryOp(Value.class, obj -> LexemeDatum.newBoolean(!obj.isTrue())));
 
@@ -59,24 +186,365 @@ public class Primitives {
     }));
     add(ge, "car", newUnaryOp(CompoundDatum.Pair.class, pair -> pair.getCar()));
     add(ge, "cdr", newUnaryOp(CompoundDatum.Pair.class, pair -> pair.getCdr()));
+    add(ge, "list", new Procedure(0, true) {
+      @Override
+      protected Value checkedApply(LinkedList<Value> args) {
+        return args.removeFirst();
+      }
+    });
+    add(ge, "length", newUnaryOp(Value.class, list -> {
+      long length = 0;
+      Value curr = list;
+      for (; curr.isPair(); curr = curr.getCdr()) {
+        ++length;
+      }
+      checkListEnd(curr);
+      return LexemeDatum.newNumber(length);
+    }));
+    add(ge, "append", new Procedure(0, true) {
+      @Override
+      protected Value checkedApply(LinkedList<Value> args) {
+        LinkedList<Value> lists = args.removeFirst().asProperList();
+        if (lists.isEmpty()) {
+          return CompoundDatum.newEmptyList();
+        }
+        // the last list is shared, and the others are copied in front of it
+        Value last = lists.removeLast();
+        CompoundDatum.ListBuilder result = new CompoundDatum.ListBuilder();
+        for (Value list: lists) {
+          Value curr = list;
+          for (; curr.isPair(); curr = curr.getCdr()) {
+            result.add(curr.getCar());
+          }
+          checkListEnd(curr);
+        }
+        return result.build(last);
+      }
+    });
+    add(ge, "reverse", newUnaryOp(Value.class, list -> {
+      Value result = CompoundDatum.newEmptyList();
+      Value curr = list;
+      for (; curr.isPair(); curr = curr.getCdr()) {
+        result = CompoundDatum.newPair(curr.getCar(), result);
+      }
+      checkListEnd(curr);
+      return result;
+    }));
+    add(ge, "list-tail", newBinaryOp(Value.class, NumberDatum.class, (list, k) -> listTail(list, intValue(k))));
+    add(ge, "list-ref", newBinaryOp(Value.class, NumberDatum.class, (list, k) -> {
+      Value tail = listTail(list, intValue(k));
+      if (!tail.isPair()) {
+        throw Problem.argumentError("List index out of range: %s", k);
+      }
+      return tail.getCar();
+    }));
+    add(ge, "map", new Procedure(2, true) {
+      @Override
+      protected Value checkedApply(LinkedList<Value> args) {
+        Procedure proc = checkArgType(Procedure.class, args.removeFirst());
+        Value[] lists = listArgs(args.removeFirst(), args.removeFirst());
+        CompoundDatum.ListBuilder results = new CompoundDatum.ListBuilder();
+        for (List<Value> elements = nextElements(lists); elements != null; elements = nextElements(lists)) {
+          results.add(proc.apply(elements));
+        }
+        return results.build();
+      }
+    });
+    add(ge, "for-each", new Procedure(2, true) {
+      @Override
+      protected Value checkedApply(LinkedList<Value> args) {
+        Procedure proc = checkArgType(Procedure.class, args.removeFirst());
+        Value[] lists = listArgs(args.removeFirst(), args.removeFirst());
+        for (List<Value> elements = nextElements(lists); elements != null; elements = nextElements(lists)) {
+          proc.apply(elements);
+        }
+        return RuntimeValue.newUnspecified();
+      }
+    });
+    add(ge, "filter", newBinaryOp(Procedure.class, Value.class, (pred, list) -> {
+      CompoundDatum.ListBuilder results = new CompoundDatum.ListBuilder();
+      Value curr = list;
+      for (; curr.isPair(); curr = curr.getCdr()) {
+        if (pred.apply(Collections.singletonList(curr.getCar())).isTrue()) {
+          results.add(curr.getCar());
+        }
+      }
+      checkListEnd(curr);
+      return results.build();
+    }));
+    add(ge, "fold-left", new Procedure(3, true) {
+      @Override
+      protected Value checkedApply(LinkedList<Value> args) {
+        Procedure proc = checkArgType(Procedure.class, args.removeFirst());
+        Value result = args.removeFirst();
+        Value[] lists = listArgs(args.removeFirst(), args.removeFirst());
+        for (List<Value> elements = nextElements(lists); elements != null; elements = nextElements(lists)) {
+          elements.add(0, result);
+          result = proc.apply(elements);
+        }
+        return result;
+      }
+    });
+    add(ge, "fold-right", new Procedure(3, true) {
+      @Override
+      protected Value checkedApply(LinkedList<Value> args) {
+        Procedure proc = checkArgType(Procedure.class, args.removeFirst());
+        Value result = args.removeFirst();
+        Value[] lists = listArgs(args.removeFirst(), args.removeFirst());
+        // the elements are gathered first, to be combined from the last one
+        // back without recursing
+        List<List<Value>> rows = new ArrayList<>();
+        for (List<Value> elements = nextElements(lists); elements != null; elements = nextElements(lists)) {
+          rows.add(elements);
+        }
+        for (int i = rows.size() - 1; i >= 0; --i) {
+          List<Value> elements = rows.get(i);
+          elements.add(result);
+          result = proc.apply(elements);
+        }
+        return result;
+      }
+    });
+    Procedure memq = newBinaryOp(Value.class, Value.class, (obj, list) -> find(obj, list, (a, b) -> a == b, false));
+    add(ge, "memq", memq);
+    add(ge, "memv", memq);
+    add(ge, "member", new Procedure(2, true) {
+      @Override
+      protected Value checkedApply(LinkedList<Value> args) {
+        Value obj = args.removeFirst();
+        Value list = args.removeFirst();
+        return find(obj, list, comparison(args.removeFirst()), false);
+      }
+    });
+    Procedure assq = newBinaryOp(Value.class, Value.class, (obj, alist) -> find(obj, alist, (a, b) -> a == b, true));
+    add(ge, "assq", assq);
+    add(ge, "assv", assq);
+    add(ge, "assoc", new Procedure(2, true) {
+      @Override
+      protected Value checkedApply(LinkedList<Value> args) {
+        Value obj = args.removeFirst();
+        Value alist = args.removeFirst();
+        return find(obj, alist, comparison(args.removeFirst()), true);
+      }
+    });
     
+    // vector functions
+    add(ge, "vector?", newUnaryOp(Value.class, obj -> LexemeDatum.newBoolean(obj instanceof VectorDatum)));
+    add(ge, "vector", newVarArgsOp(0, Value.class, elements -> {
+      return VectorDatum.newVector(elements.toArray(new Value[0]));
+    }));
+    add(ge, "make-vector", new Procedure(1, true) {
+      @Override
+      protected Value checkedApply(LinkedList<Value> args) {
+        int length = intValue(args.removeFirst());
+        return VectorDatum.newVector(length, optionalArg(args.removeFirst(), LexemeDatum.newNumber(0)));
+      }
+    });
+    add(ge, "vector-length", newUnaryOp(VectorDatum.class, vector -> LexemeDatum.newNumber(vector.length())));
+    add(ge, "vector-ref", newBinaryOp(VectorDatum.class, NumberDatum.class, (vector, index) -> {
+      return vector.get(intValue(index));
+    }));
+    add(ge, "vector-set!", new Procedure(3, false) {
+      @Override
+      protected Value checkedApply(LinkedList<Value> args) {
+        VectorDatum vector = checkArgType(VectorDatum.class, args.removeFirst());
+        vector.set(intValue(args.removeFirst()), args.removeFirst());
+        return RuntimeValue.newUnspecified();
+      }
+    });
+    add(ge, "vector-fill!", newBinaryOp(VectorDatum.class, Value.class, (vector, fill) -> {
+      vector.fill(fill);
+      return RuntimeValue.newUnspecified();
+    }));
+    add(ge, "vector->list", newUnaryOp(VectorDatum.class, VectorDatum::toList));
+    add(ge, "list->vector", newUnaryOp(CompoundDatum.class, lst -> {
+      return VectorDatum.newVector(lst.asProperList().toArray(new Value[0]));
+    }));
+
+    // bytevector functions
+    add(ge, "bytevector?", newUnaryOp(Value.class, obj -> LexemeDatum.newBoolean(obj instanceof Bytevector)));
+    add(ge, "make-bytevector", new Procedure(1, true) {
+      @Override
+      protected Value checkedApply(LinkedList<Value> args) {
+        int length = intValue(args.removeFirst());
+        return Bytevector.newBytevector(length, intValue(optionalArg(args.removeFirst(), LexemeDatum.newNumber(0))));
+      }
+    });
+    add(ge, "bytevector-length", newUnaryOp(Bytevector.class, bytes -> LexemeDatum.newNumber(bytes.length())));
+    add(ge, "bytevector-u8-ref", newBinaryOp(Bytevector.class, NumberDatum.class, (bytes, index) -> {
+      return LexemeDatum.newNumber(bytes.get(intValue(index)));
+    }));
+    add(ge, "bytevector-u8-set!", new Procedure(3, false) {
+      @Override
+      protected Value checkedApply(LinkedList<Value> args) {
+        Bytevector bytes = checkArgType(Bytevector.class, args.removeFirst());
+        bytes.set(intValue(args.removeFirst()), intValue(args.removeFirst()));
+        return RuntimeValue.newUnspecified();
+      }
+    });
+
+    // fixnum vector functions
+    add(ge, "fxvector?", newUnaryOp(Value.class, obj -> LexemeDatum.newBoolean(obj instanceof FixnumVector)));
+    add(ge, "fxvector", newVarArgsOp(0, NumberDatum.class, numList -> {
+      long[] elements = new long[numList.size()];
+      int i = 0;
+      for (NumberDatum number: numList) {
+        elements[i++] = fixnumValue(number);
+      }
+      return FixnumVector.newFixnumVector(elements);
+    }));
+    add(ge, "make-fxvector", new Procedure(1, true) {
+      @Override
+      protected Value checkedApply(LinkedList<Value> args) {
+        int length = intValue(args.removeFirst());
+        return FixnumVector.newFixnumVector(length, fixnumValue(optionalArg(args.removeFirst(), LexemeDatum.newNumber(0))));
+      }
+    });
+    add(ge, "fxvector-length", newUnaryOp(FixnumVector.class, vector -> LexemeDatum.newNumber(vector.length())));
+    add(ge, "fxvector-ref", newBinaryOp(FixnumVector.class, NumberDatum.class, (vector, index) -> {
+      return LexemeDatum.newNumber(vector.get(intValue(index)));
+    }));
+    add(ge, "fxvector-set!", new Procedure(3, false) {
+      @Override
+      protected Value checkedApply(LinkedList<Value> args) {
+        FixnumVector vector = checkArgType(FixnumVector.class, args.removeFirst());
+        vector.set(intValue(args.removeFirst()), fixnumValue(args.removeFirst()));
+        return RuntimeValue.newUnspecified();
+      }
+    });
+
+    // record functions, named as define-record-type expands to
+    add(ge, DerivedForms.RECORD_TYPE.toString(), newBinaryOp(SymbolDatum.class, CompoundDatum.class, (name, fields) -> {
+      List<String> fieldNames = new ArrayList<>();
+      for (SymbolDatum field: checkArgs(SymbolDatum.class, fields.asProperList())) {
+        fieldNames.add(field.toString());
+      }
+      return new RecordValue.Type(name.toString(), fieldNames);
+    }));
+    add(ge, DerivedForms.RECORD_CONSTRUCTOR.toString(), newBinaryOp(RecordValue.Type.class, CompoundDatum.class, (type, fields) -> {
+      LinkedList<SymbolDatum> fieldList = checkArgs(SymbolDatum.class, fields.asProperList());
+      int[] fieldSlots = new int[fieldList.size()];
+      int i = 0;
+      for (SymbolDatum field: fieldList) {
+        fieldSlots[i++] = recordSlot(type, field);
+      }
+      return new Procedure(fieldSlots.length, false) {
+        @Override
+        protected Value checkedApply(LinkedList<Value> args) {
+          Value[] slots = new Value[type.getFieldCount()];
+          Arrays.fill(slots, LexemeDatum.newBoolean(false));
+          for (int slot: fieldSlots) {
+            slots[slot] = args.removeFirst();
+          }
+          return new RecordValue(type, slots);
+        }
+      };
+    }));
+    add(ge, DerivedForms.RECORD_PREDICATE.toString(), newUnaryOp(RecordValue.Type.class, type -> {
+      return newUnaryOp(Value.class, obj -> {
+        return LexemeDatum.newBoolean(obj instanceof RecordValue && ((RecordValue)obj).getType() == type);
+      });
+    }));
+    add(ge, DerivedForms.RECORD_ACCESSOR.toString(), newBinaryOp(RecordValue.Type.class, SymbolDatum.class, (type, field) -> {
+      int slot = recordSlot(type, field);
+      return newUnaryOp(Value.class, obj -> checkRecordType(type, obj).get(slot));
+    }));
+    add(ge, DerivedForms.RECORD_MODIFIER.toString(), newBinaryOp(RecordValue.Type.class, SymbolDatum.class, (type, field) -> {
+      int slot = recordSlot(type, field);
+      return newBinaryOp(Value.class, Value.class, (obj, value) -> {
+        checkRecordType(type, obj).set(slot, value);
+        return RuntimeValue.newUnspecified();
+      });
+    }));
+
     // string functions
     add(ge, "string", newVarArgsOp(0, LexemeDatum.CharacterDatum.class, charsList -> {
       StringBuilder buff = new StringBuilder();
       for (CharacterDatum cval: charsList) {
         buff.append(cval.toString());
       }
-      return LexemeDatum.newString(buff.toString());
+      return LexemeDatum.newFreshString(buff.toString());
+    }));
+    add(ge, "string-length", newUnaryOp(StringDatum.class, str -> LexemeDatum.newNumber(str.length())));
+    add(ge, "string-ref", newBinaryOp(StringDatum.class, NumberDatum.class, (str, ref) -> {
+      return LexemeDatum.newCharacter(str.charAt(intValue(ref)));
     }));
-    add(ge, "string-length", newUnaryOp(LexemeDatum.StringDatum.class, str -> {
-      int strLength = str.toString().length();
-      return LexemeDatum.newNumber(BigInteger.valueOf(strLength));
+    add(ge, "string-append", newVarArgsOp(0, StringDatum.class, strings -> {
+      StringDatum result = EMPTY_STRING;
+      for (StringDatum string: strings) {
+        result = result.append(string);
+      }
+      return result;
     }));
-    add(ge, "string-ref", newBinaryOp(LexemeDatum.StringDatum.class, LexemeDatum.NumberDatum.class, (str, ref) -> {
-      String string = str.toString();
-      int index = ref.getValue().intValue();
-      return LexemeDatum.newCharacter(string.charAt(index));
+    add(ge, "substring", new Procedure(2, true) {
+      @Override
+      protected Value checkedApply(LinkedList<Value> args) {
+        StringDatum str = checkArgType(StringDatum.class, args.removeFirst());
+        int start = intValue(args.removeFirst());
+        int end = intValue(optionalArg(args.removeFirst(), LexemeDatum.newNumber(str.length())));
+        return str.substring(start, end);
+      }
+    });
+    add(ge, "string-join", new Procedure(1, true) {
+      @Override
+      protected Value checkedApply(LinkedList<Value> args) {
+        LinkedList<StringDatum> strings = checkArgs(StringDatum.class, args.removeFirst().asProperList());
+        StringDatum delimiter = checkArgType(StringDatum.class, optionalArg(args.removeFirst(), SPACE_STRING));
+        if (strings.isEmpty()) {
+          return EMPTY_STRING;
+        }
+        StringDatum result = strings.removeFirst();
+        for (StringDatum string: strings) {
+          result = result.append(delimiter).append(string);
+        }
+        return result;
+      }
+    });
+    add(ge, "string-split", new Procedure(1, true) {
+      @Override
+      protected Value checkedApply(LinkedList<Value> args) {
+        StringDatum str = checkArgType(StringDatum.class, args.removeFirst());
+        Value delimiter = optionalArg(args.removeFirst(), LexemeDatum.newCharacter(' '));
+        if (!delimiter.isString() && !delimiter.isCharacter()) {
+          throw Problem.typeError("Invalid argument type: %s", delimiter);
+        } else if (delimiter.toString().isEmpty()) {
+          throw Problem.argumentError("Empty delimiter for string-split");
+        }
+        // the fields are slices of the flattened string
+        String chars = str.toString();
+        String separator = delimiter.toString();
+        LinkedList<Value> fields = new LinkedList<>();
+        int start = 0;
+        for (int end = chars.indexOf(separator); end >= 0; end = chars.indexOf(separator, start)) {
+          fields.add(str.substring(start, end));
+          start = end + separator.length();
+        }
+        fields.add(str.substring(start, chars.length()));
+        return CompoundDatum.newList(fields);
+      }
+    });
+
+    // string builder functions
+    add(ge, "make-string-builder", newNullaryOp(StringBuilderValue::new));
+    add(ge, "string-builder?", newUnaryOp(Value.class, obj -> LexemeDatum.newBoolean(obj instanceof StringBuilderValue)));
+    add(ge, "string-builder-append!", new Procedure(1, true) {
+      @Override
+      protected Value checkedApply(LinkedList<Value> args) {
+        StringBuilderValue builder = checkArgType(StringBuilderValue.class, args.removeFirst());
+        for (Value part: args.removeFirst().asProperList()) {
+          if (part.isCharacter()) {
+            builder.append((CharacterDatum)part);
+          } else {
+            builder.append(checkArgType(StringDatum.class, part));
+          }
+        }
+        return RuntimeValue.newUnspecified();
+      }
+    });
+    add(ge, "string-builder-length", newUnaryOp(StringBuilderValue.class, builder -> {
+      return LexemeDatum.newNumber(builder.length());
     }));
+    add(ge, "string-builder->string", newUnaryOp(StringBuilderValue.class, StringBuilderValue::build));
 
     // conversion functions
     add(ge, "list->string", newUnaryOp(CompoundDatum.class, lst -> {
@@ -85,12 +553,12 @@ public class Primitives {
       for (CharacterDatum cval: charsList) {
         buff.append(cval.toString());
       }
-      return LexemeDatum.newString(buff.toString());
+      return LexemeDatum.newFreshString(buff.toString());
     }));
     add(ge, "number->string", newUnaryOp(LexemeDatum.NumberDatum.class, num -> {
-      return LexemeDatum.newString(num.getValue().toString());
+      return LexemeDatum.newFreshString(num.getValue().toString());
     }));
-    add(ge, "string->list", newUnaryOp(LexemeDatum.StringDatum.class, str -> {
+    add(ge, "string->list", newUnaryOp(StringDatum.class, str -> {
       String chars = str.toString();
       LinkedList<CharacterDatum> charsList = new LinkedList<>();
       for (int i = 0; i < chars.length(); ++i) {
@@ -102,7 +570,7 @@ public class Primitives {
       return LexemeDatum.newSymbol(str.toString());
     }));
     add(ge, "symbol->string", newUnaryOp(LexemeDatum.SymbolDatum.class, sym -> {
-      return LexemeDatum.newString(sym.toString());
+      return LexemeDatum.newFreshString(sym.toString());
     }));
 
     // unary numeric functions
@@ -245,11 +713,359 @@ public class Primitives {
       return LexemeDatum.newBoolean(true);
     }));
 
+    // sorting functions, which compare numbers directly when sorting by the
+    // builtin < or >
+    Procedure lessThan = (Procedure)ge.lookupVariable("<");
+    Procedure greaterThan = (Procedure)ge.lookupVariable(">");
+    BiConsumer<Procedure, Value[]> sort = (before, values) -> {
+      if ((before != lessThan && before != greaterThan) || !Sorting.sortNumbers(values, before == lessThan)) {
+        Sorting.sort(values, before);
+      }
+    };
+    add(ge, "list-sort", newBinaryOp(Procedure.class, CompoundDatum.class, (before, list) -> {
+      Value[] values = listToArray(list);
+      sort.accept(before, values);
+      return CompoundDatum.newList(values);
+    }));
+    add(ge, "sort", newBinaryOp(Procedure.class, Value.class, (before, seq) -> {
+      if (seq instanceof VectorDatum) {
+        Value[] values = ((VectorDatum)seq).toArray();
+        sort.accept(before, values);
+        return VectorDatum.newVector(values);
+      }
+      Value[] values = listToArray(checkArgType(CompoundDatum.class, seq));
+      sort.accept(before, values);
+      return CompoundDatum.newList(values);
+    }));
+    // a vector is sorted in place; the pairs of a list never change, so a
+    // sorted list is new
+    add(ge, "sort!", newBinaryOp(Procedure.class, Value.class, (before, seq) -> {
+      if (seq instanceof VectorDatum) {
+        VectorDatum vector = (VectorDatum)seq;
+        Value[] values = vector.toArray();
+        sort.accept(before, values);
+        for (int i = 0; i < values.length; ++i) {
+          vector.set(i, values[i]);
+        }
+        return vector;
+      }
+      Value[] values = listToArray(checkArgType(CompoundDatum.class, seq));
+      sort.accept(before, values);
+      return CompoundDatum.newList(values);
+    }));
+
+    // parallel functions
+    add(ge, "pmap", newBinaryOp(Procedure.class, CompoundDatum.class, Parallel::map));
+    add(ge, "pfor-each", newBinaryOp(Procedure.class, CompoundDatum.class, (proc, lst) -> {
+      Parallel.forEach(proc, lst);
+      return RuntimeValue.newUnspecified();
+    }));
+    add(ge, "preduce", new Procedure(3, false) {
+      @Override
+      protected Value checkedApply(LinkedList<Value> args) {
+        Procedure proc = checkArgType(Procedure.class, args.removeFirst());
+        Value identity = args.removeFirst();
+        return Parallel.reduce(proc, identity, checkArgType(CompoundDatum.class, args.removeFirst()));
+      }
+    });
+    add(ge, "future", newUnaryOp(Procedure.class, Parallel::future));
+    add(ge, "touch", newUnaryOp(Parallel.Future.class, Parallel.Future::touch));
+
+    // hash table functions
+    add(ge, "make-hash-table", new Procedure(0, true) {
+      @Override
+      protected Value checkedApply(LinkedList<Value> args) {
+        LinkedList<Value> options = args.removeFirst().asProperList();
+        if (options.size() > 1) {
+          throw Problem.typeError("Too many arguments: %d (expected at most 1)", options.size());
+        }
+        Value equivalence = options.isEmpty() ? equal : options.getFirst();
+        if (equivalence == equal) {
+          return HashTable.newEqualTable();
+        } else if (equivalence == eq) {
+          return HashTable.newEqTable();
+        }
+        throw Problem.argumentError("Unsupported hash table equivalence: %s", equivalence);
+      }
+    });
+    add(ge, "hash-table-ref", new Procedure(2, true) {
+      @Override
+      protected Value checkedApply(LinkedList<Value> args) {
+        HashTable table = checkArgType(HashTable.class, args.removeFirst());
+        Value key = args.removeFirst();
+        Value value = table.get(key);
+        return (value != null) ? value : missingKey(key, args.removeFirst());
+      }
+    });
+    add(ge, "hash-table-ref/default", new Procedure(3, false) {
+      @Override
+      protected Value checkedApply(LinkedList<Value> args) {
+        HashTable table = checkArgType(HashTable.class, args.removeFirst());
+        Value value = table.get(args.removeFirst());
+        return (value != null) ? value : args.removeFirst();
+      }
+    });
+    add(ge, "hash-table-set!", new Procedure(3, false) {
+      @Override
+      protected Value checkedApply(LinkedList<Value> args) {
+        HashTable table = checkArgType(HashTable.class, args.removeFirst());
+        table.put(args.removeFirst(), args.removeFirst());
+        return RuntimeValue.newUnspecified();
+      }
+    });
+    add(ge, "hash-table-update!", new Procedure(3, true) {
+      @Override
+      protected Value checkedApply(LinkedList<Value> args) {
+        HashTable table = checkArgType(HashTable.class, args.removeFirst());
+        Value key = args.removeFirst();
+        Procedure proc = checkArgType(Procedure.class, args.removeFirst());
+        Value value = table.get(key);
+        if (value == null) {
+          value = missingKey(key, args.removeFirst());
+        }
+        table.put(key, proc.apply(Collections.singletonList(value)));
+        return RuntimeValue.newUnspecified();
+      }
+    });
+    add(ge, "hash-table-delete!", newBinaryOp(HashTable.class, Value.class, (table, key) -> {
+      table.remove(key);
+      return RuntimeValue.newUnspecified();
+    }));
+    add(ge, "hash-table-count", newUnaryOp(HashTable.class, table -> {
+      return LexemeDatum.newNumber(BigInteger.valueOf(table.size()));
+    }));
+    add(ge, "hash-table-walk", newBinaryOp(HashTable.class, Procedure.class, (table, proc) -> {
+      table.forEach((key, value) -> proc.apply(Arrays.asList(key, value)));
+      return RuntimeValue.newUnspecified();
+    }));
+
+    // memoization
+    add(ge, "memoize", new Procedure(1, true) {
+      @Override
+      protected Value checkedApply(LinkedList<Value> args) {
+        Procedure proc = checkArgType(Procedure.class, args.removeFirst());
+        LinkedList<Value> options = args.removeFirst().asProperList();
+        if (options.size() > 2) {
+          throw Problem.typeError("Too many arguments: %d (expected at most 3)", options.size() + 1);
+        }
+        int capacity = options.isEmpty()
+          ? Memoized.DEFAULT_CAPACITY : numberValue(options.removeFirst()).intValue();
+        boolean isWeak = !options.isEmpty() && options.removeFirst().isTrue();
+        return new Memoized(proc, capacity, isWeak);
+      }
+    });
+    add(ge, "memoize-statistics", newUnaryOp(Memoized.class, Memoized::statistics));
+
+    // threads and channels
+    add(ge, "spawn", newUnaryOp(Procedure.class, thunk -> {
+      Parallel.spawn(thunk);
+      return RuntimeValue.newUnspecified();
+    }));
+    add(ge, "make-channel", newVarArgsOp(0, LexemeDatum.NumberDatum.class, numList -> {
+      if (numList.size() > 1) {
+        throw Problem.typeError("Too many arguments: %d (expected at most 1)", numList.size());
+      }
+      return new Channel(numList.isEmpty() ? 1 : numList.getFirst().getValue().intValue());
+    }));
+    add(ge, "channel-put!", newBinaryOp(Channel.class, Value.class, (channel, value) -> {
+      channel.put(value);
+      return RuntimeValue.newUnspecified();
+    }));
+    add(ge, "channel-get", newUnaryOp(Channel.class, Channel::get));
+    add(ge, "select", newVarArgsOp(1, Channel.class, Channel::select));
+
     return ge;
   }
 
+  // Returns the value of the thunk given for a key with no value, if there is
+  // one, as the options of hash-table-ref and hash-table-update! allow.
+  private static Value missingKey(Value key, Value options) {
+    LinkedList<Value> thunk = options.asProperList();
+    if (thunk.size() > 1) {
+      throw Problem.typeError("Too many arguments: %d (expected at most 1 thunk)", thunk.size());
+    } else if (thunk.isEmpty()) {
+      throw Problem.argumentError("No value for key: %s", key.toSyntaxString());
+    }
+    return checkArgType(Procedure.class, thunk.getFirst()).apply(Collections.emptyList());
+  }
+
+  private static int recordSlot(RecordValue.Type type, SymbolDatum field) {
+    int slot = type.slotOf(field.toString());
+    if (slot < 0) {
+      throw Problem.argumentError("Not a field of %s: %s", type.getName(), field);
+    }
+    return slot;
+  }
+
+  // Checks that the value is a record of the type, by identity, as accessors
+  // and modifiers do before touching its slot
+  private static RecordValue checkRecordType(RecordValue.Type type, Value value) {
+    if (!(value instanceof RecordValue) || ((RecordValue)value).getType() != type) {
+      throw Problem.typeError("Not a %s record: %s", type.getName(), value);
+    }
+    return (RecordValue)value;
+  }
+
+  // Returns the port given among the optional arguments of an output
+  // function, or the current output port if there is none
+  private static OutputPort portArg(Value restArgs) {
+    Value port = optionalArg(restArgs, null);
+    return (port == null) ? OutputPort.current() : checkArgType(OutputPort.class, port);
+  }
+
+  // Checks that a list walked to its end was a proper one
+  private static void checkListEnd(Value end) {
+    if (!end.isEmptyList()) {
+      throw Problem.typeError("Not properly formed list");
+    }
+  }
+
+  // Returns the elements of a proper list, walking it twice rather than
+  // gathering them in a list first
+  private static Value[] listToArray(Value list) {
+    int length = 0;
+    Value curr = list;
+    for (; curr.isPair(); curr = curr.getCdr()) {
+      ++length;
+    }
+    checkListEnd(curr);
+    Value[] values = new Value[length];
+    curr = list;
+    for (int i = 0; i < length; ++i) {
+      values[i] = curr.getCar();
+      curr = curr.getCdr();
+    }
+    return values;
+  }
+
+  private static Value listTail(Value list, int k) {
+    if (k < 0) {
+      throw Problem.argumentError("Negative list index: %d", k);
+    }
+    Value curr = list;
+    for (int i = 0; i < k; ++i) {
+      if (!curr.isPair()) {
+        throw Problem.argumentError("List index out of range: %d", k);
+      }
+      curr = curr.getCdr();
+    }
+    return curr;
+  }
+
+  // Returns the list arguments of map and its kin: the first, and the rest
+  private static Value[] listArgs(Value first, Value rest) {
+    LinkedList<Value> lists = rest.asProperList();
+    lists.addFirst(first);
+    return lists.toArray(new Value[0]);
+  }
+
+  // Returns a list of the cars of the lists, with room for one more argument,
+  // and replaces each list by its cdr; or returns null once any of them has
+  // ended, as map and its kin stop at the shortest list.
+  private static List<Value> nextElements(Value[] lists) {
+    for (Value list: lists) {
+      if (!list.isPair()) {
+        checkListEnd(list);
+        return null;
+      }
+    }
+    List<Value> elements = new ArrayList<>(lists.length + 1);
+    for (int i = 0; i < lists.length; ++i) {
+      elements.add(lists[i].getCar());
+      lists[i] = lists[i].getCdr();
+    }
+    return elements;
+  }
+
+  // Returns the comparison given among the optional arguments of member or
+  // assoc, or equal? if there is none
+  private static BiPredicate<Value, Value> comparison(Value restArgs) {
+    Value compare = optionalArg(restArgs, null);
+    if (compare == null) {
+      return Value::isEqual;
+    }
+    Procedure proc = checkArgType(Procedure.class, compare);
+    return (a, b) -> proc.apply(Arrays.asList(a, b)).isTrue();
+  }
+
+  // Returns the first pair of the list whose car matches the key, or for an
+  // association list the first entry whose key does, or #f if there is none
+  private static Value find(Value key, Value list, BiPredicate<Value, Value> matches, boolean isAlist) {
+    Value curr = list;
+    for (; curr.isPair(); curr = curr.getCdr()) {
+      Value element = curr.getCar();
+      if (isAlist) {
+        Value entry = checkArgType(CompoundDatum.Pair.class, element);
+        if (matches.test(key, entry.getCar())) {
+          return entry;
+        }
+      } else if (matches.test(key, element)) {
+        return curr;
+      }
+    }
+    checkListEnd(curr);
+    return LexemeDatum.newBoolean(false);
+  }
+
   private static void add(Environment env, String name, Procedure proc) {
-    env.defineVariable(name, proc);
+    env.defineVariable(name, Metrics.countedBuiltin(name, proc));
+    env.assumeStable(name);
+  }
+
+  /**
+   * Returns true if the named builtin is pure: calls of it with the same
+   * arguments always have the same result and no side effects.
+   */
+  static boolean isPure(String name) {
+    return PURE_BUILTINS.contains(name);
+  }
+
+  /**
+   * Returns an inline implementation of the named builtin for calls with one
+   * argument, or {@code null} if there isn't one.
+   */
+  static Function<Value, Value> unaryIntrinsic(String name) {
+    return Metrics.countedIntrinsic(name, UNARY_INTRINSICS.get(name));
+  }
+
+  /**
+   * Returns an inline implementation of the named builtin for calls with two
+   * arguments, or {@code null} if there isn't one.
+   */
+  static BinaryOperator<Value> binaryIntrinsic(String name) {
+    return Metrics.countedIntrinsic(name, BINARY_INTRINSICS.get(name));
+  }
+
+  private static BigInteger numberValue(Value value) {
+    return checkArgType(NumberDatum.class, value).getValue();
+  }
+
+  // Returns a number argument that must fit in an int, such as an index
+  private static int intValue(Value value) {
+    BigInteger number = numberValue(value);
+    if (number.bitLength() >= 32) {
+      throw Problem.argumentError("Number out of range: %s", number);
+    }
+    return number.intValue();
+  }
+
+  // Returns a number argument that must fit in a long, as a fixnum does
+  private static long fixnumValue(Value value) {
+    BigInteger number = numberValue(value);
+    if (number.bitLength() >= 64) {
+      throw Problem.argumentError("Not a fixnum: %s", number);
+    }
+    return number.longValue();
+  }
+
+  // Returns the single optional argument in the list of rest arguments, or
+  // the default if there is none
+  private static Value optionalArg(Value restArgs, Value defaultValue) {
+    LinkedList<Value> optional = restArgs.asProperList();
+    if (optional.size() > 1) {
+      throw Problem.typeError("Too many arguments: %d optional (expected at most 1)", optional.size());
+    }
+    return optional.isEmpty() ? defaultValue : optional.getFirst();
   }
 
   private static Procedure newNullaryOp(Supplier<Value> fn) {
@@ -4,6 +4,7 @@ package org.instructures.interp;
 public abstract class Problem extends RuntimeException {
   protected Problem(String fmt, Object... args) {
     super(String.format(fmt, args));
+    Metrics.countProblem(getClass());
   }
 
   /**
@@ -55,6 +56,28 @@ public abstract class Problem extends RuntimeException {
     return new ReferenceError("%s is not defined", variableName);
   }
 
+  /**
+   * To be thrown when a global variable is changed in an environment that
+   * has been forked, and so is shared.
+   */
+  public static EvaluationError sharedVariable(String variableName) {
+    return new ReferenceError("%s is shared by forked environments and cannot be changed", variableName);
+  }
+
+  /**
+   * To be thrown when a thread is interrupted while it waits.
+   */
+  public static EvaluationError interrupted() {
+    return new InterruptedError("Interrupted while waiting");
+  }
+
+  /**
+   * To be thrown when reading or writing a file or stream fails.
+   */
+  public static EvaluationError ioError(String fmt, Object... args) {
+    return new IOError(fmt, args);
+  }
+
   public static final class InternalError extends Problem {
     private InternalError(String fmt, Object... args) {
       super(fmt, args);
@@ -90,4 +113,16 @@ public abstract class Problem extends RuntimeException {
       super(fmt, args);
     }
   }
+
+  private static final class InterruptedError extends EvaluationError {
+    private InterruptedError(String fmt, Object... args) {
+      super(fmt, args);
+    }
+  }
+
+  private static final class IOError extends EvaluationError {
+    private IOError(String fmt, Object... args) {
+      super(fmt, args);
+    }
+  }
 }
@@ -0,0 +1,184 @@
+package org.instructures.interp;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records, for each user-defined procedure, how many times it was called, the
+ * time spent in it in total and in its own body (excluding the procedures it
+ * called), and the bytes allocated in the same two ways. Allocations are
+ * measured with the per-thread counters of the JVM's {@link ThreadMXBean},
+ * where it supports them.
+ *
+ * Profiling is enabled by running with {@code -Dscheme.profile=<file>}. When
+ * the JVM exits, a table sorted by self time is printed to standard error and
+ * the same figures are written to the file as JSON. When profiling is not
+ * enabled, each procedure call pays for a single test of {@link #ENABLED}.
+ */
+final class Profiler {
+  static final boolean ENABLED = System.getProperty("scheme.profile") != null;
+
+  private static final com.sun.management.ThreadMXBean ALLOCATIONS = allocationCounters();
+  private static final Map<Lambda.Template, Stats> stats = new ConcurrentHashMap<>();
+  private static final ThreadLocal<CallStack> callStacks = ThreadLocal.withInitial(CallStack::new);
+
+  static {
+    if (ENABLED) {
+      String jsonFile = System.getProperty("scheme.profile");
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> dump(jsonFile)));
+    }
+  }
+
+  private Profiler() {
+  }
+
+  static void enter(Lambda.Template template) {
+    CallStack callStack = callStacks.get();
+    Stats procedure = stats.computeIfAbsent(template, Stats::new);
+    boolean isOutermost = callStack.active.merge(procedure, 1, Integer::sum) == 1;
+    callStack.activations.push(new Activation(procedure, isOutermost, System.nanoTime(), allocatedBytes()));
+  }
+
+  static void exit() {
+    long now = System.nanoTime();
+    long allocated = allocatedBytes();
+    CallStack callStack = callStacks.get();
+    Activation activation = callStack.activations.pop();
+    long elapsed = now - activation.startNanos;
+    long bytes = allocated - activation.startBytes;
+    Stats procedure = activation.procedure;
+    procedure.calls.increment();
+    procedure.selfNanos.add(elapsed - activation.childNanos);
+    procedure.selfBytes.add(bytes - activation.childBytes);
+    // a recursive call's time is already part of its outermost activation's
+    if (activation.isOutermost) {
+      procedure.totalNanos.add(elapsed);
+      procedure.totalBytes.add(bytes);
+      callStack.active.remove(procedure);
+    } else {
+      callStack.active.merge(procedure, -1, Integer::sum);
+    }
+    Activation caller = callStack.activations.peek();
+    if (caller != null) {
+      caller.childNanos += elapsed;
+      caller.childBytes += bytes;
+    }
+  }
+
+  private static com.sun.management.ThreadMXBean allocationCounters() {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+      return null;
+    }
+    com.sun.management.ThreadMXBean counters = (com.sun.management.ThreadMXBean)threads;
+    if (!counters.isThreadAllocatedMemorySupported()) {
+      return null;
+    }
+    counters.setThreadAllocatedMemoryEnabled(true);
+    return counters;
+  }
+
+  private static long allocatedBytes() {
+    return (ALLOCATIONS == null) ? 0 : ALLOCATIONS.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  private static void dump(String jsonFile) {
+    List<Stats> procedures = new ArrayList<>(stats.values());
+    procedures.sort(Comparator.comparingLong((Stats s) -> s.selfNanos.sum()).reversed());
+    System.err.printf("%-40s %10s %12s %12s %14s %14s%n",
+      "Procedure", "Calls", "Total ms", "Self ms", "Total bytes", "Self bytes");
+    for (Stats procedure: procedures) {
+      System.err.printf("%-40s %10d %12.3f %12.3f %14d %14d%n", procedure.describe(), procedure.calls.sum(),
+        procedure.totalNanos.sum() / 1e6, procedure.selfNanos.sum() / 1e6,
+        procedure.totalBytes.sum(), procedure.selfBytes.sum());
+    }
+    if (jsonFile.isEmpty()) {
+      return;
+    }
+    try (PrintWriter out = new PrintWriter(new FileWriter(jsonFile))) {
+      out.println("{\"procedures\": [");
+      for (int i = 0; i < procedures.size(); ++i) {
+        Stats procedure = procedures.get(i);
+        SourcePosition position = procedure.template.getPosition();
+        out.printf("  {\"name\": %s, \"source\": %s, \"calls\": %d, \"totalNanos\": %d, \"selfNanos\": %d, "
+            + "\"totalBytes\": %d, \"selfBytes\": %d}%s%n",
+          jsonString(procedure.template.getName()), jsonString((position == null) ? null : position.toString()),
+          procedure.calls.sum(), procedure.totalNanos.sum(), procedure.selfNanos.sum(),
+          procedure.totalBytes.sum(), procedure.selfBytes.sum(), (i + 1 < procedures.size()) ? "," : "");
+      }
+      out.println("]}");
+    } catch (IOException e) {
+      System.err.printf("%s:%s%n", jsonFile, e.getMessage());
+    }
+  }
+
+  static String jsonString(String value) {
+    if (value == null) {
+      return "null";
+    }
+    StringBuilder buff = new StringBuilder("\"");
+    for (char c: value.toCharArray()) {
+      if (c == '"' || c == '\\') {
+        buff.append('\\').append(c);
+      } else if (c < ' ') {
+        buff.append(String.format("\\u%04x", (int)c));
+      } else {
+        buff.append(c);
+      }
+    }
+    return buff.append('"').toString();
+  }
+
+  private static final class Stats {
+    private final Lambda.Template template;
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAdder selfNanos = new LongAdder();
+    private final LongAdder totalBytes = new LongAdder();
+    private final LongAdder selfBytes = new LongAdder();
+
+    private Stats(Lambda.Template template) {
+      this.template = template;
+    }
+
+    private String describe() {
+      String name = (template.getName() == null) ? "lambda" : template.getName();
+      SourcePosition position = template.getPosition();
+      return (position == null) ? name : String.format("%s (%s)", name, position);
+    }
+  }
+
+  private static final class Activation {
+    private final Stats procedure;
+    private final boolean isOutermost;
+    private final long startNanos;
+    private final long startBytes;
+    private long childNanos;
+    private long childBytes;
+
+    private Activation(Stats procedure, boolean isOutermost, long startNanos, long startBytes) {
+      this.procedure = procedure;
+      this.isOutermost = isOutermost;
+      this.startNanos = startNanos;
+      this.startBytes = startBytes;
+    }
+  }
+
+  private static final class CallStack {
+    private final Deque<Activation> activations = new ArrayDeque<>();
+    // How many activations of each procedure are on the stack
+    private final Map<Stats, Integer> active = new IdentityHashMap<>();
+  }
+}
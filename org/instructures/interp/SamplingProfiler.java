@@ -0,0 +1,174 @@
+package org.instructures.interp;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+import org.instructures.interp.values.Datum;
+
+/**
+ * A sampling profiler for Scheme code. Each evaluating thread keeps a cheap
+ * shadow stack of the user-defined procedures it is in, along with the call
+ * each of them is making, and a background thread samples those stacks at a
+ * fixed rate. At exit, the samples are written in the folded-stack format
+ * used by flame graph tools: one line per distinct stack, with the frames
+ * from the outermost in, separated by semicolons, and then the number of
+ * samples. A frame is the procedure's name and the source line of the call it
+ * was making, or of the procedure itself.
+ *
+ * Sampling is enabled by running with {@code -Dscheme.sample=<file>}, and
+ * runs at {@code -Dscheme.sample.hz} samples per second, 1000 by default.
+ * When it is not enabled, each procedure call and application pays for a
+ * single test of {@link #ENABLED}.
+ */
+final class SamplingProfiler {
+  static final boolean ENABLED = System.getProperty("scheme.sample") != null;
+
+  private static final Map<Thread, ShadowStack> stacks = new ConcurrentHashMap<>();
+  private static final ThreadLocal<ShadowStack> currentStack = ThreadLocal.withInitial(() -> {
+    ShadowStack stack = new ShadowStack();
+    stacks.put(Thread.currentThread(), stack);
+    return stack;
+  });
+  // Only touched by the sampling thread until it has stopped
+  private static final Map<String, Long> samples = new HashMap<>();
+  private static volatile boolean isStopped;
+
+  static {
+    if (ENABLED) {
+      long periodNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, Integer.getInteger("scheme.sample.hz", 1000));
+      Thread sampler = new Thread(() -> {
+        while (!isStopped) {
+          LockSupport.parkNanos(periodNanos);
+          sample();
+        }
+      }, "scheme-sampler");
+      sampler.setDaemon(true);
+      sampler.start();
+      String outputFile = System.getProperty("scheme.sample");
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+        isStopped = true;
+        try {
+          sampler.join();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        dump(outputFile);
+      }));
+    }
+  }
+
+  private SamplingProfiler() {
+  }
+
+  static void enter(Lambda.Template template) {
+    currentStack.get().push(template);
+  }
+
+  static void exit() {
+    currentStack.get().pop();
+  }
+
+  /**
+   * Records the application the current procedure is about to make.
+   */
+  static void callSite(Datum sExpr) {
+    currentStack.get().setCallSite(sExpr);
+  }
+
+  private static void sample() {
+    for (Map.Entry<Thread, ShadowStack> entry: stacks.entrySet()) {
+      if (!entry.getKey().isAlive()) {
+        stacks.remove(entry.getKey());
+        continue;
+      }
+      String folded = entry.getValue().fold();
+      if (folded != null) {
+        samples.merge(folded, 1L, Long::sum);
+      }
+    }
+  }
+
+  private static void dump(String outputFile) {
+    try (PrintWriter out = new PrintWriter(new FileWriter(outputFile))) {
+      for (Map.Entry<String, Long> entry: samples.entrySet()) {
+        out.printf("%s %d%n", entry.getKey(), entry.getValue());
+      }
+    } catch (IOException e) {
+      System.err.printf("%s:%s%n", outputFile, e.getMessage());
+    }
+  }
+
+  /**
+   * The procedures a thread is in. It is written only by its own thread, and
+   * read without locking by the sampler, which may therefore see a stack that
+   * is a call or two out of date.
+   */
+  private static final class ShadowStack {
+    private static final AtomicIntegerFieldUpdater<ShadowStack> DEPTH =
+      AtomicIntegerFieldUpdater.newUpdater(ShadowStack.class, "depth");
+
+    private volatile Lambda.Template[] procedures = new Lambda.Template[64];
+    private volatile Datum[] callSites = new Datum[64];
+    private volatile int depth;
+
+    private void push(Lambda.Template template) {
+      int top = depth;
+      if (top == procedures.length) {
+        procedures = Arrays.copyOf(procedures, top * 2);
+        callSites = Arrays.copyOf(callSites, top * 2);
+      }
+      procedures[top] = template;
+      callSites[top] = null;
+      DEPTH.lazySet(this, top + 1);
+    }
+
+    private void pop() {
+      DEPTH.lazySet(this, depth - 1);
+    }
+
+    private void setCallSite(Datum sExpr) {
+      int top = depth;
+      if (top > 0) {
+        callSites[top - 1] = sExpr;
+      }
+    }
+
+    // Returns the folded form of the stack, or null if it is empty.
+    private String fold() {
+      int top = depth;
+      Lambda.Template[] procedures = this.procedures;
+      Datum[] callSites = this.callSites;
+      top = Math.min(top, Math.min(procedures.length, callSites.length));
+      if (top == 0) {
+        return null;
+      }
+      StringBuilder buff = new StringBuilder();
+      for (int i = 0; i < top; ++i) {
+        Lambda.Template template = procedures[i];
+        if (template == null) {
+          continue;
+        }
+        if (buff.length() > 0) {
+          buff.append(';');
+        }
+        String name = (template.getName() == null) ? "lambda" : template.getName();
+        buff.append(name.replace(';', '_'));
+        SourcePosition position = (callSites[i] == null) ? null : SourcePosition.of(callSites[i]);
+        if (position == null) {
+          position = template.getPosition();
+        }
+        if (position != null) {
+          buff.append(" (").append(position.toString().replace(';', '_')).append(')');
+        }
+      }
+      return (buff.length() == 0) ? null : buff.toString();
+    }
+  }
+}
@@ -0,0 +1,102 @@
+package org.instructures.interp;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Evaluates many independent files in parallel. Unlike
+ * {@link SchemeEvaluator#main}, each file is evaluated in an environment of
+ * its own, forked from the prelude, on a pool of worker threads. The output
+ * and errors of each file are captured separately, and then written to
+ * standard output and standard error in the order the files were given, so
+ * the result does not depend on how the work was scheduled.
+ *
+ * <pre>
+ *   java org.instructures.interp.SchemeBatch [-jobs n] [-prelude file] file.scm ...
+ * </pre>
+ *
+ * The number of workers defaults to the number of processors.
+ */
+public class SchemeBatch {
+  private SchemeBatch() {
+  }
+
+  /**
+   * What evaluating a file printed.
+   */
+  private static final class Result {
+    private final String output;
+    private final String errors;
+
+    private Result(String output, String errors) {
+      this.output = output;
+      this.errors = errors;
+    }
+  }
+
+  private static Result evaluateFile(SchemeEvaluator evaluator, String filename) throws UnsupportedEncodingException {
+    ByteArrayOutputStream outBytes = new ByteArrayOutputStream();
+    ByteArrayOutputStream errBytes = new ByteArrayOutputStream();
+    PrintStream out = new PrintStream(outBytes, false, "UTF-8");
+    PrintStream err = new PrintStream(errBytes, false, "UTF-8");
+    evaluator.setOutput(out);
+    try (BufferedReader in = new BufferedReader(new FileReader(filename))) {
+      evaluator.evaluateAll(in, filename, out, err);
+    } catch (Exception e) {
+      err.printf("%s:%s%n", filename, e.getMessage());
+    }
+    out.flush();
+    err.flush();
+    return new Result(outBytes.toString("UTF-8"), errBytes.toString("UTF-8"));
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    int jobs = Runtime.getRuntime().availableProcessors();
+    SchemeEvaluator prelude = new SchemeEvaluator();
+    List<String> filenames = new ArrayList<>();
+    for (int i = 0; i < args.length; ++i) {
+      if (args[i].equals("-jobs") && i + 1 < args.length) {
+        jobs = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-prelude") && i + 1 < args.length) {
+        String preludeFile = args[++i];
+        try (BufferedReader in = new BufferedReader(new FileReader(preludeFile))) {
+          prelude.evaluateAll(in, preludeFile, System.out, System.err);
+        }
+      } else {
+        filenames.add(args[i]);
+      }
+    }
+    ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, jobs));
+    try {
+      List<Future<Result>> results = new ArrayList<>();
+      for (String filename: filenames) {
+        SchemeEvaluator evaluator = prelude.fork();
+        results.add(workers.submit(() -> evaluateFile(evaluator, filename)));
+      }
+      for (int i = 0; i < results.size(); ++i) {
+        Result result;
+        try {
+          result = results.get(i).get();
+        } catch (ExecutionException e) {
+          result = new Result("", String.format("%s:%s%n", filenames.get(i), e.getCause()));
+        }
+        System.out.print(result.output);
+        System.out.flush();
+        System.err.print(result.errors);
+        System.err.flush();
+      }
+    } finally {
+      workers.shutdown();
+    }
+  }
+}
@@ -0,0 +1,134 @@
+package org.instructures.interp;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps a warm JVM with a loaded prelude resident, so that a script can be
+ * run without paying for JVM startup and loading the prelude each time. Each
+ * invocation is a connection from a thin client, such as
+ * {@code bin/scheme-client}, and is run like {@link SchemeEvaluator#main} in
+ * an environment forked from the prelude.
+ *
+ * <pre>
+ *   java org.instructures.interp.SchemeDaemon [-port n] [prelude.scm ...]
+ * </pre>
+ *
+ * The protocol is line based, in UTF-8, so that the client can be a shell
+ * script. The client sends {@code cwd <directory>}, then {@code arg <file>}
+ * for each argument, then {@code in <line>} for each line of its standard
+ * input if an argument is {@code -}, and finally {@code run}. The daemon
+ * replies with a line for each chunk of output: {@code 1 <text>} or
+ * {@code 2 <text>} for a line of standard output or error, and {@code 1+}
+ * or {@code 2+} for text not ending in a newline. Its last line is
+ * {@code exit <status>}.
+ */
+public class SchemeDaemon {
+  static final int DEFAULT_PORT = 7331;
+
+  private SchemeDaemon() {
+  }
+
+  private static void runInvocation(SchemeEvaluator evaluator, Socket connection) {
+    try (Socket socket = connection;
+         BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+         Writer replies = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)) {
+      socket.setTcpNoDelay(true);
+      File directory = null;
+      List<String> args = new ArrayList<>();
+      StringBuilder stdin = new StringBuilder();
+      for (String line = in.readLine(); line != null && !line.equals("run"); line = in.readLine()) {
+        if (line.startsWith("cwd ")) {
+          directory = new File(line.substring(4));
+        } else if (line.startsWith("arg ")) {
+          args.add(line.substring(4));
+        } else if (line.startsWith("in ")) {
+          stdin.append(line, 3, line.length()).append('\n');
+        }
+      }
+      PrintStream out = new PrintStream(new FramedOutput('1', replies), false, "UTF-8");
+      PrintStream err = new PrintStream(new FramedOutput('2', replies), false, "UTF-8");
+      evaluator.setOutput(out);
+      for (String filename: args) {
+        File file = new File(filename);
+        if (!file.isAbsolute() && directory != null) {
+          file = new File(directory, filename);
+        }
+        try (BufferedReader script = filename.equals("-")
+            ? new BufferedReader(new StringReader(stdin.toString()))
+            : new BufferedReader(new FileReader(file))) {
+          evaluator.evaluateAll(script, filename, out, err);
+        } catch (Exception e) {
+          err.printf("%s:%s%n", filename, e.getMessage());
+        }
+      }
+      out.flush();
+      err.flush();
+      replies.write("exit 0\n");
+    } catch (IOException e) {
+      // the client has gone
+    }
+  }
+
+  /**
+   * Sends what is written to it as reply lines for one of the streams, each
+   * time a line is complete or the stream is flushed.
+   */
+  private static final class FramedOutput extends OutputStream {
+    private final char stream;
+    private final Writer replies;
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+    private FramedOutput(char stream, Writer replies) {
+      this.stream = stream;
+      this.replies = replies;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (b == '\n') {
+        send(' ');
+      } else {
+        pending.write(b);
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      if (pending.size() > 0) {
+        send('+');
+      }
+      synchronized (replies) {
+        replies.flush();
+      }
+    }
+
+    private void send(char terminator) throws IOException {
+      String text = new String(pending.toByteArray(), StandardCharsets.UTF_8);
+      pending.reset();
+      synchronized (replies) {
+        replies.write(stream);
+        replies.write(terminator);
+        replies.write(text);
+        replies.write('\n');
+      }
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    SchemeServer.serve(args, DEFAULT_PORT, SchemeDaemon::runInvocation);
+  }
+}
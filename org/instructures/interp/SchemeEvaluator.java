@@ -2,6 +2,8 @@ package org.instructures.interp;
 
 import java.io.BufferedReader;
 import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
@@ -11,10 +13,35 @@ import org.instructures.interp.values.CompoundDatum.Pair;
 import org.instructures.interp.values.LexemeDatum.SymbolDatum;
 
 public class SchemeEvaluator {
+  // Templates are cached by the identity of their lambda expression so that
+  // every closure created from one expression shares an invocation count.
+  private static final StripedWeakMap<Datum, Lambda.Template> lambdaTemplates = new StripedWeakMap<>();
+  // The binding forms and quasiquote templates are compiled when first
+  // evaluated, and cached in the same way, since analysis is what decides
+  // their frames and loops, and which parts of a template are constant.
+  private static final StripedWeakMap<Datum, Node> compiledForms = new StripedWeakMap<>();
+
   private final Environment environment;
+  // Where display and the like write while this evaluator is evaluating
+  private volatile OutputPort output = OutputPort.newPort(System.out);
 
   public SchemeEvaluator() {
-    this.environment = Primitives.newGlobalEnvironment();
+    this(Primitives.newGlobalEnvironment());
+  }
+
+  private SchemeEvaluator(Environment environment) {
+    this.environment = environment;
+  }
+
+  /**
+   * Returns an evaluator whose global environment starts with the bindings
+   * this one has now, such as a loaded prelude, without evaluating anything
+   * again. Forking takes constant time, and freezes this evaluator's global
+   * environment, so the forks can share it: this evaluator can still
+   * evaluate, but no longer define or set global variables.
+   */
+  public SchemeEvaluator fork() {
+    return new SchemeEvaluator(environment.fork());
   }
 
   /**
@@ -26,25 +53,55 @@ public class SchemeEvaluator {
     SchemeEvaluator evaluator = new SchemeEvaluator();
     for (String filename: args) {
       try (BufferedReader in = new BufferedReader(new FileReader(filename))) {
-        DatumParser parser = new DatumParser(in);
-        for (;;) {
-          try {
-            Datum datum = parser.nextDatum();
-            if (datum == null) {
-              break;
-            }
-            Value value = evaluator.evaluate(datum);
-            if (value.isSpecified()) {
-              System.out.printf("%s%n", value.toSyntaxString());
-            }
-          } catch (EvaluationError e) {
-            System.err.printf("%s:%s%n", filename, e.getMessage());
-          }
-        }
+        evaluator.evaluateAll(in, filename, System.out, System.err);
       } catch (Exception e) {
         System.err.printf("%s:%s%n", filename, e.getMessage());
       }
     }
+    if (Boolean.getBoolean("scheme.fold.report")) {
+      System.err.println(ConstantFolder.report());
+    }
+    if (Boolean.getBoolean("scheme.metrics.report")) {
+      Metrics.snapshot().forEach((name, count) -> System.err.printf("%s %d%n", name, count));
+    }
+  }
+
+  /**
+   * Evaluates every datum read from the input in turn, printing the value of
+   * each to {@code out} and any error in it to {@code err}, prefixed by the
+   * source name. Both streams are flushed after each datum.
+   */
+  public void evaluateAll(BufferedReader in, String sourceName, PrintStream out, PrintStream err)
+      throws IOException {
+    DatumParser parser = new DatumParser(in, sourceName);
+    for (;;) {
+      try {
+        Datum datum = parser.nextDatum();
+        if (datum == null) {
+          break;
+        }
+        Value value = evaluate(datum);
+        if (value.isSpecified()) {
+          out.printf("%s%n", value.toSyntaxString());
+        }
+      } catch (EvaluationError e) {
+        err.printf("%s:%s%n", sourceName, e.getMessage());
+      }
+      out.flush();
+      err.flush();
+    }
+  }
+
+  /**
+   * Sets where {@code display} and the like write while this evaluator is
+   * evaluating, or restores standard output if {@code output} is
+   * {@code null}. What they write is buffered, and flushed to the stream
+   * after each top-level form.
+   */
+  public void setOutput(PrintStream output) {
+    OutputPort previous = this.output;
+    this.output = OutputPort.newPort((output != null) ? output : System.out);
+    previous.flush();
   }
 
   /**
@@ -53,10 +110,23 @@ public class SchemeEvaluator {
    * of a syntax or type error, a Problem will be thrown.
    */
   public Value evaluate(Datum sExpr) throws Problem {
-    return evaluate(sExpr, environment);
+    OutputPort port = output;
+    OutputPort previous = OutputPort.replace(port);
+    Environment previousSession = Environment.replaceSession(environment);
+    try {
+      if (Coverage.ENABLED && sExpr.isPair()) {
+        // compiled so that every branch and procedure in it is counted
+        return new Analyzer(environment).analyze(sExpr).execute(environment);
+      }
+      return evaluate(sExpr, environment);
+    } finally {
+      Environment.replaceSession(previousSession);
+      OutputPort.replace(previous);
+      port.flush();
+    }
   }
 
-  private static Value evaluate(Datum sExpr, Environment environment) {
+  static Value evaluate(Datum sExpr, Environment environment) {
     // YOUR CODE HERE //
     // EXAMPLE FROM CLASS:
         if (sExpr.isSymbol()) {
@@ -73,13 +143,20 @@ public class SchemeEvaluator {
 
   static{
     SpecialForm.define("quote", SchemeEvaluator::evaluateQuote);
+    SpecialForm.defineForm("quasiquote", SchemeEvaluator::evaluateCompiled);
     SpecialForm.define("set!", SchemeEvaluator::evaluateAssignment);
     SpecialForm.define("define", SchemeEvaluator::evaluateDefine);
-    SpecialForm.define("let", SchemeEvaluator::evaluateLet);
-    SpecialForm.define("lambda", SchemeEvaluator::evaluateLambda);
+    SpecialForm.defineForm("let", SchemeEvaluator::evaluateCompiled);
+    SpecialForm.defineForm("let*", SchemeEvaluator::evaluateCompiled);
+    SpecialForm.defineForm("letrec", SchemeEvaluator::evaluateCompiled);
+    SpecialForm.defineForm("letrec*", SchemeEvaluator::evaluateCompiled);
+    SpecialForm.defineForm("do", SchemeEvaluator::evaluateCompiled);
+    SpecialForm.defineForm("define-record-type", SchemeEvaluator::evaluateCompiled);
+    SpecialForm.defineForm("lambda", SchemeEvaluator::evaluateLambda);
     SpecialForm.define("if", SchemeEvaluator::evaluateIf);
     SpecialForm.define("cond", SchemeEvaluator::evaluateCond);
     SpecialForm.define("begin", SchemeEvaluator::evaluateBegin);
+    SpecialForm.define("define-syntax", SchemeEvaluator::evaluateDefineSyntax);
   }
 
   private static Value evaluateQuote(LinkedList<Value> body, Environment environment){
@@ -102,45 +179,75 @@ public class SchemeEvaluator {
   private static Value evaluateDefine(LinkedList<Value> body, Environment environment){
     matchSymbol(body, "define");
     Value assignee = next(body);
+    if (assignee.isPair()) {
+      // (define (name . formals) body...) is shorthand for a lambda
+      Lambda.Template template = lambdaTemplate((Datum)assignee, assignee.getCdr(), body, environment);
+      Lambda procedure = new Lambda(template, environment);
+      Lambda.nameIfAnonymous(procedure, assignee.getCar().toString());
+      environment.defineVariable(assignee.getCar().toString(), procedure);
+      return RuntimeValue.newUnspecified();
+    }
     Datum exp = (Datum)next(body);
     Value newValue = evaluate(exp, environment);
     noExtras(body, "define");
+    Lambda.nameIfAnonymous(newValue, assignee.toString());
     environment.defineVariable(assignee.toString(), newValue);
     return RuntimeValue.newUnspecified();
   }
 
-  private static Value evaluateLet(LinkedList<Value> body, Environment environment){
-    matchSymbol(body, "let");
-    noExtras(body, "let");
-    return null;
+  // Macros are global to the environment's global environment, and must be
+  // defined before any code using them is evaluated.
+  private static Value evaluateDefineSyntax(LinkedList<Value> body, Environment environment){
+    matchSymbol(body, "define-syntax");
+    Value keyword = next(body);
+    assertCondition(keyword.isSymbol(), "Expected a keyword in define-syntax");
+    SyntaxRules macro = SyntaxRules.parse((SymbolDatum)keyword, next(body));
+    noExtras(body, "define-syntax");
+    SpecialForm.defineMacro(keyword.toString(), macro, environment);
+    return RuntimeValue.newUnspecified();
   }
 
-  private static Value evaluateLambda(LinkedList<Value> body, Environment environment){
+  private static Value evaluateCompiled(Datum sExpr, Environment environment){
+    Node compiled = compiledForms.get(sExpr);
+    if (compiled == null) {
+      compiled = new Analyzer(environment).compileForm(sExpr);
+      compiledForms.put(sExpr, compiled);
+    }
+    return compiled.execute(environment);
+  }
+
+  private static Value evaluateLambda(Datum sExpr, Environment environment){
+    LinkedList<Value> body = sExpr.asProperList();
     matchSymbol(body, "lambda");
-    /*
-    List<Value> params = next(body);
-    List<String> strParams = new ArrayList<String>();
-    for( Value v : params){
-        strParams.add(v.toString());
+    Value formals = next(body);
+    return new Lambda(lambdaTemplate(sExpr, formals, body, environment), environment);
+  }
+
+  /**
+   * Returns the template of the lambda expression, or of the procedure
+   * definition, whose source datum is given, parsing it the first time.
+   */
+  static Lambda.Template lambdaTemplate(Datum source, Value formals, LinkedList<Value> body,
+      Environment environment) {
+    Lambda.Template template = lambdaTemplates.get(source);
+    if (template == null) {
+      template = Lambda.Template.parse(formals, body, environment);
+      lambdaTemplates.put(source, template);
     }
-    List<Datum> bodyExp = (List<Datum>)next(body);
-    
-    Lambda newLambda = new Lambda(strParams, false, bodyExp, environment);
-    return newLambda;
-    */
-    return null;
+    return template;
   }
   private static Value evaluateIf(LinkedList<Value> body, Environment environment){
     matchSymbol(body, "if");
     Datum predicate = (Datum)next(body);
     Datum consequent = (Datum)next(body);
-    Datum alternative = (Datum)next(body);
+    Datum alternative = body.isEmpty() ? null : (Datum)body.remove();
+    noExtras(body, "if");
     boolean evaled = helperEvalIf(predicate, environment);
 
     if(evaled)
         return evaluate(consequent, environment);
     else{
-        if(alternative.isSpecified())
+        if(alternative != null)
             return evaluate(alternative, environment);
         else
             return RuntimeValue.newUnspecified();
@@ -180,7 +287,7 @@ public class SchemeEvaluator {
   private static Value evaluateNonEmptyListForm(Datum sExpr, Environment environment){
     Value listHead = sExpr.getCar();
     if(listHead.isSymbol()){
-        SpecialForm specialForm = SpecialForm.lookup(listHead.toString());
+        SpecialForm specialForm = SpecialForm.lookup(listHead.toString(), environment);
         if(specialForm != null){
             return specialForm.evaluate(sExpr, environment);
         }
@@ -190,8 +297,8 @@ public class SchemeEvaluator {
   }
 
   private static Value evaluateApplication(Datum sExpr, Environment environment){
-      // Assuming that the listHead is always a symbol...
-      Value theProcedure = environment.lookupVariable(sExpr.getCar().toString());
+      Metrics.countApplicationForm();
+      Value theProcedure = evaluate((Datum)sExpr.getCar(), environment);
       List<Value> theRest = sExpr.getCdr().asProperList();
       List<Value> finished = new ArrayList<Value>();
 
@@ -199,34 +306,16 @@ public class SchemeEvaluator {
           Datum asDatum = (Datum)element;
           finished.add(evaluate(asDatum, environment));
       }
+      if (SamplingProfiler.ENABLED) {
+          SamplingProfiler.callSite(sExpr);
+      }
 
       return theProcedure.apply(finished);
 
       //return environment.lookupVariable(sExpr.getCar().toString()).apply(sExpr.getCdr().asProperList());
   }
 
-  // YOUR CODE HERE //
-  // EXAMPLE CODE:
-    private static class Lambda extends RuntimeValue.Procedure {
-      private List<String> formals;
-      private List<Datum> body;
-      private Environment scope;
-  
-      public Lambda(List<String> formals, boolean isVarArg, List<Datum> body, Environment scope) {
-        super(formals.size() - (isVarArg ? 1 : 0), isVarArg);
-        this.formals = formals;
-        this.body = body;
-        this.scope = scope;
-      }
-  
-      @Override
-      public Value checkedApply(LinkedList<Value> args) {
-        Environment extendedEnvironment = scope.extend(formals, args);
-         return evaluateSequence(body, extendedEnvironment);
-       }
-    }
-
-  private static Value evaluateSequence(List<Datum> body, Environment extended){
+  static Value evaluateSequence(List<Datum> body, Environment extended){
     Value last = RuntimeValue.newUnspecified();
     for( Datum d : body ){
         last = evaluate(d, extended);
@@ -235,7 +324,7 @@ public class SchemeEvaluator {
   }
 
   // Code from Prof Mac.
-  private static void matchSymbol(LinkedList<Value> queue, String symbolName){
+  static void matchSymbol(LinkedList<Value> queue, String symbolName){
       if (queue.isEmpty()) 
           throw Problem.invalidExpression("Incomplete expression");
       
@@ -249,7 +338,7 @@ public class SchemeEvaluator {
   }
 
   // Code kinda from Prof Mac.
-  private static Value next(LinkedList<Value> queue){
+  static Value next(LinkedList<Value> queue){
       if (queue.isEmpty()) {
           throw Problem.invalidExpression("Incomplete expression");
       }
@@ -257,11 +346,11 @@ public class SchemeEvaluator {
   }
 
   // Code from Prof Mac.
-  private static void noExtras(LinkedList<Value> queue, String context){
+  static void noExtras(LinkedList<Value> queue, String context){
       assertCondition(queue.isEmpty(), "Extra expression in %s", context);
   }
 
-  private static void assertCondition(boolean condition, String fmt, Object... args) {
+  static void assertCondition(boolean condition, String fmt, Object... args) {
     if (!condition) {
       throw Problem.invalidExpression(fmt, args);
     }
@@ -0,0 +1,133 @@
+package org.instructures.interp;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.function.BiConsumer;
+
+/**
+ * Serves read-eval-print sessions on a local TCP port, so that the
+ * interpreter can stay running instead of starting a JVM for each script.
+ *
+ * The files named on the command line are loaded once, as a prelude, and
+ * each connection then gets an evaluator forked from it, so that sessions
+ * cannot see each other's definitions. A session reads forms from its
+ * connection as they arrive and writes back what {@link SchemeEvaluator#main}
+ * would print: the value of each form, anything displayed, and errors. Each
+ * session runs on a virtual thread when the JVM has them, and on a platform
+ * thread of its own otherwise; an idle session just blocks in a read.
+ *
+ * <pre>
+ *   java org.instructures.interp.SchemeServer [-port n] [prelude.scm ...]
+ * </pre>
+ */
+public class SchemeServer implements AutoCloseable {
+  static final int DEFAULT_PORT = 7330;
+
+  private final SchemeEvaluator prelude;
+  private final ServerSocket serverSocket;
+  private final BiConsumer<SchemeEvaluator, Socket> session;
+  private final ExecutorService sessions = Parallel.newThreadPerTaskExecutor("scheme-session");
+
+  /**
+   * Listens on the loopback interface.
+   *
+   * @param prelude The evaluator each session is forked from. It is frozen
+   *        by the first fork.
+   * @param port The port to listen on, or 0 for any free one.
+   */
+  public SchemeServer(SchemeEvaluator prelude, int port) throws IOException {
+    this(prelude, port, SchemeServer::runSession);
+  }
+
+  /**
+   * @param session Runs a session on a connection, with its own evaluator,
+   *        and closes the connection.
+   */
+  SchemeServer(SchemeEvaluator prelude, int port, BiConsumer<SchemeEvaluator, Socket> session) throws IOException {
+    this.prelude = prelude;
+    this.serverSocket = new ServerSocket(port, 1024, InetAddress.getLoopbackAddress());
+    this.session = session;
+  }
+
+  public int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  /**
+   * Accepts connections until the server is closed.
+   */
+  public void serve() throws IOException {
+    while (!serverSocket.isClosed()) {
+      Socket connection;
+      try {
+        connection = serverSocket.accept();
+      } catch (IOException e) {
+        if (serverSocket.isClosed()) {
+          break;
+        }
+        throw e;
+      }
+      SchemeEvaluator evaluator = prelude.fork();
+      sessions.execute(() -> session.accept(evaluator, connection));
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    serverSocket.close();
+    sessions.shutdownNow();
+  }
+
+  private static void runSession(SchemeEvaluator evaluator, Socket connection) {
+    String sessionName = String.valueOf(connection.getRemoteSocketAddress());
+    try (Socket socket = connection;
+         BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+         PrintStream out = new PrintStream(new BufferedOutputStream(socket.getOutputStream()), false, "UTF-8")) {
+      socket.setTcpNoDelay(true);
+      evaluator.setOutput(out);
+      try {
+        evaluator.evaluateAll(in, sessionName, out, out);
+      } catch (RuntimeException e) {
+        // as for a file, an error outside of the interpreter ends the session
+        out.printf("%s:%s%n", sessionName, e.getMessage());
+      }
+    } catch (IOException e) {
+      // the client has gone
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    serve(args, DEFAULT_PORT, SchemeServer::runSession);
+  }
+
+  /**
+   * Loads the prelude files named in the arguments, and serves sessions on
+   * the port given by a {@code -port} argument, or the default port.
+   */
+  static void serve(String[] args, int defaultPort, BiConsumer<SchemeEvaluator, Socket> session) throws IOException {
+    int port = defaultPort;
+    SchemeEvaluator prelude = new SchemeEvaluator();
+    for (int i = 0; i < args.length; ++i) {
+      if (args[i].equals("-port") && i + 1 < args.length) {
+        port = Integer.parseInt(args[++i]);
+        continue;
+      }
+      try (BufferedReader in = new BufferedReader(new FileReader(args[i]))) {
+        prelude.evaluateAll(in, args[i], System.out, System.err);
+      }
+    }
+    try (SchemeServer server = new SchemeServer(prelude, port, session)) {
+      System.err.printf("Listening on %s:%d%n", InetAddress.getLoopbackAddress().getHostAddress(), server.getPort());
+      server.serve();
+    }
+  }
+}
@@ -0,0 +1,98 @@
+package org.instructures.interp;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A load test for {@link SchemeServer}. It opens a number of sessions that
+ * stay idle, and then has a number of clients, each with a session of its
+ * own, send the same expression repeatedly, each time waiting for the line
+ * with its value. It reports the latency distribution of those requests and
+ * the overall throughput.
+ *
+ * <pre>
+ *   java org.instructures.interp.ServerLoadTest [-port n] [-idle n] [-clients n] [-requests n] [-expr e]
+ * </pre>
+ */
+public class ServerLoadTest {
+  private static final String DEFAULT_EXPRESSION =
+    "(let loop ((i 0) (sum 0)) (if (= i 1000) sum (loop (+ i 1) (+ sum i))))";
+
+  public static void main(String[] args) throws Exception {
+    int port = SchemeServer.DEFAULT_PORT;
+    int idle = 1000;
+    int clients = 16;
+    int requests = 2000;
+    String expression = DEFAULT_EXPRESSION;
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      switch (args[i]) {
+        case "-port": port = Integer.parseInt(args[i + 1]); break;
+        case "-idle": idle = Integer.parseInt(args[i + 1]); break;
+        case "-clients": clients = Integer.parseInt(args[i + 1]); break;
+        case "-requests": requests = Integer.parseInt(args[i + 1]); break;
+        case "-expr": expression = args[i + 1]; break;
+        default: throw new IllegalArgumentException("Unknown option " + args[i]);
+      }
+    }
+    List<Socket> idleSessions = new ArrayList<>();
+    for (int i = 0; i < idle; ++i) {
+      idleSessions.add(new Socket(InetAddress.getLoopbackAddress(), port));
+    }
+    long[][] latencies = new long[clients][];
+    String[] responses = new String[clients];
+    Thread[] threads = new Thread[clients];
+    final int serverPort = port;
+    final int count = requests;
+    final byte[] request = (expression + "\n").getBytes(StandardCharsets.UTF_8);
+    long start = System.nanoTime();
+    for (int c = 0; c < clients; ++c) {
+      final int client = c;
+      threads[c] = new Thread(() -> {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), serverPort)) {
+          socket.setTcpNoDelay(true);
+          OutputStream out = socket.getOutputStream();
+          BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+          long[] times = new long[count];
+          for (int r = 0; r < count; ++r) {
+            long sent = System.nanoTime();
+            out.write(request);
+            out.flush();
+            responses[client] = in.readLine();
+            times[r] = System.nanoTime() - sent;
+          }
+          latencies[client] = times;
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+      threads[c].start();
+    }
+    for (Thread thread: threads) {
+      thread.join();
+    }
+    long elapsed = System.nanoTime() - start;
+    for (Socket socket: idleSessions) {
+      socket.close();
+    }
+    long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+    System.out.printf("%d idle sessions, %d clients x %d requests, response %s%n", idle, clients, requests, responses[0]);
+    System.out.printf("throughput %.0f requests/s%n", all.length / (elapsed / 1e9));
+    System.out.printf("latency ms: p50 %.3f  p90 %.3f  p99 %.3f  max %.3f%n",
+      percentile(all, 0.50), percentile(all, 0.90), percentile(all, 0.99), all[all.length - 1] / 1e6);
+  }
+
+  private static double percentile(long[] sorted, double fraction) {
+    int index = Math.min(sorted.length - 1, (int)(fraction * sorted.length));
+    return sorted[index] / (double)TimeUnit.MILLISECONDS.toNanos(1);
+  }
+}
@@ -0,0 +1,164 @@
+package org.instructures.interp;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+import org.instructures.interp.values.*;
+import org.instructures.interp.values.LexemeDatum.NumberDatum;
+import org.instructures.interp.values.RuntimeValue.Procedure;
+
+/**
+ * The stable merge sort behind {@code sort}, {@code sort!} and
+ * {@code list-sort}. The elements are sorted in an array, by a procedure
+ * that tells whether one comes before another, which is applied once per
+ * comparison. Arrays of at least the size set by
+ * {@code -Dscheme.sort.threshold} are sorted on the common fork/join pool,
+ * each half by a task of its own until the halves are below that size.
+ *
+ * Numbers sorted by the builtin {@code <} or {@code >} are compared directly,
+ * without applying it, and fixnums are sorted as an array of longs. As
+ * numbers are interned, equal ones are the same, so such a sort need not be
+ * stable.
+ */
+final class Sorting {
+  static final int PARALLEL_THRESHOLD = Integer.getInteger("scheme.sort.threshold", 8192);
+
+  // Runs shorter than this are sorted by insertion rather than merged
+  private static final int INSERTION_THRESHOLD = 16;
+
+  private Sorting() {
+  }
+
+  /**
+   * Sorts the values in place, in the order of the procedure, which tells
+   * whether its first argument comes before its second.
+   */
+  static void sort(Value[] values, Procedure before) {
+    if (values.length < PARALLEL_THRESHOLD) {
+      sort(values, (a, b) -> before.apply(Arrays.asList(a, b)).isTrue());
+      return;
+    }
+    Function<List<Value>, Value> apply = Parallel.inCallerContext(before::apply);
+    sort(values, (a, b) -> apply.apply(Arrays.asList(a, b)).isTrue());
+  }
+
+  private static void sort(Value[] values, BiPredicate<Value, Value> before) {
+    Value[] buffer = values.clone();
+    if (values.length < PARALLEL_THRESHOLD) {
+      mergeSort(buffer, values, 0, values.length, before);
+    } else {
+      ForkJoinPool.commonPool().invoke(new MergeSort(buffer, values, 0, values.length, before));
+    }
+  }
+
+  /**
+   * Sorts the values in place in ascending or descending order, as by the
+   * builtin {@code <} or {@code >}, if they are all numbers, and returns
+   * false without changing them if they are not.
+   */
+  static boolean sortNumbers(Value[] values, boolean isAscending) {
+    boolean isFixnums = true;
+    for (Value value: values) {
+      if (!value.isNumber()) {
+        return false;
+      }
+      isFixnums &= ((NumberDatum)value).getValue().bitLength() < 64;
+    }
+    if (!isFixnums) {
+      sort(values, (a, b) -> {
+        int order = ((NumberDatum)a).getValue().compareTo(((NumberDatum)b).getValue());
+        return isAscending ? order < 0 : order > 0;
+      });
+      return true;
+    }
+    long[] fixnums = new long[values.length];
+    for (int i = 0; i < values.length; ++i) {
+      fixnums[i] = ((NumberDatum)values[i]).getValue().longValue();
+    }
+    if (values.length < PARALLEL_THRESHOLD) {
+      Arrays.sort(fixnums);
+    } else {
+      Arrays.parallelSort(fixnums);
+    }
+    for (int i = 0; i < values.length; ++i) {
+      long fixnum = fixnums[isAscending ? i : values.length - 1 - i];
+      values[i] = LexemeDatum.newNumber(fixnum);
+    }
+    return true;
+  }
+
+  // Sorts src[lo, hi) into dst[lo, hi), which start with the same elements,
+  // by sorting each half of dst into src and merging them back.
+  private static void mergeSort(Value[] src, Value[] dst, int lo, int hi, BiPredicate<Value, Value> before) {
+    if (hi - lo < INSERTION_THRESHOLD) {
+      insertionSort(dst, lo, hi, before);
+      return;
+    }
+    int mid = (lo + hi) >>> 1;
+    mergeSort(dst, src, lo, mid, before);
+    mergeSort(dst, src, mid, hi, before);
+    merge(src, dst, lo, mid, hi, before);
+  }
+
+  private static void insertionSort(Value[] values, int lo, int hi, BiPredicate<Value, Value> before) {
+    for (int i = lo + 1; i < hi; ++i) {
+      Value value = values[i];
+      int j = i;
+      for (; j > lo && before.test(value, values[j - 1]); --j) {
+        values[j] = values[j - 1];
+      }
+      values[j] = value;
+    }
+  }
+
+  // Merges the sorted runs src[lo, mid) and src[mid, hi) into dst[lo, hi),
+  // taking from the first run unless the second's next element comes before
+  // its next, so that equal elements keep their order
+  private static void merge(Value[] src, Value[] dst, int lo, int mid, int hi, BiPredicate<Value, Value> before) {
+    int i = lo;
+    int j = mid;
+    for (int k = lo; k < hi; ++k) {
+      if (j >= hi || (i < mid && !before.test(src[j], src[i]))) {
+        dst[k] = src[i++];
+      } else {
+        dst[k] = src[j++];
+      }
+    }
+  }
+
+  /**
+   * A merge sort of part of an array, which sorts its halves in parallel
+   * while they are large enough to be worth it.
+   */
+  private static final class MergeSort extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final Value[] src;
+    private final Value[] dst;
+    private final int lo;
+    private final int hi;
+    private final BiPredicate<Value, Value> before;
+
+    private MergeSort(Value[] src, Value[] dst, int lo, int hi, BiPredicate<Value, Value> before) {
+      this.src = src;
+      this.dst = dst;
+      this.lo = lo;
+      this.hi = hi;
+      this.before = before;
+    }
+
+    @Override
+    protected void compute() {
+      if (hi - lo < PARALLEL_THRESHOLD) {
+        mergeSort(src, dst, lo, hi, before);
+        return;
+      }
+      int mid = (lo + hi) >>> 1;
+      invokeAll(new MergeSort(dst, src, lo, mid, before), new MergeSort(dst, src, mid, hi, before));
+      merge(src, dst, lo, mid, hi, before);
+    }
+  }
+}
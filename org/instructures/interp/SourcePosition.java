@@ -0,0 +1,47 @@
+package org.instructures.interp;
+
+import org.instructures.interp.values.Datum;
+import org.instructures.interp.values.Value;
+
+/**
+ * The line a list datum was read from. The {@link DatumParser} records the
+ * position of each list it reads from a named source, and a position is only
+ * kept for as long as its datum is.
+ */
+final class SourcePosition {
+  // Keyed by the identity of the first pair of each list
+  private static final StripedWeakMap<Datum, SourcePosition> positions = new StripedWeakMap<>();
+
+  private final String sourceName;
+  private final int line;
+
+  SourcePosition(String sourceName, int line) {
+    this.sourceName = sourceName;
+    this.line = line;
+  }
+
+  static void record(Datum list, SourcePosition position) {
+    positions.put(list, position);
+  }
+
+  /**
+   * Returns the position the datum was read from, or {@code null} if it was
+   * not read from a named source or is not a list.
+   */
+  static SourcePosition of(Value datum) {
+    return datum.isPair() ? positions.get((Datum)datum) : null;
+  }
+
+  String getSourceName() {
+    return sourceName;
+  }
+
+  int getLine() {
+    return line;
+  }
+
+  @Override
+  public String toString() {
+    return sourceName + ":" + line;
+  }
+}
@@ -2,30 +2,92 @@ package org.instructures.interp;
 
 import java.util.LinkedList;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.BiFunction;
 import org.instructures.interp.values.*;
 import org.instructures.interp.values.LexemeDatum.SymbolDatum;
 
+/**
+ * A special form: one of the builtin forms, which are defined once for all
+ * environments, or a macro, which is defined in a global environment.
+ */
 class SpecialForm {
   private static final Map<SymbolDatum, SpecialForm> SPECIAL_FORMS = new ConcurrentHashMap<>();
 
-  private BiFunction<LinkedList<Value>, Environment, Value> handler;
+  private final BiFunction<Datum, Environment, Value> handler;
+  private final SyntaxRules macro;
+  private final LongAdder evaluations = new LongAdder();
 
-  private SpecialForm(BiFunction<LinkedList<Value>, Environment, Value> handler) {
+  private SpecialForm(BiFunction<Datum, Environment, Value> handler, SyntaxRules macro) {
     this.handler = handler;
+    this.macro = macro;
   }
 
   public static void define(String symbolName, BiFunction<LinkedList<Value>, Environment, Value> handler) {
-    SPECIAL_FORMS.put(LexemeDatum.newSymbol(symbolName), new SpecialForm(handler));
+    defineForm(symbolName, (sExpr, environment) -> handler.apply(sExpr.asProperList(), environment));
   }
-  
+
+  /**
+   * Defines a special form whose handler receives the whole, unconverted
+   * S-Expression. This is for forms that need the identity of their source
+   * datum, such as to cache work done on it.
+   */
+  public static void defineForm(String symbolName, BiFunction<Datum, Environment, Value> handler) {
+    SPECIAL_FORMS.put(LexemeDatum.newSymbol(symbolName), new SpecialForm(handler, null));
+  }
+
+  /**
+   * Defines, in the environment's global environment, a special form that is
+   * a use of a macro, evaluated as the macro's expansion of it.
+   */
+  public static void defineMacro(String symbolName, SyntaxRules macro, Environment environment) {
+    BiFunction<Datum, Environment, Value> handler =
+      (sExpr, env) -> SchemeEvaluator.evaluate(macro.expand(sExpr), env);
+    environment.defineMacro(symbolName, new SpecialForm(handler, macro));
+  }
+
+  /**
+   * Returns the builtin special form with the given name, or {@code null}.
+   */
   public static SpecialForm lookup(String symbolName) {
     return SPECIAL_FORMS.get(LexemeDatum.newSymbol(symbolName));
   }
 
+  /**
+   * Returns the special form with the given name in the environment, which
+   * is a macro if one of that name has been defined, or {@code null}.
+   *
+   * @param environment The environment to look for macros in, or
+   *        {@code null} to look only for builtin forms.
+   */
+  public static SpecialForm lookup(String symbolName, Environment environment) {
+    SpecialForm macro = (environment == null) ? null : environment.lookupMacro(symbolName);
+    return (macro != null) ? macro : lookup(symbolName);
+  }
+
+  /**
+   * Returns the macro this special form is a use of, or {@code null} if it is
+   * not a macro.
+   */
+  SyntaxRules getMacro() {
+    return macro;
+  }
+
+  /**
+   * Returns how many times the interpreter has evaluated each special form.
+   */
+  static Map<String, Long> getEvaluationCounts() {
+    Map<String, Long> counts = new TreeMap<>();
+    for (Map.Entry<SymbolDatum, SpecialForm> entry: SPECIAL_FORMS.entrySet()) {
+      counts.put(entry.getKey().toString(), entry.getValue().evaluations.sum());
+    }
+    return counts;
+  }
+
   public Value evaluate(Datum sExpr, Environment environment) {
-    LinkedList<Value> list = sExpr.asProperList();
-    return handler.apply(list, environment);
+    evaluations.increment();
+    return handler.apply(sExpr, environment);
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,42 @@
+package org.instructures.interp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * A map whose keys are held weakly, as in a {@link WeakHashMap}, split into
+ * stripes that are locked separately so that threads working on different
+ * keys rarely wait for each other.
+ */
+final class StripedWeakMap<K, V> {
+  private static final int STRIPES = 64;
+
+  private final List<Map<K, V>> stripes = new ArrayList<>(STRIPES);
+
+  StripedWeakMap() {
+    for (int i = 0; i < STRIPES; ++i) {
+      stripes.add(new WeakHashMap<>());
+    }
+  }
+
+  V get(K key) {
+    Map<K, V> stripe = stripe(key);
+    synchronized (stripe) {
+      return stripe.get(key);
+    }
+  }
+
+  void put(K key, V value) {
+    Map<K, V> stripe = stripe(key);
+    synchronized (stripe) {
+      stripe.put(key, value);
+    }
+  }
+
+  private Map<K, V> stripe(K key) {
+    int h = key.hashCode();
+    return stripes.get((h ^ (h >>> 16)) & (STRIPES - 1));
+  }
+}
@@ -0,0 +1,428 @@
+package org.instructures.interp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.instructures.interp.values.*;
+import org.instructures.interp.values.LexemeDatum.SymbolDatum;
+
+/**
+ * A macro defined with {@code syntax-rules}. The pattern and template of each
+ * rule are compiled when the macro is defined, into a {@link Matcher} and a
+ * {@link Builder}, so a use of the macro never walks the rule's datums again.
+ * Each use is expanded only once: the expansion is cached by the identity of
+ * the form that used the macro.
+ *
+ * Hygiene is limited to the variables that a template binds itself with
+ * {@code lambda}, {@code let} or {@code do}. These are renamed apart in every
+ * expansion, so they can never capture a variable of the macro's user. Any
+ * other symbol in a template means whatever it names where the macro is used.
+ */
+final class SyntaxRules {
+  private static final SymbolDatum ELLIPSIS = LexemeDatum.newSymbol("...");
+  private static final SymbolDatum UNDERSCORE = LexemeDatum.newSymbol("_");
+  private static final AtomicLong renameCount = new AtomicLong();
+
+  private final SymbolDatum keyword;
+  private final List<Rule> rules;
+  private final Map<Datum, Datum> expansions = Collections.synchronizedMap(new WeakHashMap<>());
+
+  private SyntaxRules(SymbolDatum keyword, List<Rule> rules) {
+    this.keyword = keyword;
+    this.rules = rules;
+  }
+
+  /**
+   * Compiles the {@code (syntax-rules (literal ...) (pattern template) ...)}
+   * specification of the macro with the given keyword.
+   */
+  static SyntaxRules parse(SymbolDatum keyword, Value spec) {
+    SchemeEvaluator.assertCondition(spec.isPair() && spec.getCar() == LexemeDatum.newSymbol("syntax-rules"),
+      "Expected syntax-rules for %s", keyword);
+    LinkedList<Value> parts = spec.asProperList();
+    parts.removeFirst();
+    Value literalList = SchemeEvaluator.next(parts);
+    SchemeEvaluator.assertCondition(literalList.isList(), "Expected literals in syntax-rules");
+    Set<Value> literals = new HashSet<>();
+    for (Value literal: literalList.asProperList()) {
+      SchemeEvaluator.assertCondition(literal.isSymbol(), "Literal must be a symbol: %s", literal.toSyntaxString());
+      literals.add(literal);
+    }
+    List<Rule> rules = new ArrayList<>();
+    for (Value rule: parts) {
+      SchemeEvaluator.assertCondition(rule.isPair(), "Invalid rule in syntax-rules: %s", rule.toSyntaxString());
+      LinkedList<Value> ruleParts = rule.asProperList();
+      Value pattern = SchemeEvaluator.next(ruleParts);
+      Value template = SchemeEvaluator.next(ruleParts);
+      SchemeEvaluator.noExtras(ruleParts, "syntax-rules");
+      SchemeEvaluator.assertCondition(pattern.isPair(), "Pattern must be a list: %s", pattern.toSyntaxString());
+      rules.add(new RuleCompiler(literals).compile(pattern, template));
+    }
+    return new SyntaxRules(keyword, rules);
+  }
+
+  /**
+   * Returns the expansion of a use of this macro, expanding it if this is the
+   * first time the form has been seen.
+   */
+  Datum expand(Datum sExpr) {
+    Datum expansion = expansions.get(sExpr);
+    if (expansion == null) {
+      expansion = expandOnce(sExpr);
+      expansions.put(sExpr, expansion);
+    }
+    return expansion;
+  }
+
+  private Datum expandOnce(Datum sExpr) {
+    for (Rule rule: rules) {
+      Object[] bindings = new Object[rule.variableCount];
+      // the keyword position of the pattern is ignored
+      if (rule.matcher.match(sExpr.getCdr(), bindings)) {
+        Value[] renames = new Value[rule.renamed.size()];
+        for (int i = 0; i < renames.length; ++i) {
+          String name = String.format(" %s.%d", rule.renamed.get(i), renameCount.incrementAndGet());
+          renames[i] = LexemeDatum.newSymbol(name);
+        }
+        return (Datum)rule.builder.build(bindings, renames);
+      }
+    }
+    throw Problem.invalidExpression("No rule of %s matches: %s", keyword, sExpr.toSyntaxString());
+  }
+
+  private static final class Rule {
+    private final Matcher matcher;
+    private final Builder builder;
+    private final int variableCount;
+    private final List<SymbolDatum> renamed;
+
+    private Rule(Matcher matcher, Builder builder, int variableCount, List<SymbolDatum> renamed) {
+      this.matcher = matcher;
+      this.builder = builder;
+      this.variableCount = variableCount;
+      this.renamed = renamed;
+    }
+  }
+
+  /**
+   * A pattern variable: its index in the bindings of a match, and how many
+   * ellipses follow it. A variable under an ellipsis is bound to a list with
+   * a binding for each repetition.
+   */
+  private static final class PatternVariable {
+    private final int index;
+    private final int depth;
+
+    private PatternVariable(int index, int depth) {
+      this.index = index;
+      this.depth = depth;
+    }
+  }
+
+  private static final class RuleCompiler {
+    private final Set<Value> literals;
+    private final Map<Value, PatternVariable> variables = new HashMap<>();
+    private final List<SymbolDatum> renamed = new ArrayList<>();
+
+    private RuleCompiler(Set<Value> literals) {
+      this.literals = literals;
+    }
+
+    private Rule compile(Value pattern, Value template) {
+      Matcher matcher = compilePattern(pattern.getCdr(), 0);
+      collectBinders(template);
+      Builder builder = compileTemplate(template, 0, false, new HashSet<>());
+      return new Rule(matcher, builder, variables.size(), renamed);
+    }
+
+    private Matcher compilePattern(Value pattern, int depth) {
+      if (pattern == UNDERSCORE) {
+        return (datum, bindings) -> true;
+      } else if (pattern.isSymbol() && !literals.contains(pattern)) {
+        SchemeEvaluator.assertCondition(pattern != ELLIPSIS, "Misplaced ellipsis in pattern");
+        SchemeEvaluator.assertCondition(!variables.containsKey(pattern), "Duplicate pattern variable: %s", pattern);
+        int index = variables.size();
+        variables.put(pattern, new PatternVariable(index, depth));
+        return (datum, bindings) -> {
+          bindings[index] = datum;
+          return true;
+        };
+      } else if (!pattern.isPair()) {
+        // literals, and constants, which are all pooled
+        return (datum, bindings) -> datum == pattern;
+      }
+      List<Matcher> before = new ArrayList<>();
+      List<Matcher> after = new ArrayList<>();
+      Matcher repeated = null;
+      int[] repeatedVariables = null;
+      Value curr = pattern;
+      for (; curr.isPair(); curr = curr.getCdr()) {
+        Value element = curr.getCar();
+        if (curr.getCdr().isPair() && curr.getCdr().getCar() == ELLIPSIS) {
+          SchemeEvaluator.assertCondition(repeated == null, "More than one ellipsis in pattern");
+          int firstVariable = variables.size();
+          repeated = compilePattern(element, depth + 1);
+          repeatedVariables = new int[variables.size() - firstVariable];
+          for (int i = 0; i < repeatedVariables.length; ++i) {
+            repeatedVariables[i] = firstVariable + i;
+          }
+          curr = curr.getCdr();
+        } else {
+          (repeated == null ? before : after).add(compilePattern(element, depth));
+        }
+      }
+      Matcher tail = curr.isEmptyList() ? null : compilePattern(curr, depth);
+      return new ListMatcher(before.toArray(new Matcher[0]), repeated, repeatedVariables,
+        after.toArray(new Matcher[0]), tail);
+    }
+
+    // Finds the variables the template binds with a binding form of its own.
+    private void collectBinders(Value template) {
+      if (!template.isPair()) {
+        return;
+      }
+      Value head = template.getCar();
+      if (head == LexemeDatum.newSymbol("quote")) {
+        return;
+      }
+      Value rest = template.getCdr();
+      if (head == LexemeDatum.newSymbol("lambda") && rest.isPair()) {
+        for (Value formals = rest.getCar(); ; formals = formals.getCdr()) {
+          if (!formals.isPair()) {
+            addBinder(formals);
+            break;
+          }
+          addBinder(formals.getCar());
+        }
+      } else if (DerivedForms.isBindingForm(head) && rest.isPair()) {
+        Value bindings = rest.getCar();
+        if (bindings.isSymbol() && rest.getCdr().isPair()) {
+          // named let
+          addBinder(bindings);
+          bindings = rest.getCdr().getCar();
+        }
+        for (; bindings.isPair(); bindings = bindings.getCdr()) {
+          if (bindings.getCar().isPair()) {
+            addBinder(bindings.getCar().getCar());
+          }
+        }
+      }
+      for (Value curr = template; curr.isPair(); curr = curr.getCdr()) {
+        collectBinders(curr.getCar());
+      }
+    }
+
+    private void addBinder(Value binder) {
+      if (binder.isSymbol() && binder != ELLIPSIS && !variables.containsKey(binder) && !renamed.contains(binder)) {
+        renamed.add((SymbolDatum)binder);
+      }
+    }
+
+    /**
+     * @param usedOut Collects the pattern variables the template refers to.
+     */
+    private Builder compileTemplate(Value template, int depth, boolean isQuoted, Set<PatternVariable> usedOut) {
+      if (template.isSymbol()) {
+        PatternVariable variable = variables.get(template);
+        if (variable != null) {
+          SchemeEvaluator.assertCondition(variable.depth <= depth, "Missing ellipsis after %s in template", template);
+          usedOut.add(variable);
+          int index = variable.index;
+          return (bindings, renames) -> (Value)bindings[index];
+        }
+        int renameIndex = renamed.indexOf(template);
+        if (renameIndex >= 0 && !isQuoted) {
+          return (bindings, renames) -> renames[renameIndex];
+        }
+        return new ConstantBuilder(template);
+      } else if (!template.isPair()) {
+        return new ConstantBuilder(template);
+      }
+      boolean quotesRest = isQuoted || template.getCar() == LexemeDatum.newSymbol("quote");
+      List<Builder> elements = new ArrayList<>();
+      List<int[]> repetitions = new ArrayList<>();
+      List<Value> sources = new ArrayList<>();
+      Value curr = template;
+      for (; curr.isPair(); curr = curr.getCdr()) {
+        sources.add(curr);
+        Value element = curr.getCar();
+        if (curr.getCdr().isPair() && curr.getCdr().getCar() == ELLIPSIS) {
+          Set<PatternVariable> used = new HashSet<>();
+          elements.add(compileTemplate(element, depth + 1, quotesRest, used));
+          List<Integer> iterated = new ArrayList<>();
+          for (PatternVariable variable: used) {
+            if (variable.depth > depth) {
+              iterated.add(variable.index);
+            }
+          }
+          SchemeEvaluator.assertCondition(!iterated.isEmpty(), "No pattern variable before ellipsis in template");
+          repetitions.add(iterated.stream().mapToInt(Integer::intValue).toArray());
+          usedOut.addAll(used);
+          curr = curr.getCdr();
+        } else {
+          elements.add(compileTemplate(element, depth, quotesRest, usedOut));
+          repetitions.add(null);
+        }
+      }
+      Builder tail = compileTemplate(curr, depth, quotesRest, usedOut);
+      // Keep the longest constant suffix of the template as it is, so that its
+      // pairs are shared by every expansion.
+      int constantFrom = elements.size();
+      while (constantFrom > 0 && tail instanceof ConstantBuilder
+             && elements.get(constantFrom - 1) instanceof ConstantBuilder
+             && repetitions.get(constantFrom - 1) == null) {
+        --constantFrom;
+        tail = new ConstantBuilder(sources.get(constantFrom));
+      }
+      if (constantFrom == 0) {
+        return tail;
+      }
+      return new ListBuilder(elements.subList(0, constantFrom).toArray(new Builder[0]),
+        repetitions.subList(0, constantFrom).toArray(new int[0][]), tail);
+    }
+  }
+
+  private interface Matcher {
+    /**
+     * Matches the datum, setting the bindings of the pattern variables.
+     */
+    boolean match(Value datum, Object[] bindings);
+  }
+
+  /**
+   * Matches {@code (before ... repeated ... after ... . tail)}, where there
+   * may be no repeated element and the tail may be the empty list.
+   */
+  private static final class ListMatcher implements Matcher {
+    private final Matcher[] before;
+    private final Matcher repeated;
+    private final int[] repeatedVariables;
+    private final Matcher[] after;
+    private final Matcher tail;
+
+    private ListMatcher(Matcher[] before, Matcher repeated, int[] repeatedVariables, Matcher[] after, Matcher tail) {
+      this.before = before;
+      this.repeated = repeated;
+      this.repeatedVariables = repeatedVariables;
+      this.after = after;
+      this.tail = tail;
+    }
+
+    @Override
+    public boolean match(Value datum, Object[] bindings) {
+      Value curr = datum;
+      for (Matcher matcher: before) {
+        if (!curr.isPair() || !matcher.match(curr.getCar(), bindings)) {
+          return false;
+        }
+        curr = curr.getCdr();
+      }
+      if (repeated != null) {
+        int count = -after.length;
+        for (Value rest = curr; rest.isPair(); rest = rest.getCdr()) {
+          ++count;
+        }
+        if (count < 0) {
+          return false;
+        }
+        List<List<Object>> repetitions = new ArrayList<>(repeatedVariables.length);
+        for (int variable: repeatedVariables) {
+          List<Object> repetition = new ArrayList<>(count);
+          bindings[variable] = repetition;
+          repetitions.add(repetition);
+        }
+        Object[] iterationBindings = new Object[bindings.length];
+        for (int i = 0; i < count; ++i) {
+          if (!repeated.match(curr.getCar(), iterationBindings)) {
+            return false;
+          }
+          for (int j = 0; j < repeatedVariables.length; ++j) {
+            repetitions.get(j).add(iterationBindings[repeatedVariables[j]]);
+          }
+          curr = curr.getCdr();
+        }
+        for (Matcher matcher: after) {
+          if (!matcher.match(curr.getCar(), bindings)) {
+            return false;
+          }
+          curr = curr.getCdr();
+        }
+      }
+      return (tail == null) ? curr.isEmptyList() : tail.match(curr, bindings);
+    }
+  }
+
+  private interface Builder {
+    Value build(Object[] bindings, Value[] renames);
+  }
+
+  private static final class ConstantBuilder implements Builder {
+    private final Value datum;
+
+    private ConstantBuilder(Value datum) {
+      this.datum = datum;
+    }
+
+    @Override
+    public Value build(Object[] bindings, Value[] renames) {
+      return datum;
+    }
+  }
+
+  /**
+   * Builds a list from its elements onto the tail, where an element followed
+   * by an ellipsis is built once for each binding of its iterated variables.
+   */
+  private static final class ListBuilder implements Builder {
+    private final Builder[] elements;
+    private final int[][] repetitions;
+    private final Builder tail;
+
+    private ListBuilder(Builder[] elements, int[][] repetitions, Builder tail) {
+      this.elements = elements;
+      this.repetitions = repetitions;
+      this.tail = tail;
+    }
+
+    @Override
+    public Value build(Object[] bindings, Value[] renames) {
+      List<Value> values = new ArrayList<>();
+      for (int i = 0; i < elements.length; ++i) {
+        if (repetitions[i] == null) {
+          values.add(elements[i].build(bindings, renames));
+        } else {
+          buildRepeated(elements[i], repetitions[i], bindings, renames, values);
+        }
+      }
+      Value result = tail.build(bindings, renames);
+      for (int i = values.size() - 1; i >= 0; --i) {
+        result = CompoundDatum.newPair(values.get(i), result);
+      }
+      return result;
+    }
+
+    private static void buildRepeated(Builder element, int[] iterated, Object[] bindings, Value[] renames,
+                                      List<Value> valuesOut) {
+      int count = ((List<?>)bindings[iterated[0]]).size();
+      for (int variable: iterated) {
+        if (((List<?>)bindings[variable]).size() != count) {
+          throw Problem.invalidExpression("Ellipsis variables repeat different numbers of times");
+        }
+      }
+      Object[] iterationBindings = bindings.clone();
+      for (int i = 0; i < count; ++i) {
+        for (int variable: iterated) {
+          iterationBindings[variable] = ((List<?>)bindings[variable]).get(i);
+        }
+        valuesOut.add(element.build(iterationBindings, renames));
+      }
+    }
+  }
+}
@@ -55,13 +55,21 @@ public class TokenScanner {
 	    
 	    String next = peekNext(1);  // peek next character
 	    
-	    // First if statement:  Handles  --> "(" , ")" , "[" , "]" , "'" 
+	    // First if statement:  Handles  --> "(" , ")" , "[" , "]" , "'" , "`" , "," , ",@"
 	    
-	    if (checker.isPunctuation(tr)){	  	  
+	    if (tr.equals(",") && next.equals("@")){
+	  	  match(next);
+	  	  return result(TokenType.COMMA_AT, ",@");
+	    }
+	    else if (checker.isPunctuation(tr)){	  	  
 	  	  return result(checker.parsePunctuation(tr), tr);
 	    }
 	   	 
 	    // Second if statement: Handles  -->  "#" 
+	    else  if (tr.equals("#") && next.equals("(")) {
+	      match(next);
+	      return result(TokenType.VECTOR_START, "#(");
+	    }
 	    else  if (tr.equals("#")){   	
 	    	  while(checker.isSubsequent(next) || checker.isEscapedStringElement("\\" + next)) {	  
 	    		  tr = tr + next;
@@ -75,6 +83,8 @@ public class TokenScanner {
 	    	   else if (checker.getCharacterNames().contains(tr))
 	    		  return result(TokenType.CHARACTER, tr);
 	    	   else  {
+	    		   if (tr.length() == 1)
+	    		   return error(tr, "Expected a character or \"(\" after \"#\"");
 	    		   if (tr.charAt(1) != '\\')
 	    		   return error(tr, "Invalid character after \"#\": %s", tr.substring(0,2));
 	    		   return result(TokenType.CHARACTER, tr);
@@ -8,11 +8,11 @@ import org.instructures.interp.values.LexemeDatum;
  * Syntax).
  * 
  * The subset only allows for identifiers, booleans, characters, strings,
- * numbers (only decimal integers), parenthesis, square brackets, a single
- * quote, and the dot.
+ * numbers (only decimal integers), parenthesis, the start of a vector, square
+ * brackets, a single quote, a backquote, a comma, a comma-at, and the dot.
  * 
  * <pre>
- *   Lexeme ::= Identifier | Boolean | Number | Character | String | ( | ) | [ | ] | ' | .
+ *   Lexeme ::= Identifier | Boolean | Number | Character | String | ( | ) | #( | [ | ] | ' | ` | , | ,@ | .
  * </pre>
  * 
  * Not represented by lexemes are whitespace and comments. This subset
@@ -163,6 +163,21 @@ public enum TokenType {
     }
   },
 
+  /**
+   * The start of a vector: '#('. A vector is closed with a right parenthesis.
+   */
+  VECTOR_START {
+    @Override
+    public TokenType getTerminator() {
+      return RPAREN;
+    }
+
+    @Override
+    public String getDescription() {
+      return "\"#(\"";
+    }
+  },
+
   /**
    * A right (closed) parenthesis: ')'.
    */
@@ -208,6 +223,36 @@ public enum TokenType {
     }
   },
 
+  /**
+   * A backquote: '`'.
+   */
+  BACKQUOTE {
+    @Override
+    public String getDescription() {
+      return "\"`\"";
+    }
+  },
+
+  /**
+   * A comma: ','.
+   */
+  COMMA {
+    @Override
+    public String getDescription() {
+      return "\",\"";
+    }
+  },
+
+  /**
+   * A comma followed by an at sign: ',@'.
+   */
+  COMMA_AT {
+    @Override
+    public String getDescription() {
+      return "\",@\"";
+    }
+  },
+
   /**
    * A dot: '.'.
    */
@@ -0,0 +1,323 @@
+package org.instructures.interp;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.instructures.interp.values.*;
+import org.instructures.interp.values.LexemeDatum.SymbolDatum;
+
+/**
+ * The variables that a body of code refers to, defines and assigns, found by
+ * scanning its S-Expressions once. This is what lets a closure capture only
+ * the variables it uses instead of its whole defining environment.
+ *
+ * The scan understands the special forms of {@link SchemeEvaluator}, with the
+ * derived forms and macro uses scanned as their expansions. If the
+ * body uses any other special form, or a form the scan cannot make sense of,
+ * the usage is incomplete and nothing may be assumed from it.
+ */
+final class VariableUsage {
+  /**
+   * The usage of a frame that never gains bindings and whose variables are
+   * never assigned.
+   */
+  static final VariableUsage SEALED = new VariableUsage();
+
+  private static final Map<SymbolDatum, FormScanner> FORM_SCANNERS = new HashMap<>();
+
+  private interface FormScanner {
+    void scan(VariableUsage usage, LinkedList<Value> body, Set<String> bound);
+  }
+
+  static {
+    define("quote", (usage, body, bound) -> {});
+    define("quasiquote", VariableUsage::scanQuasiquote);
+    define("lambda", VariableUsage::scanLambda);
+    define("define", VariableUsage::scanDefine);
+    define("set!", VariableUsage::scanAssignment);
+    define("if", VariableUsage::scanSequence);
+    define("begin", VariableUsage::scanSequence);
+    define("cond", VariableUsage::scanCond);
+  }
+
+  private static void define(String symbolName, FormScanner formScanner) {
+    FORM_SCANNERS.put(LexemeDatum.newSymbol(symbolName), formScanner);
+  }
+
+  private final Set<String> free = new HashSet<>();
+  private final Set<String> defined = new HashSet<>();
+  private final Set<String> assigned = new HashSet<>();
+  private boolean isComplete = true;
+  // Where the body is, for finding the macros it uses
+  private final Environment environment;
+
+  private VariableUsage() {
+    this(null);
+  }
+
+  private VariableUsage(Environment environment) {
+    this.environment = environment;
+  }
+
+  /**
+   * Scans the body of a lambda expression with the given formals, in the
+   * given environment.
+   */
+  static VariableUsage ofLambda(Collection<String> formals, List<? extends Value> body, Environment environment) {
+    VariableUsage usage = new VariableUsage(environment);
+    for (Value datum: body) {
+      usage.collectDefines(datum, usage.defined);
+    }
+    Set<String> bound = new HashSet<>(formals);
+    bound.addAll(usage.defined);
+    for (Value datum: body) {
+      usage.scan(datum, bound);
+    }
+    return usage;
+  }
+
+  /**
+   * The variables referenced or assigned by the body, but not bound by it.
+   */
+  Set<String> getFree() {
+    return Collections.unmodifiableSet(free);
+  }
+
+  /**
+   * The variables defined directly in the body, which are bound in its frame.
+   */
+  Set<String> getDefined() {
+    return Collections.unmodifiableSet(defined);
+  }
+
+  /**
+   * Returns true if the variable may be added to the body's frame with
+   * {@code define} after the frame is created.
+   */
+  boolean isDefined(String variable) {
+    return defined.contains(variable);
+  }
+
+  /**
+   * Returns true if the variable may change after it is first bound: it is
+   * the target of a {@code set!} anywhere in the body, or bound with
+   * {@code define}.
+   */
+  boolean isMutable(String variable) {
+    return assigned.contains(variable) || defined.contains(variable);
+  }
+
+  boolean isComplete() {
+    return isComplete;
+  }
+
+  // Finds the variables defined directly in a body, which are bound in the
+  // body's own frame even when the define is not at the top of the body.
+  private void collectDefines(Value sExpr, Set<String> definesOut) {
+    if (!sExpr.isPair() || !sExpr.isList()) {
+      return;
+    }
+    Value head = sExpr.getCar();
+    if (testSymbol(head, "quote") || testSymbol(head, "quasiquote") || testSymbol(head, "lambda")) {
+      return;
+    }
+    if (isExpandable(head)) {
+      Datum expansion = expandOrNull((Datum)sExpr);
+      if (expansion != null) {
+        collectDefines(expansion, definesOut);
+      }
+      return;
+    }
+    if (testSymbol(head, "define") && sExpr.getCdr().isPair()) {
+      Value assignee = sExpr.getCdr().getCar();
+      Value name = assignee.isPair() ? assignee.getCar() : assignee;
+      if (name.isSymbol()) {
+        definesOut.add(name.toString());
+      }
+      if (assignee.isPair()) {
+        // the rest is a lambda body
+        return;
+      }
+    }
+    try {
+      for (Value element: sExpr.asProperList()) {
+        collectDefines(element, definesOut);
+      }
+    } catch (Problem.EvaluationError e) {
+      isComplete = false;
+    }
+  }
+
+  private void scan(Value sExpr, Set<String> bound) {
+    if (sExpr.isSymbol()) {
+      reference(sExpr.toString(), bound);
+    } else if (sExpr.isPair()) {
+      LinkedList<Value> list;
+      try {
+        list = sExpr.asProperList();
+      } catch (Problem.EvaluationError e) {
+        isComplete = false;
+        return;
+      }
+      Value head = sExpr.getCar();
+      if (head.isSymbol() && SpecialForm.lookup(head.toString(), environment) != null) {
+        if (isExpandable(head)) {
+          Datum expansion = expandOrNull((Datum)sExpr);
+          if (expansion != null) {
+            scan(expansion, bound);
+          }
+          return;
+        }
+        FormScanner formScanner = FORM_SCANNERS.get(head);
+        if (formScanner == null) {
+          isComplete = false;
+          return;
+        }
+        list.removeFirst();
+        formScanner.scan(this, list, bound);
+      } else {
+        scanSequence(list, bound);
+      }
+    }
+  }
+
+  private void reference(String variable, Set<String> bound) {
+    if (!bound.contains(variable)) {
+      free.add(variable);
+    }
+  }
+
+  private void scanSequence(LinkedList<Value> body, Set<String> bound) {
+    for (Value element: body) {
+      scan(element, bound);
+    }
+  }
+
+  private void scanLambda(LinkedList<Value> body, Set<String> bound) {
+    if (body.isEmpty()) {
+      isComplete = false;
+      return;
+    }
+    Value formals = body.removeFirst();
+    scanLambdaBody(formals, body, bound);
+  }
+
+  private void scanLambdaBody(Value formals, LinkedList<Value> body, Set<String> bound) {
+    List<Value> formalsList = new LinkedList<>();
+    if (formals.isSymbol()) {
+      formalsList.add(formals);
+    } else if (formals.isList()) {
+      formals.asImproperList(formalsList);
+    } else {
+      isComplete = false;
+      return;
+    }
+    Set<String> innerBound = new HashSet<>(bound);
+    for (Value formal: formalsList) {
+      innerBound.add(formal.toString());
+    }
+    for (Value datum: body) {
+      collectDefines(datum, innerBound);
+    }
+    scanSequence(body, innerBound);
+  }
+
+  private void scanDefine(LinkedList<Value> body, Set<String> bound) {
+    if (body.isEmpty()) {
+      isComplete = false;
+      return;
+    }
+    Value assignee = body.removeFirst();
+    if (assignee.isPair()) {
+      scanLambdaBody(assignee.getCdr(), body, bound);
+    } else {
+      scanSequence(body, bound);
+    }
+  }
+
+  private void scanAssignment(LinkedList<Value> body, Set<String> bound) {
+    if (body.isEmpty() || !body.getFirst().isSymbol()) {
+      isComplete = false;
+      return;
+    }
+    String variable = body.removeFirst().toString();
+    assigned.add(variable);
+    reference(variable, bound);
+    scanSequence(body, bound);
+  }
+
+  private void scanQuasiquote(LinkedList<Value> body, Set<String> bound) {
+    if (body.isEmpty()) {
+      isComplete = false;
+      return;
+    }
+    scanTemplate(body.getFirst(), 1, bound);
+  }
+
+  // Scans the expressions unquoted by a quasiquote template.
+  private void scanTemplate(Value template, int depth, Set<String> bound) {
+    for (Value curr = template; curr.isPair(); curr = curr.getCdr()) {
+      Value head = curr.getCar();
+      if ((testSymbol(head, "unquote") || testSymbol(head, "unquote-splicing")) && curr.getCdr().isPair()) {
+        if (depth == 1) {
+          scan(curr.getCdr().getCar(), bound);
+        } else {
+          scanTemplate(curr.getCdr().getCar(), depth - 1, bound);
+        }
+        return;
+      } else if (testSymbol(head, "quasiquote") && curr.getCdr().isPair()) {
+        scanTemplate(curr.getCdr().getCar(), depth + 1, bound);
+        return;
+      }
+      scanTemplate(head, depth, bound);
+    }
+  }
+
+  private void scanCond(LinkedList<Value> body, Set<String> bound) {
+    for (Value clause: body) {
+      if (!clause.isPair()) {
+        isComplete = false;
+        return;
+      }
+      Value test = clause.getCar();
+      if (!testSymbol(test, "else")) {
+        scan(test, bound);
+      }
+      try {
+        scanSequence(clause.getCdr().asProperList(), bound);
+      } catch (Problem.EvaluationError e) {
+        isComplete = false;
+      }
+    }
+  }
+
+  private boolean isExpandable(Value head) {
+    if (DerivedForms.isDerived(head)) {
+      return true;
+    }
+    SpecialForm specialForm = head.isSymbol() ? SpecialForm.lookup(head.toString(), environment) : null;
+    return specialForm != null && specialForm.getMacro() != null;
+  }
+
+  private Datum expandOrNull(Datum sExpr) {
+    try {
+      SpecialForm specialForm = SpecialForm.lookup(sExpr.getCar().toString(), environment);
+      if (specialForm.getMacro() != null) {
+        return specialForm.getMacro().expand(sExpr);
+      }
+      return DerivedForms.expand(sExpr);
+    } catch (Problem.EvaluationError e) {
+      isComplete = false;
+      return null;
+    }
+  }
+
+  private static boolean testSymbol(Value value, String symbolName) {
+    return value == LexemeDatum.newSymbol(symbolName);
+  }
+}
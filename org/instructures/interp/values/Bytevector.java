@@ -0,0 +1,70 @@
+package org.instructures.interp.values;
+
+import java.util.Arrays;
+import org.instructures.interp.Problem;
+
+/**
+ * A vector of bytes, each an exact integer from 0 to 255, kept unboxed in a
+ * byte array.
+ */
+public final class Bytevector extends RuntimeValue {
+  private final byte[] bytes;
+
+  private Bytevector(byte[] bytes) {
+    this.bytes = bytes;
+  }
+
+  /**
+   * Returns a new bytevector of the given length with every byte the fill.
+   */
+  public static Bytevector newBytevector(int length, int fill) {
+    if (length < 0) {
+      throw Problem.argumentError("Negative bytevector length: %d", length);
+    }
+    byte[] bytes = new byte[length];
+    Arrays.fill(bytes, checkByte(fill));
+    return new Bytevector(bytes);
+  }
+
+  public int length() {
+    return bytes.length;
+  }
+
+  public int get(int index) {
+    return bytes[VectorDatum.checkIndex(index, bytes.length)] & 0xff;
+  }
+
+  public void set(int index, int value) {
+    bytes[VectorDatum.checkIndex(index, bytes.length)] = checkByte(value);
+  }
+
+  private static byte checkByte(int value) {
+    if (value < 0 || value > 255) {
+      throw Problem.argumentError("Not a byte: %d", value);
+    }
+    return (byte)value;
+  }
+
+  @Override
+  public boolean isEqual(Value other) {
+    return other instanceof Bytevector && Arrays.equals(bytes, ((Bytevector)other).bytes);
+  }
+
+  @Override
+  public int equalHashCode() {
+    return Arrays.hashCode(bytes);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder buff = new StringBuilder(5 + 4 * bytes.length);
+    buff.append("#vu8(");
+    for (int i = 0; i < bytes.length; ++i) {
+      if (i > 0) {
+        buff.append(' ');
+      }
+      buff.append(bytes[i] & 0xff);
+    }
+    return buff.append(')').toString();
+  }
+}
@@ -1,6 +1,10 @@
 package org.instructures.interp.values;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import org.instructures.interp.Problem;
 
 public abstract class CompoundDatum implements Datum {
   private static final EmptyList EMPTY_LIST = new EmptyList();
@@ -25,6 +29,42 @@ public abstract class CompoundDatum implements Datum {
     return newList(values.toArray(new Value[0]));
   }
 
+  /**
+   * Builds a list front to back, in constant stack space, by setting the cdr
+   * of its last pair as each element is added. Nothing else can see the
+   * pairs until the list is built, so pairs still never change once seen.
+   */
+  public static final class ListBuilder {
+    private Pair head;
+    private Pair last;
+
+    public void add(Value element) {
+      Pair pair = new Pair(element, EMPTY_LIST);
+      if (last == null) {
+        head = pair;
+      } else {
+        last.cdr = pair;
+      }
+      last = pair;
+    }
+
+    /**
+     * Returns the list of the elements added, ending in the given tail, which
+     * is shared rather than copied.
+     */
+    public Value build(Value tail) {
+      if (last == null) {
+        return tail;
+      }
+      last.cdr = tail;
+      return head;
+    }
+
+    public Value build() {
+      return build(EMPTY_LIST);
+    }
+  }
+
   @Override
   public boolean asImproperList(List<Value> listOut) {
     Value curr = this;
@@ -40,6 +80,80 @@ public abstract class CompoundDatum implements Datum {
     return false;
   }
 
+  /**
+   * Returns a spliterator over the elements of this proper list. It knows how
+   * long the list is, and splits off the first half of what remains by walking
+   * to its middle, so a parallel traversal is balanced, and each half is
+   * walked by the thread that splits it further.
+   */
+  public Spliterator<Value> spliterator() {
+    long length = 0;
+    Value curr = this;
+    while (curr.isPair()) {
+      ++length;
+      curr = curr.getCdr();
+    }
+    if (!curr.isEmptyList()) {
+      throw Problem.typeError("Not properly formed list");
+    }
+    return new ListSpliterator(this, length);
+  }
+
+  private static final class ListSpliterator implements Spliterator<Value> {
+    private Value next;
+    private long remaining;
+
+    private ListSpliterator(Value next, long remaining) {
+      this.next = next;
+      this.remaining = remaining;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Value> action) {
+      if (remaining == 0) {
+        return false;
+      }
+      Value element = next.getCar();
+      next = next.getCdr();
+      --remaining;
+      action.accept(element);
+      return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super Value> action) {
+      for (; remaining > 0; --remaining) {
+        Value element = next.getCar();
+        next = next.getCdr();
+        action.accept(element);
+      }
+    }
+
+    @Override
+    public Spliterator<Value> trySplit() {
+      if (remaining < 2) {
+        return null;
+      }
+      long half = remaining / 2;
+      Value first = next;
+      for (long i = 0; i < half; ++i) {
+        next = next.getCdr();
+      }
+      remaining -= half;
+      return new ListSpliterator(first, half);
+    }
+
+    @Override
+    public long estimateSize() {
+      return remaining;
+    }
+
+    @Override
+    public int characteristics() {
+      return ORDERED | SIZED | SUBSIZED | NONNULL | IMMUTABLE;
+    }
+  }
+
   public static class EmptyList extends CompoundDatum {
     private EmptyList() {
     }
@@ -58,6 +172,8 @@ public abstract class CompoundDatum implements Datum {
   public static class Pair extends CompoundDatum {
     private Value car;
     private Value cdr;
+    // The equalHashCode, or 0 if it has not been computed yet
+    private int equalHash;
 
     private Pair(Value car, Value cdr) {
       this.car = car;
@@ -98,5 +214,55 @@ public abstract class CompoundDatum implements Datum {
     public boolean isPair() {
       return true;
     }
+
+    // The pairs are compared and hashed along the cdrs in a loop, so that a
+    // long list does not take a deep recursion.
+    @Override
+    public boolean isEqual(Value other) {
+      Value a = this;
+      Value b = other;
+      while (a.isPair() && b.isPair()) {
+        if (a == b) {
+          return true;
+        }
+        Pair pairA = (Pair)a;
+        Pair pairB = (Pair)b;
+        if (pairA.equalHash != 0 && pairB.equalHash != 0 && pairA.equalHash != pairB.equalHash) {
+          return false;
+        }
+        if (!pairA.car.isEqual(pairB.car)) {
+          return false;
+        }
+        a = pairA.cdr;
+        b = pairB.cdr;
+      }
+      // a pair is never equal to anything else, and asking it again would
+      // only come back here
+      if (a.isPair() || b.isPair()) {
+        return false;
+      }
+      return a.isEqual(b);
+    }
+
+    @Override
+    public int equalHashCode() {
+      if (equalHash != 0) {
+        return equalHash;
+      }
+      List<Pair> spine = new ArrayList<>();
+      Value curr = this;
+      while (curr.isPair() && ((Pair)curr).equalHash == 0) {
+        spine.add((Pair)curr);
+        curr = ((Pair)curr).cdr;
+      }
+      int hash = curr.equalHashCode();
+      for (int i = spine.size() - 1; i >= 0; --i) {
+        Pair pair = spine.get(i);
+        hash = 31 * hash + pair.car.equalHashCode();
+        // pairs never change, so the hash is kept; 0 means not yet computed
+        pair.equalHash = (hash != 0) ? hash : 1;
+      }
+      return equalHash;
+    }
   }
 }
@@ -0,0 +1,72 @@
+package org.instructures.interp.values;
+
+import java.util.Arrays;
+import org.instructures.interp.Problem;
+
+/**
+ * A vector of exact integers that fit in 64 bits, kept unboxed in a long
+ * array, for numeric data. Reading a small element back returns an interned
+ * number without allocating; see {@link LexemeDatum#newNumber(long)}.
+ */
+public final class FixnumVector extends RuntimeValue {
+  private final long[] elements;
+
+  private FixnumVector(long[] elements) {
+    this.elements = elements;
+  }
+
+  /**
+   * Returns a new vector holding the given numbers, which it takes ownership
+   * of.
+   */
+  public static FixnumVector newFixnumVector(long... elements) {
+    return new FixnumVector(elements);
+  }
+
+  /**
+   * Returns a new vector of the given length with every element the fill.
+   */
+  public static FixnumVector newFixnumVector(int length, long fill) {
+    if (length < 0) {
+      throw Problem.argumentError("Negative vector length: %d", length);
+    }
+    long[] elements = new long[length];
+    Arrays.fill(elements, fill);
+    return new FixnumVector(elements);
+  }
+
+  public int length() {
+    return elements.length;
+  }
+
+  public long get(int index) {
+    return elements[VectorDatum.checkIndex(index, elements.length)];
+  }
+
+  public void set(int index, long value) {
+    elements[VectorDatum.checkIndex(index, elements.length)] = value;
+  }
+
+  @Override
+  public boolean isEqual(Value other) {
+    return other instanceof FixnumVector && Arrays.equals(elements, ((FixnumVector)other).elements);
+  }
+
+  @Override
+  public int equalHashCode() {
+    return Arrays.hashCode(elements);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder buff = new StringBuilder(6 + 4 * elements.length);
+    buff.append("#vfx(");
+    for (int i = 0; i < elements.length; ++i) {
+      if (i > 0) {
+        buff.append(' ');
+      }
+      buff.append(elements[i]);
+    }
+    return buff.append(')').toString();
+  }
+}
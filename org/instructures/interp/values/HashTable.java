@@ -0,0 +1,164 @@
+package org.instructures.interp.values;
+
+import java.util.function.BiConsumer;
+
+/**
+ * A mutable hash table from values to values. Keys are compared either by
+ * identity, as with {@code eq?}, or by structure, as with {@code equal?},
+ * using {@link Value#equalHashCode}. Since atoms are interned, identity is
+ * enough for tables keyed by symbols, numbers and the like.
+ *
+ * The table uses open addressing with linear probing in parallel arrays of
+ * keys, values and hashes, kept at most half full. Each entry's hash is kept
+ * with it, so that probing compares keys only when their hashes match, and
+ * growing the table does not hash any key again. A deleted entry is filled
+ * by shifting back the entries after it, so there are no tombstones.
+ *
+ * A table is not synchronized; threads that share one must synchronize
+ * their changes to it themselves.
+ */
+public final class HashTable extends RuntimeValue {
+  private static final int INITIAL_CAPACITY = 16;
+
+  private final boolean isEqualTable;
+  private Value[] keys = new Value[INITIAL_CAPACITY];
+  private Value[] values = new Value[INITIAL_CAPACITY];
+  private int[] hashes = new int[INITIAL_CAPACITY];
+  private int size;
+
+  private HashTable(boolean isEqualTable) {
+    this.isEqualTable = isEqualTable;
+  }
+
+  /**
+   * Returns a new table whose keys are compared with {@code eq?}.
+   */
+  public static HashTable newEqTable() {
+    return new HashTable(false);
+  }
+
+  /**
+   * Returns a new table whose keys are compared with {@code equal?}.
+   */
+  public static HashTable newEqualTable() {
+    return new HashTable(true);
+  }
+
+  /**
+   * Returns the value for the key, or {@code null} if it has none.
+   */
+  public Value get(Value key) {
+    int hash = hash(key);
+    int mask = keys.length - 1;
+    for (int i = hash & mask; keys[i] != null; i = (i + 1) & mask) {
+      if (hashes[i] == hash && matches(keys[i], key)) {
+        return values[i];
+      }
+    }
+    return null;
+  }
+
+  public void put(Value key, Value value) {
+    int hash = hash(key);
+    int mask = keys.length - 1;
+    int i = hash & mask;
+    for (; keys[i] != null; i = (i + 1) & mask) {
+      if (hashes[i] == hash && matches(keys[i], key)) {
+        values[i] = value;
+        return;
+      }
+    }
+    keys[i] = key;
+    values[i] = value;
+    hashes[i] = hash;
+    if (++size * 2 > keys.length) {
+      resize(keys.length * 2);
+    }
+  }
+
+  /**
+   * Removes the key's entry, and returns true if it had one.
+   */
+  public boolean remove(Value key) {
+    int hash = hash(key);
+    int mask = keys.length - 1;
+    int i = hash & mask;
+    for (; keys[i] != null; i = (i + 1) & mask) {
+      if (hashes[i] == hash && matches(keys[i], key)) {
+        break;
+      }
+    }
+    if (keys[i] == null) {
+      return false;
+    }
+    // move back any later entry of the run that could have been placed here
+    for (int j = (i + 1) & mask; keys[j] != null; j = (j + 1) & mask) {
+      int home = hashes[j] & mask;
+      if (((j - home) & mask) >= ((j - i) & mask)) {
+        keys[i] = keys[j];
+        values[i] = values[j];
+        hashes[i] = hashes[j];
+        i = j;
+      }
+    }
+    keys[i] = null;
+    values[i] = null;
+    --size;
+    return true;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Calls the action with each key and its value, in no particular order.
+   */
+  public void forEach(BiConsumer<Value, Value> action) {
+    Value[] currentKeys = keys;
+    Value[] currentValues = values;
+    for (int i = 0; i < currentKeys.length; ++i) {
+      if (currentKeys[i] != null) {
+        action.accept(currentKeys[i], currentValues[i]);
+      }
+    }
+  }
+
+  private boolean matches(Value entryKey, Value key) {
+    return entryKey == key || (isEqualTable && entryKey.isEqual(key));
+  }
+
+  // Spreads the bits of the key's hash, as neighbouring identity hashes and
+  // small structural hashes would otherwise fill runs of neighbouring slots
+  private int hash(Value key) {
+    int h = isEqualTable ? key.equalHashCode() : System.identityHashCode(key);
+    h *= 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  private void resize(int capacity) {
+    Value[] oldKeys = keys;
+    Value[] oldValues = values;
+    int[] oldHashes = hashes;
+    keys = new Value[capacity];
+    values = new Value[capacity];
+    hashes = new int[capacity];
+    int mask = capacity - 1;
+    for (int j = 0; j < oldKeys.length; ++j) {
+      if (oldKeys[j] != null) {
+        int i = oldHashes[j] & mask;
+        while (keys[i] != null) {
+          i = (i + 1) & mask;
+        }
+        keys[i] = oldKeys[j];
+        values[i] = oldValues[j];
+        hashes[i] = oldHashes[j];
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "<hash-table>";
+  }
+}
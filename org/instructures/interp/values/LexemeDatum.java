@@ -1,19 +1,38 @@
 package org.instructures.interp.values;
 
 import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
 import org.instructures.interp.LexicalUtils;
+import org.instructures.interp.Problem;
 
 public abstract class LexemeDatum implements Datum {
-  private static final Map<String, SymbolDatum> symbolPool = new ConcurrentHashMap<>();
+  private static final InternPool<String, SymbolDatum> symbolPool = new InternPool<>();
   private static final Map<Boolean, BooleanDatum> booleanLiterals = new ConcurrentHashMap<>();
   private static final Map<String, CharacterDatum> characterPool = new ConcurrentHashMap<>();
-  private static final Map<String, StringDatum> stringPool = new ConcurrentHashMap<>();
-  private static final Map<BigInteger, NumberDatum> numberPool = new ConcurrentHashMap<>();
+  private static final InternPool<String, StringDatum> stringPool = new InternPool<>();
+  private static final InternPool<BigInteger, NumberDatum> numberPool = new InternPool<>();
+
+  public static InternPool<String, SymbolDatum> getSymbolPool() {
+    return symbolPool;
+  }
+
+  public static InternPool<String, StringDatum> getStringPool() {
+    return stringPool;
+  }
+
+  public static InternPool<BigInteger, NumberDatum> getNumberPool() {
+    return numberPool;
+  }
 
   public static SymbolDatum newSymbol(String symbolName) {
-    return symbolPool.computeIfAbsent(symbolName, k -> new SymbolDatum(k));
+    return symbolPool.intern(symbolName, k -> new SymbolDatum(k));
   }
 
   public static BooleanDatum newBoolean(boolean value) {
@@ -28,8 +47,19 @@ public abstract class LexemeDatum implements Datum {
     return characterPool.computeIfAbsent(value, k -> new CharacterDatum(k));
   }
 
+  /**
+   * Returns the interned string with the content, as for a literal.
+   */
   public static StringDatum newString(String content) {
-    return stringPool.computeIfAbsent(content, k -> new StringDatum(k));
+    return stringPool.intern(content, k -> new StringDatum(k));
+  }
+
+  /**
+   * Returns a new string with the content, which is not interned, as the
+   * result of a string operation need not outlive its uses.
+   */
+  public static StringDatum newFreshString(String content) {
+    return new StringDatum(content);
   }
 
   public static NumberDatum newNumber(String lexeme) {
@@ -40,7 +70,63 @@ public abstract class LexemeDatum implements Datum {
   }
 
   public static NumberDatum newNumber(BigInteger value) {
-    return numberPool.computeIfAbsent(value, v -> new NumberDatum(v));
+    return numberPool.intern(value, v -> new NumberDatum(v));
+  }
+
+  /**
+   * Returns the number for a long, without allocating anything if it is a
+   * small one, as is any element of most numeric vectors.
+   */
+  public static NumberDatum newNumber(long value) {
+    if (value >= SmallNumbers.MIN && value <= SmallNumbers.MAX) {
+      return SmallNumbers.CACHE[(int)value - SmallNumbers.MIN];
+    }
+    return newNumber(BigInteger.valueOf(value));
+  }
+
+  // The interned small numbers, by value
+  private static final class SmallNumbers {
+    private static final int MIN = -128;
+    private static final int MAX = 1023;
+    private static final NumberDatum[] CACHE = new NumberDatum[MAX - MIN + 1];
+
+    static {
+      for (int i = MIN; i <= MAX; ++i) {
+        CACHE[i - MIN] = newNumber(BigInteger.valueOf(i));
+      }
+    }
+  }
+
+  /**
+   * A pool of unique datums by value, which counts how often a lookup finds a
+   * datum already in the pool.
+   */
+  public static final class InternPool<K, V extends LexemeDatum> {
+    private final Map<K, V> pool = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private V intern(K key, Function<K, V> constructor) {
+      V datum = pool.get(key);
+      if (datum != null) {
+        hits.increment();
+        return datum;
+      }
+      misses.increment();
+      return pool.computeIfAbsent(key, constructor);
+    }
+
+    public int size() {
+      return pool.size();
+    }
+
+    public long getHitCount() {
+      return hits.sum();
+    }
+
+    public long getMissCount() {
+      return misses.sum();
+    }
   }
 
   public static class SymbolDatum extends LexemeDatum {
@@ -107,27 +193,242 @@ public abstract class LexemeDatum implements Datum {
     }
   }
 
+  /**
+   * A string, which is flat, holding a Java string; a slice of a range of a
+   * flat string's characters, which it shares; or a rope, the concatenation
+   * of two strings. Taking a substring or appending strings thus takes
+   * constant time, and a slice or rope is flattened only when its characters
+   * are needed as a Java string, after which it keeps them.
+   *
+   * A short string appended to a rope is copied into its last chunk rather
+   * than adding a node for it, and a rope that grows too deep is rebuilt as a
+   * balanced one, so that a string built by appending in a loop is a shallow
+   * tree of chunks. Strings are immutable, and only literals are interned, so
+   * strings are compared by their characters.
+   */
   public static class StringDatum extends LexemeDatum {
+    // Strings shorter than this are copied rather than shared
+    private static final int CHUNK = 64;
+    private static final int MAX_DEPTH = 48;
+
+    // The characters of a flat string, or of a slice or rope once flattened
     private String content;
+    // The characters of a flat string or slice are source[offset, offset + length)
+    private final String source;
+    private final int offset;
+    private final int length;
+    // The halves of a rope, and the depth of its tree
+    private final StringDatum left;
+    private final StringDatum right;
+    private final int depth;
 
     private StringDatum(String content) {
+      this(content, 0, content.length());
       this.content = content;
     }
 
+    private StringDatum(String source, int offset, int length) {
+      this.source = source;
+      this.offset = offset;
+      this.length = length;
+      this.left = null;
+      this.right = null;
+      this.depth = 0;
+    }
+
+    private StringDatum(StringDatum left, StringDatum right) {
+      this.source = null;
+      this.offset = 0;
+      this.length = left.length + right.length;
+      this.left = left;
+      this.right = right;
+      this.depth = 1 + Math.max(left.depth, right.depth);
+    }
+
+    public int length() {
+      return length;
+    }
+
+    public char charAt(int index) {
+      VectorDatum.checkIndex(index, length);
+      StringDatum string = this;
+      while (string.source == null) {
+        String flat = string.content;
+        if (flat != null) {
+          return flat.charAt(index);
+        } else if (index < string.left.length) {
+          string = string.left;
+        } else {
+          index -= string.left.length;
+          string = string.right;
+        }
+      }
+      return string.source.charAt(string.offset + index);
+    }
+
+    /**
+     * Returns the characters from start up to end, sharing them with this
+     * string unless there are only a few of them.
+     */
+    public StringDatum substring(int start, int end) {
+      if (start < 0 || end > length || start > end) {
+        throw Problem.argumentError("Invalid substring range: %d to %d (length %d)", start, end, length);
+      }
+      if (start == 0 && end == length) {
+        return this;
+      } else if (end - start < CHUNK) {
+        char[] chars = new char[end - start];
+        getChars(start, end, chars, 0);
+        return new StringDatum(new String(chars));
+      } else if (source != null) {
+        return new StringDatum(source, offset + start, end - start);
+      }
+      String flat = content;
+      if (flat != null) {
+        return new StringDatum(flat, start, end - start);
+      }
+      int leftLength = left.length;
+      if (end <= leftLength) {
+        return left.substring(start, end);
+      } else if (start >= leftLength) {
+        return right.substring(start - leftLength, end - leftLength);
+      }
+      return left.substring(start, leftLength).append(right.substring(0, end - leftLength));
+    }
+
+    /**
+     * Returns this string followed by the other.
+     */
+    public StringDatum append(StringDatum other) {
+      if (other.length == 0) {
+        return this;
+      } else if (length == 0) {
+        return other;
+      } else if (length + other.length < 0) {
+        throw Problem.argumentError("String too long: %d + %d characters", length, other.length);
+      } else if (length + other.length < CHUNK) {
+        char[] chars = new char[length + other.length];
+        getChars(0, length, chars, 0);
+        other.getChars(0, other.length, chars, length);
+        return new StringDatum(new String(chars));
+      } else if (source == null && right.length + other.length < CHUNK) {
+        return join(left, right.append(other));
+      }
+      return join(this, other);
+    }
+
+    /**
+     * Appends the characters to the buffer, without flattening this string.
+     */
+    public void appendTo(StringBuilder buff) {
+      if (source != null) {
+        buff.append(source, offset, offset + length);
+        return;
+      }
+      String flat = content;
+      if (flat != null) {
+        buff.append(flat);
+      } else {
+        left.appendTo(buff);
+        right.appendTo(buff);
+      }
+    }
+
+    private static StringDatum join(StringDatum left, StringDatum right) {
+      StringDatum rope = new StringDatum(left, right);
+      return (rope.depth > MAX_DEPTH) ? rope.rebalanced() : rope;
+    }
+
+    // Returns the same string as a balanced rope over its flat strings and
+    // slices, with runs of short ones merged into chunks
+    private StringDatum rebalanced() {
+      List<StringDatum> leaves = new ArrayList<>();
+      Deque<StringDatum> pending = new ArrayDeque<>();
+      pending.push(this);
+      while (!pending.isEmpty()) {
+        StringDatum string = pending.pop();
+        if (string.source == null && string.content == null) {
+          pending.push(string.right);
+          pending.push(string.left);
+          continue;
+        }
+        StringDatum leaf = (string.source != null) ? string : new StringDatum(string.content);
+        int last = leaves.size() - 1;
+        if (last >= 0 && leaf.length < CHUNK && leaves.get(last).length < CHUNK) {
+          leaves.set(last, leaves.get(last).append(leaf));
+        } else {
+          leaves.add(leaf);
+        }
+      }
+      return balanced(leaves, 0, leaves.size());
+    }
+
+    private static StringDatum balanced(List<StringDatum> leaves, int from, int to) {
+      if (to - from == 1) {
+        return leaves.get(from);
+      }
+      int middle = (from + to) >>> 1;
+      return new StringDatum(balanced(leaves, from, middle), balanced(leaves, middle, to));
+    }
+
+    // Copies the characters from start up to end into the array, as
+    // String.getChars does
+    private void getChars(int start, int end, char[] dest, int destStart) {
+      if (source != null) {
+        source.getChars(offset + start, offset + end, dest, destStart);
+        return;
+      }
+      String flat = content;
+      if (flat != null) {
+        flat.getChars(start, end, dest, destStart);
+        return;
+      }
+      int leftLength = left.length;
+      if (start < leftLength) {
+        left.getChars(start, Math.min(end, leftLength), dest, destStart);
+      }
+      if (end > leftLength) {
+        int rightStart = Math.max(start - leftLength, 0);
+        right.getChars(rightStart, end - leftLength, dest, destStart + Math.max(leftLength - start, 0));
+      }
+    }
+
     @Override
     public String toString() {
-      return content;
+      String flat = content;
+      if (flat == null) {
+        char[] chars = new char[length];
+        getChars(0, length, chars, 0);
+        // racing threads flatten to equal strings, so either may be kept
+        content = flat = new String(chars);
+      }
+      return flat;
     }
 
     @Override
     public String toSyntaxString() {
-      return LexicalUtils.unparseStringValue(content);
+      return LexicalUtils.unparseStringValue(toString());
     }
 
     @Override
     public boolean isString() {
       return true;
     }
+
+    @Override
+    public boolean isEqual(Value other) {
+      if (this == other) {
+        return true;
+      } else if (!(other instanceof StringDatum) || ((StringDatum)other).length != length) {
+        return false;
+      }
+      return toString().equals(other.toString());
+    }
+
+    @Override
+    public int equalHashCode() {
+      return toString().hashCode();
+    }
   }
 
   public static class NumberDatum extends LexemeDatum {
@@ -0,0 +1,74 @@
+package org.instructures.interp.values;
+
+import java.util.List;
+
+/**
+ * An instance of a record type made by {@code define-record-type}: a slot for
+ * each field, in the order of the type's fields, and the type it belongs to.
+ */
+public final class RecordValue extends RuntimeValue {
+  private final Type type;
+  private final Value[] slots;
+
+  public RecordValue(Type type, Value[] slots) {
+    this.type = type;
+    this.slots = slots;
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  public Value get(int slot) {
+    return slots[slot];
+  }
+
+  public void set(int slot, Value value) {
+    slots[slot] = value;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder buff = new StringBuilder("#<").append(type.name);
+    for (Value slot: slots) {
+      buff.append(' ').append(slot.toSyntaxString());
+    }
+    return buff.append('>').toString();
+  }
+
+  /**
+   * The descriptor of a record type, shared by all its instances. Each
+   * evaluation of a {@code define-record-type} makes a new type, and a record
+   * belongs to a type only if it was made by that type's constructor.
+   */
+  public static final class Type extends RuntimeValue {
+    private final String name;
+    private final List<String> fields;
+
+    public Type(String name, List<String> fields) {
+      this.name = name;
+      this.fields = fields;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public int getFieldCount() {
+      return fields.size();
+    }
+
+    /**
+     * Returns the slot of the named field, or -1 if the type has no such
+     * field.
+     */
+    public int slotOf(String field) {
+      return fields.indexOf(field);
+    }
+
+    @Override
+    public String toString() {
+      return "#<record-type " + name + ">";
+    }
+  }
+}
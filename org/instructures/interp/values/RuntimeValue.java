@@ -2,10 +2,13 @@ package org.instructures.interp.values;
 
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 import org.instructures.interp.Problem;
 
 public abstract class RuntimeValue implements Value {
   public abstract static class Procedure extends RuntimeValue {
+    private static final LongAdder applications = new LongAdder();
+
     private final int numRequiredArgs;
     private final boolean isVarArg;
 
@@ -19,8 +22,26 @@ public abstract class RuntimeValue implements Value {
       return true;
     }
 
+    /**
+     * Returns how many times any procedure has been applied.
+     */
+    public static long getApplicationCount() {
+      return applications.sum();
+    }
+
     @Override
     public Value apply(List<Value> args) {
+      Value result = checkedApply(checkArguments(args));
+      return result;
+    }
+
+    /**
+     * Counts an application of the procedure, and returns its arguments, with
+     * any beyond the required ones collected into a list if it takes a
+     * variable number of them.
+     */
+    protected LinkedList<Value> checkArguments(List<Value> args) {
+      applications.increment();
       LinkedList<Value> argsQueue = new LinkedList<>();
       if (isVarArg) {
         if (args.size() < numRequiredArgs) {
@@ -36,8 +57,7 @@ public abstract class RuntimeValue implements Value {
         }
         argsQueue.addAll(args);
       }
-      Value result = checkedApply(argsQueue);
-      return result;
+      return argsQueue;
     }
 
     protected abstract Value checkedApply(LinkedList<Value> args);
@@ -0,0 +1,41 @@
+package org.instructures.interp.values;
+
+import org.instructures.interp.values.LexemeDatum.CharacterDatum;
+import org.instructures.interp.values.LexemeDatum.StringDatum;
+
+/**
+ * A string being built by appending to it, as made by
+ * {@code make-string-builder}. Appending copies the characters into a buffer
+ * that grows by doubling, so building a string takes amortized constant time
+ * per character, and getting the string copies them once more.
+ *
+ * A builder is not synchronized; threads that share one must synchronize
+ * their appends to it themselves.
+ */
+public final class StringBuilderValue extends RuntimeValue {
+  private final StringBuilder buffer = new StringBuilder();
+
+  public void append(StringDatum string) {
+    string.appendTo(buffer);
+  }
+
+  public void append(CharacterDatum character) {
+    buffer.append(character.toString());
+  }
+
+  public int length() {
+    return buffer.length();
+  }
+
+  /**
+   * Returns a new string of the characters appended so far.
+   */
+  public StringDatum build() {
+    return LexemeDatum.newFreshString(buffer.toString());
+  }
+
+  @Override
+  public String toString() {
+    return "<string-builder>";
+  }
+}
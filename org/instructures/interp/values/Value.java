@@ -125,6 +125,24 @@ public interface Value {
     throw Problem.typeError("Not a pair");
   }
 
+  /**
+   * Returns true if the other value has the same structure as this one: it is
+   * the same atom, or both are pairs whose cars and cdrs are equal. This
+   * corresponds to the {@code equal?} predicate. Atoms other than strings
+   * are interned, so for them this is identity.
+   */
+  default boolean isEqual(Value other) {
+    return this == other;
+  }
+
+  /**
+   * Returns a hash code that is the same for values that are
+   * {@link #isEqual}.
+   */
+  default int equalHashCode() {
+    return hashCode();
+  }
+
   default Value apply(List<Value> args) {
     throw Problem.typeError("Not a function");
   }
@@ -0,0 +1,114 @@
+package org.instructures.interp.values;
+
+import java.util.Arrays;
+import org.instructures.interp.Problem;
+
+/**
+ * A vector: a fixed number of values, each of which can be got or replaced
+ * in constant time by its index. A vector written as {@code #(...)} is a
+ * literal, which evaluates to itself.
+ */
+public final class VectorDatum implements Datum {
+  private final Value[] elements;
+
+  private VectorDatum(Value[] elements) {
+    this.elements = elements;
+  }
+
+  /**
+   * Returns a new vector holding the given values, which it takes ownership
+   * of.
+   */
+  public static VectorDatum newVector(Value... elements) {
+    return new VectorDatum(elements);
+  }
+
+  /**
+   * Returns a new vector of the given length with every element the fill.
+   */
+  public static VectorDatum newVector(int length, Value fill) {
+    if (length < 0) {
+      throw Problem.argumentError("Negative vector length: %d", length);
+    }
+    Value[] elements = new Value[length];
+    Arrays.fill(elements, fill);
+    return new VectorDatum(elements);
+  }
+
+  public int length() {
+    return elements.length;
+  }
+
+  public Value get(int index) {
+    return elements[checkIndex(index, elements.length)];
+  }
+
+  public void set(int index, Value value) {
+    elements[checkIndex(index, elements.length)] = value;
+  }
+
+  public void fill(Value value) {
+    Arrays.fill(elements, value);
+  }
+
+  /**
+   * Returns a copy of the elements.
+   */
+  public Value[] toArray() {
+    return elements.clone();
+  }
+
+  public CompoundDatum toList() {
+    return CompoundDatum.newList(elements);
+  }
+
+  /**
+   * Returns the index if it is within the bounds of a vector of the given
+   * length, and throws an error otherwise.
+   */
+  static int checkIndex(int index, int length) {
+    if (index < 0 || index >= length) {
+      throw Problem.argumentError("Index out of range: %d (length %d)", index, length);
+    }
+    return index;
+  }
+
+  @Override
+  public boolean isEqual(Value other) {
+    if (this == other) {
+      return true;
+    } else if (!(other instanceof VectorDatum) || ((VectorDatum)other).elements.length != elements.length) {
+      return false;
+    }
+    Value[] otherElements = ((VectorDatum)other).elements;
+    for (int i = 0; i < elements.length; ++i) {
+      if (!elements[i].isEqual(otherElements[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // not kept, as the elements can change
+  @Override
+  public int equalHashCode() {
+    int hash = 1;
+    for (Value element: elements) {
+      hash = 31 * hash + element.equalHashCode();
+    }
+    return hash;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder buff = new StringBuilder(2 + 4 * elements.length);
+    buff.append("#(");
+    for (int i = 0; i < elements.length; ++i) {
+      if (i > 0) {
+        buff.append(' ');
+      }
+      buff.append(elements[i].toSyntaxString());
+    }
+    return buff.append(')').toString();
+  }
+}
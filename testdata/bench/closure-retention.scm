@@ -0,0 +1,29 @@
+;; Heap-footprint benchmark for closure capture.
+;;
+;; Each closure made by make-handler refers only to `id`, but it is created
+;; in a frame that also binds a large intermediate structure. A closure that
+;; keeps its whole defining environment keeps every one of those structures
+;; reachable; one that captures just its free variables does not. Compare the
+;; heap each needs by running with a small maximum heap, for example:
+;;
+;;   java -Xmx16m org.instructures.interp.SchemeEvaluator closure-retention.scm
+
+;; A tree of 2^depth - 1 pairs, built without deep recursion.
+(define (make-tree depth)
+  (if (= depth 0)
+      '()
+      (cons (make-tree (- depth 1)) (make-tree (- depth 1)))))
+
+(define (make-handler id)
+  (define table (make-tree 12))
+  (lambda (event) (cons id event)))
+
+;; 2^depth handlers, kept reachable together.
+(define (make-handlers depth id)
+  (if (= depth 0)
+      (make-handler id)
+      (cons (make-handlers (- depth 1) (* id 2))
+            (make-handlers (- depth 1) (+ (* id 2) 1)))))
+
+(define handlers (make-handlers 9 1))
+((car (car (car (car (car (car (car (car (car handlers))))))))) 'ready)
@@ -0,0 +1,43 @@
+;; Fan-out benchmark for spawned threads and channels.
+;;
+;; A producer puts jobs into one bounded channel, a number of workers each
+;; take jobs from it and put their results into a second channel, and the
+;; main thread adds up the results. With many workers most of them are
+;; parked at any time, which on virtual threads should cost little more than
+;; a few. Time it with, for example:
+;;
+;;   time java org.instructures.interp.SchemeEvaluator fan-out.scm
+
+(define workers 1000)
+(define jobs 100000)
+
+(define job-channel (make-channel 64))
+(define result-channel (make-channel 64))
+
+;; Named lets, as they run in constant stack space.
+(define (produce)
+  (let loop ((i 0))
+    (if (< i jobs)
+        (begin
+          (channel-put! job-channel i)
+          (loop (+ i 1))))))
+
+(define (square-worker)
+  (let loop ()
+    (let ((job (channel-get job-channel)))
+      (channel-put! result-channel (* job job))
+      (loop))))
+
+(define (collect)
+  (let loop ((n 0) (sum 0))
+    (if (= n jobs)
+        sum
+        (loop (+ n 1) (+ sum (channel-get result-channel))))))
+
+(let loop ((n workers))
+  (if (> n 0)
+      (begin
+        (spawn square-worker)
+        (loop (- n 1)))))
+(spawn produce)
+(collect)
@@ -0,0 +1,31 @@
+;; Message-passing latency benchmark for spawned threads and channels.
+;;
+;; Two threads pass a counter back and forth through a pair of channels
+;; until it reaches the number of round trips, so each step is a put that
+;; wakes a parked thread and a get that parks one. Time it with, for example:
+;;
+;;   time java org.instructures.interp.SchemeEvaluator ping-pong.scm
+
+(define round-trips 100000)
+
+(define ping (make-channel))
+(define pong (make-channel))
+
+;; Named lets, as they run in constant stack space.
+(define (ponger)
+  (let loop ()
+    (let ((n (channel-get ping)))
+      (channel-put! pong n)
+      (if (< n round-trips)
+          (loop)))))
+
+(define (pinger)
+  (let loop ((n 1))
+    (channel-put! ping n)
+    (let ((reply (channel-get pong)))
+      (if (< reply round-trips)
+          (loop (+ reply 1))
+          reply))))
+
+(spawn ponger)
+(pinger)
@@ -0,0 +1,65 @@
+; Procedures called often enough to be compiled into classes, which must
+; behave as they did when interpreted
+
+(define (repeat n thunk)
+  (let loop ((i 1) (result #f))
+    (if (> i n) result (loop (+ i 1) (thunk i)))))
+
+(define (fib n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2)))))
+
+; a named let, rebound in place and in a new frame for each closure
+(define (sum-to n)
+  (let loop ((i 0) (acc 0))
+    (if (> i n) acc (loop (+ i 1) (+ acc i)))))
+(define (adders n)
+  (let loop ((i 0) (acc '()))
+    (if (= i n) (map (lambda (f) (f 10)) acc) (loop (+ i 1) (cons (lambda (x) (+ x i)) acc)))))
+
+; let, cond with and without bodies, internal define and set!
+(define (classify x)
+  (let ((y (* x 2)))
+    (define z (+ y 1))
+    (set! z (- z 1))
+    (cond ((assv x '((1 . one) (2 . two))))
+          ((< z 10) 'small)
+          ((= z 10))
+          (else 'large))))
+
+; quasiquote
+(define (template x rest) `(x ,x ,@rest end))
+
+; calls of procedures through variables, closures and apply
+(define (compose f g) (lambda (x) (f (g x))))
+(define (inc x) (+ x 1))
+(define add2 (compose inc inc))
+(define (call-all x) (list (add2 x) ((compose add2 add2) x) (apply + (list x x))))
+(define (varargs a . rest) (cons a rest))
+
+(display (repeat 2000 (lambda (i) (fib 10))))
+(newline)
+(display (repeat 2000 (lambda (i) (sum-to 100))))
+(newline)
+(display (repeat 2000 (lambda (i) (adders 3))))
+(newline)
+(display (repeat 2000 (lambda (i) (list (classify 1) (classify 3) (classify 5) (classify 7)))))
+(newline)
+(display (repeat 2000 (lambda (i) (template i '(a b)))))
+(newline)
+(display (repeat 2000 (lambda (i) (call-all i))))
+(newline)
+(display (repeat 2000 (lambda (i) (varargs i i i))))
+(newline)
+
+; errors raised by compiled code
+(display (repeat 2000 (lambda (i) (fib 5))))
+(newline)
+(varargs)
+(fib 'a)
+
+; redefining a builtin the compiled code calls inline
+(define (double x) (* x 2))
+(display (repeat 2000 (lambda (i) (double i))))
+(newline)
+(set! * +)
+(display (double 5))
+(newline)
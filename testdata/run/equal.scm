@@ -0,0 +1,10 @@
+(equal? '(1) 'a)
+(equal? 'a '(1))
+(equal? '(1) '())
+(equal? '() '(1))
+(equal? '(1 2 . 3) '(1 2 3 . 4))
+(equal? '(1 2 3 . 4) '(1 2 . 3))
+(equal? '(1 . 2) '(1 . 2))
+(equal? '(1 (2 3)) '(1 (2 3)))
+(member '(1) '(a (1) b))
+(assoc '(2) '((a . 1) ((2) . 2)))
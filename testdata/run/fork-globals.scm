@@ -0,0 +1,16 @@
+; A prelude procedure assigns the session's copy of a prelude global
+(display (tick!))
+(newline)
+(display (tick!))
+(newline)
+(display count)
+(newline)
+
+; and sees the session's definitions of the procedures it calls
+(display (call-helper))
+(newline)
+(define (helper) 'session)
+(display (call-helper))
+(newline)
+(display (pmap (lambda (n) (call-helper)) '(1 2)))
+(newline)
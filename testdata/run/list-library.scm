@@ -0,0 +1,50 @@
+; map, for-each and the folds stop at the end of the shortest list
+(map + '(1 2 3) '(10 20) '(100 200 300 400))
+(map (lambda (x) (* x x)) '())
+(map list '(a b c) '(1 2 3))
+(define seen '())
+(for-each (lambda (x y) (set! seen (cons (list x y) seen))) '(a b c) '(1 2))
+seen
+(fold-left cons '() '(1 2 3))
+(fold-left (lambda (acc x y) (+ acc (* x y))) 0 '(1 2 3) '(4 5 6 7))
+(fold-right cons '() '(1 2 3))
+(fold-right (lambda (x y acc) (cons (+ x y) acc)) '(end) '(1 2 3 4) '(10 20 30))
+(map car '(1 2))
+(map + '(1 2 . 3) '(1 2 3))
+(fold-left + 0 '(1 . 2))
+
+; append copies all but its last argument, which is shared
+(define tail (list 3 4))
+(define joined (append '(1) '(2) tail))
+joined
+(eq? (cdr (cdr joined)) tail)
+(append)
+(append '() '())
+(append '(1) 2)
+(append 5)
+(append '(1 2) '(3 . 4))
+(append '(1 . 2) '(3))
+(append 1 '(2))
+
+; member and assoc compare with equal? unless given a predicate
+(member '(b) '(a (b) c))
+(member 2 '(1 2 3) =)
+(member 2 '(1 2 3 4) <)
+(member 5 '(1 2 3) <)
+(assoc "b" '(("a" . 1) ("b" . 2)))
+(assoc 2 '((1 . one) (2 . two) (3 . three)) (lambda (key k) (= (+ key 1) k)))
+(assoc 4 '((1 . one)) =)
+(member 1 '(2 . 3))
+(assoc 1 '(2))
+(member 1 '(1) 'not-a-procedure)
+
+; list-ref and list-tail stay within the list
+(list-ref '(a b c) 0)
+(list-ref '(a b c) 2)
+(list-ref '(a b c) 3)
+(list-ref '(a b c) -1)
+(list-tail '(a b c) 0)
+(list-tail '(a b c) 3)
+(list-tail '(a b c) 4)
+(list-tail '(a b . c) 2)
+(list-ref '(a b . c) 2)
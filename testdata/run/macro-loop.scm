@@ -0,0 +1,14 @@
+(define-syntax my-if
+  (syntax-rules ()
+    ((_ c a b) (cond (c a) (else b)))))
+(define (count-down n)
+  (let lp ((i n))
+    (my-if (= i 0) 'done (lp (- i 1)))))
+(count-down 100000)
+(define-syntax twice
+  (syntax-rules ()
+    ((_ e) (begin e e))))
+(define (calls n)
+  (let lp ((i n) (acc '()))
+    (if (= i 0) acc (twice (lp (- i 1) (cons i acc))))))
+(calls 3)
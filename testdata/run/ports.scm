@@ -0,0 +1,37 @@
+; with-output-to-string captures what write and display print, which
+; differ in how they print strings and characters
+(with-output-to-string (lambda () (write "a \"quoted\" string") (display " ") (display "a \"quoted\" string")))
+(with-output-to-string (lambda () (write #\a) (display #\a) (write '(1 "two" #\3)) (display '(1 "two" #\3))))
+(with-output-to-string (lambda () (write-string "text") (newline)))
+(with-output-to-string (lambda () #t))
+(with-output-to-string (lambda () (display "inner") (with-output-to-string (lambda () (display "hidden"))) (display "outer")))
+(with-output-to-string (lambda () (display "before") (car '())))
+(display "back to the evaluator's output")
+(newline)
+
+; a port given explicitly, rather than the current one
+(define captured '())
+(with-output-to-string (lambda () (set! captured (current-output-port)) (display "kept")))
+(display "more" captured)
+(display (current-output-port))
+(newline)
+(display 1 'not-a-port)
+
+; a closed port cannot be written to, and closing it again does nothing
+(define closed (open-output-file "ports.file_out"))
+(display "lost when the file is opened again" closed)
+(close-output-port closed)
+(close-output-port closed)
+(display "too late" closed)
+(write 'x closed)
+(newline closed)
+(close-output-port 5)
+(open-output-file "no-such-directory/file")
+
+; the output of a port that is never closed is flushed at exit; make check
+; compares ports.file_out with ports.out_file
+(define port (open-output-file "ports.file_out"))
+(display "never closed" port)
+(newline port)
+(write '("a list" #\b) port)
+(newline port)
@@ -0,0 +1,51 @@
+; a constructor that takes some of the fields, in its own order
+(define-record-type point (make-point y x) point?
+  (x point-x set-point-x!)
+  (y point-y)
+  (label point-label set-point-label!))
+(define p (make-point 1 2))
+(list (point-x p) (point-y p))
+(point-label p)
+(set-point-label! p 'origin)
+(point-label p)
+(set-point-x! p 10)
+(point-x p)
+(point? p)
+(point? '(point 1 2))
+(make-point 1)
+p
+
+; a constructor given by name alone takes every field, in order
+(define-record-type pair-box box-pair box-pair? (first box-first) (second box-second))
+(define b (box-pair 'a 'b))
+(list (box-first b) (box-second b))
+(box-pair 'a)
+
+; an accessor or modifier rejects other records and other values
+(box-first p)
+(point-x b)
+(set-point-x! b 1)
+(point-y 5)
+(point? b)
+(box-pair? b)
+
+; errors in the definition itself
+(define-record-type bad (make-bad z) bad? (x bad-x))
+(define-record-type bad (make-bad) bad? (x bad-x) (x bad-x2))
+(define-record-type bad (make-bad) bad? x)
+
+; a record type defined inside a procedure, hot enough to be compiled;
+; each call defines a new type
+(define (tagged n)
+  (define-record-type tag (make-tag value) tag? (value tag-value set-tag-value!))
+  (define t (make-tag n))
+  (set-tag-value! t (* 2 (tag-value t)))
+  (list (tag-value t) t tag?))
+(do ((n 2000 (- n 1))
+     (sum 0 (+ sum (car (tagged n)))))
+    ((= n 0) sum))
+(define first-tag (tagged 1))
+(define second-tag (tagged 2))
+(cdr first-tag)
+((car (cdr (cdr first-tag))) (car (cdr first-tag)))
+((car (cdr (cdr first-tag))) (car (cdr second-tag)))
@@ -0,0 +1,17 @@
+; An internal definition hides a constant bound by an enclosing let, however
+; the body that defines it is compiled
+(define (letrec-shadow) (let ((x 5)) (letrec ((x 7)) x)))
+(define (let-shadow) (let ((x 5)) (let () (define x 7) x)))
+(define (lambda-shadow) (let ((x 5)) ((lambda () (define x 8) x))))
+(define (procedure-shadow) (let ((x 5)) (define (g) (define x 7) x) (g)))
+(define (loop-shadow) (let ((x 5)) (let loop ((i 0)) (define x i) (if (< i 3) (loop (+ i 1)) x))))
+
+(define (run n)
+  (if (> n 0)
+      (begin
+        (letrec-shadow) (let-shadow) (lambda-shadow) (procedure-shadow) (loop-shadow)
+        (run (- n 1)))))
+(run 20)
+
+(display (list (letrec-shadow) (let-shadow) (lambda-shadow) (procedure-shadow) (loop-shadow)))
+(newline)
@@ -0,0 +1,65 @@
+; sort, sort! and list-sort take the ordering first; this is run with
+; -Dscheme.sort.threshold=40 (see sort.flags), so the sequences of 100
+; below are sorted in parallel
+
+(define (mod a n) (- a (* n (/ a n))))
+
+; the pairs (k . i) for i below n, with keys repeating in a scrambled order
+(define (keyed n)
+  (let loop ((i (- n 1)) (pairs '()))
+    (if (< i 0)
+        pairs
+        (loop (- i 1) (cons (cons (mod (* i 7) 10) i) pairs)))))
+(define (car< a b) (< (car a) (car b)))
+
+; a stable sort keeps the pairs with the same key in their original order
+(define (in-order? pairs)
+  (cond ((null? pairs) #t)
+        ((null? (cdr pairs)) #t)
+        ((< (car (car pairs)) (car (car (cdr pairs)))) (in-order? (cdr pairs)))
+        ((= (car (car pairs)) (car (car (cdr pairs))))
+         (if (< (cdr (car pairs)) (cdr (car (cdr pairs)))) (in-order? (cdr pairs)) #f))
+        (else #f)))
+(list-sort car< (keyed 12))
+(in-order? (list-sort car< (keyed 100)))
+(in-order? (sort car< (keyed 100)))
+(in-order? (vector->list (sort car< (list->vector (keyed 100)))))
+(sort (lambda (a b) (< (string-length a) (string-length b))) '("ccc" "a" "bb" "b" "aa" "c"))
+
+; sorting by the builtin < or > compares numbers directly, fixnums and
+; bignums alike
+(define big 100000000000000000000)
+(sort < (list 3 big -1 (- big) 0 9223372036854775807 -9223372036854775808 (+ big 1) 3))
+(sort > (list 3 big -1 (- big) 0 9223372036854775807 -9223372036854775808 (+ big 1) 3))
+(define (scrambled n) (map (lambda (p) (* (car p) (+ big (cdr p)))) (keyed n)))
+(define many (scrambled 100))
+(equal? (sort < many) (reverse (sort > many)))
+(equal? (sort < many) (sort (lambda (a b) (< a b)) many))
+(list-ref (sort < many) 50)
+(sort < '())
+(sort < (vector))
+(sort < '(x 1))
+
+; a vector is sorted in place by sort!, and copied by sort
+(define v (vector 5 3 9 1))
+(sort < v)
+v
+(eq? (sort! < v) v)
+v
+(define letters (vector "ddd" "a" "cc" "b"))
+(sort! (lambda (a b) (< (string-length a) (string-length b))) letters)
+(define pairs (list->vector (keyed 100)))
+(vector-length (sort! car< pairs))
+(in-order? (vector->list pairs))
+(define lst (list 3 1 2))
+(sort! < lst)
+lst
+
+; an error raised while comparing, on the parallel path too
+(sort (lambda (a b) (car a)) '(1 2))
+(sort (lambda (a b) (if (= a 50) (car a) (< a b))) (map cdr (reverse (keyed 100))))
+(sort < (append (map car (keyed 100)) '(x)))
+(list-sort car< (cons 'not-a-pair (keyed 100)))
+(sort! car< (list->vector (cons 'not-a-pair (keyed 100))))
+(sort < 5)
+(sort 5 '(1 2))
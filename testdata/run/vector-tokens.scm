@@ -0,0 +1,8 @@
+#(
+#()
+#(1 #(a) . "b")
+'#(x)
+`#(,y)
+(# (
+)
+; E.O.F.
@@ -0,0 +1,50 @@
+; vector literals, which are self-evaluating
+#(1 2 3)
+#()
+#(a #(b (c d) #()) "e" #\f #t)
+'#(1 (2 . 3))
+(vector-ref #(#(1 2) #(3 4)) 1)
+(vector? (car '(#(1))))
+(vector-length #(a (b c) #(d e f)))
+(equal? #(1 #(2)) (vector 1 (vector 2)))
+`(1 #(2 3))
+
+; vectors, bytevectors and fixnum vectors built by procedures
+(define v (make-vector 3 'x))
+(vector-set! v 0 #(nested))
+v
+(vector-set! v 3 'y)
+(vector-ref v -1)
+(vector->list #(1 2 3))
+(list->vector '(a b))
+
+(define bytes (make-bytevector 4 7))
+bytes
+(bytevector-u8-set! bytes 0 255)
+(bytevector-u8-set! bytes 3 0)
+bytes
+(bytevector-u8-ref bytes 0)
+(bytevector-u8-set! bytes 1 256)
+(bytevector-u8-set! bytes 1 -1)
+(bytevector-u8-set! bytes 4 1)
+(bytevector-u8-ref bytes 4)
+(make-bytevector 0)
+(bytevector? bytes)
+(vector? bytes)
+
+(define fixnums (fxvector 1 -2 3))
+fixnums
+(fxvector-set! fixnums 1 9223372036854775807)
+(fxvector-set! fixnums 2 -9223372036854775808)
+fixnums
+(fxvector-set! fixnums 0 9223372036854775808)
+(fxvector-set! fixnums 0 -9223372036854775809)
+(fxvector-set! fixnums 3 0)
+(fxvector-ref fixnums -1)
+(make-fxvector 2 9)
+(fxvector)
+(fxvector? fixnums)
+
+; a syntax error, which ends the file
+#(1 2 . 3)
+'unreached